@@ -0,0 +1,57 @@
+package com.fermanis.aitetris;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Fixed-seed positions shared by the benchmarks, so every run measures the
+ * same boards and pieces.
+ */
+final class BenchmarkFixtures {
+
+    /*Seed of every generated game.*/
+    static final long SEED = 20190401L;
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * A position the AI has to solve: settled blocks plus the active and next piece.
+     */
+    static final class Position {
+        final Board board;
+        final int firstType, nextType;
+
+        Position(Board board, int firstType, int nextType) {
+            this.board = board;
+            this.firstType = firstType;
+            this.nextType = nextType;
+        }
+    }
+
+    /**
+     * Positions from seeded games played by the default AI. Games are played
+     * back to back, seed after seed, until enough positions are collected.
+     * @param count Number of positions
+     * @param width Board width
+     * @param height Board height
+     * @return Positions in the order they were played
+     */
+    static Position[] positions(int count, int width, int height) {
+        List<Position> positions = new ArrayList<Position>(count);
+        TetrisAI ai = new TetrisAI();
+        for (long seed = SEED; positions.size() < count; seed++) {
+            SimulationEngine sim = new SimulationEngine(width, height, new Random(seed));
+            sim.reset();
+            while (positions.size() < count && sim.newblock()) {
+                positions.add(new Position(new Board(sim.board), sim.activeType, sim.nextType));
+                int fit = ai.bestPlacement(sim.board, sim.activeType, sim.nextType);
+                if (!sim.place(TetrisAI.placementRotation(fit), TetrisAI.placementX(fit))) {
+                    break;
+                }
+            }
+        }
+        return positions.toArray(new Position[count]);
+    }
+}
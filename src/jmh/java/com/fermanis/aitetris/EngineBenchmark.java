@@ -0,0 +1,94 @@
+package com.fermanis.aitetris;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TetrisEngine's collision check and line clearing, on fixed-seed boards.
+ * The engine is never started, so no game loop runs; its scheduler is shut
+ * down after the trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EngineBenchmark {
+
+    private static final int POSITIONS = 256;
+
+    private TetrisEngine engine;
+    private BenchmarkFixtures.Position[] positions;
+    private Tetromino[] blocks;
+    private Board[] clearBoards;
+    private int next;
+
+    @Setup
+    public void setup() {
+        engine = new TetrisEngine(null);
+        positions = BenchmarkFixtures.positions(POSITIONS, engine.width, engine.height);
+
+        // The active piece of every position, at its spawn point.
+        blocks = new Tetromino[POSITIONS];
+        for (int i = 0; i < POSITIONS; i++) {
+            Tetromino t = new Tetromino();
+            t.type = positions[i].firstType;
+            t.setRotation(0);
+            t.x = engine.width / 2 - 2;
+            blocks[i] = t;
+        }
+
+        // The same boards with their two lowest rows filled, for clearing.
+        clearBoards = new Board[POSITIONS];
+        for (int i = 0; i < POSITIONS; i++) {
+            clearBoards[i] = new Board(positions[i].board);
+            for (int y = engine.height - 2; y < engine.height; y++) {
+                for (int x = 0; x < engine.width; x++) {
+                    clearBoards[i].fill(x, y);
+                }
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        engine.shutdown();
+    }
+
+    private int nextIndex() {
+        int i = next;
+        next = (next + 1) % POSITIONS;
+        return i;
+    }
+
+    @Benchmark
+    public boolean copy() {
+        int i = nextIndex();
+        engine.board.copyFrom(positions[i].board);
+        engine.activeblock = blocks[i];
+        return engine.copy();
+    }
+
+    /*Includes restoring the board, which is two array copies, and the
+     * score and line count, which would otherwise grow until they overflow.*/
+    @Benchmark
+    public int checkforclears() {
+        engine.board.copyFrom(clearBoards[nextIndex()]);
+        engine.score = 0;
+        engine.lines = 0;
+        engine.checkforclears(0);
+        return engine.lines;
+    }
+}
@@ -0,0 +1,58 @@
+package com.fermanis.aitetris;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The genetic algorithm's side: breeding a new generation, and the
+ * headless game that scores one candidate.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GeneticBenchmark {
+
+    private GeneticAIAlgorithm genetic;
+    private int[] fixedScores;
+
+    @Setup
+    public void setup() {
+        genetic = new GeneticAIAlgorithm(true);
+        genetic.serializeGeneration = false;
+        genetic.rnd = new Random(BenchmarkFixtures.SEED);
+
+        Random rnd = new Random(BenchmarkFixtures.SEED);
+        fixedScores = new int[genetic.getPopulation()];
+        for (int i = 0; i < fixedScores.length; i++) {
+            fixedScores[i] = rnd.nextInt(5000);
+        }
+    }
+
+    /*Includes the algorithm's own logging of every winner and child.*/
+    @Benchmark
+    public int newGeneration() {
+        System.arraycopy(fixedScores, 0, genetic.scores, 0, fixedScores.length);
+        genetic.newGeneration();
+        return genetic.generation;
+    }
+
+    /*One whole fitness game with the default weights and a fixed piece sequence.*/
+    @Benchmark
+    public int fitnessGame() {
+        return new SimulationEngine(new Random(BenchmarkFixtures.SEED)).play(new TetrisAI());
+    }
+}
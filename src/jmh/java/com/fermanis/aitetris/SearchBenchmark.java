@@ -0,0 +1,73 @@
+package com.fermanis.aitetris;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The AI search: a single placement pair, and a whole move with both pieces.
+ * Every invocation moves on to the next of a fixed set of positions taken
+ * from seeded games.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SearchBenchmark {
+
+    private static final int POSITIONS = 256;
+
+    private BenchmarkFixtures.Position[] positions;
+    private int[] firstPlacements, secondPlacements;
+    private TetrisAI ai;
+    private int next;
+
+    @Setup
+    public void setup() {
+        positions = BenchmarkFixtures.positions(POSITIONS, 10, 10);
+        ai = new TetrisAI();
+
+        // One fixed placement pair per position for evalPosition.
+        Random rnd = new Random(BenchmarkFixtures.SEED);
+        int[] fits = new int[4 * (10 + 3)];
+        firstPlacements = new int[POSITIONS];
+        secondPlacements = new int[POSITIONS];
+        for (int i = 0; i < POSITIONS; i++) {
+            int n = TetrisAI.listFits(positions[i].firstType, 10, fits);
+            firstPlacements[i] = fits[rnd.nextInt(n)];
+            n = TetrisAI.listFits(positions[i].nextType, 10, fits);
+            secondPlacements[i] = fits[rnd.nextInt(n)];
+        }
+    }
+
+    private int nextIndex() {
+        int i = next;
+        next = (next + 1) % POSITIONS;
+        return i;
+    }
+
+    @Benchmark
+    public double evalPosition() {
+        int i = nextIndex();
+        BenchmarkFixtures.Position p = positions[i];
+        return ai.evalPosition(p.board, p.firstType, p.nextType, firstPlacements[i], secondPlacements[i]).score;
+    }
+
+    @Benchmark
+    public BlockPosition computeBestFit() {
+        BenchmarkFixtures.Position p = positions[nextIndex()];
+        return ai.computeBestFit(p.board, p.firstType, p.nextType);
+    }
+}
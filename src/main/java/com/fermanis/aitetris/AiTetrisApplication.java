@@ -5,6 +5,8 @@ import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 
 import javax.swing.*;
+import java.io.IOException;
+import java.util.Arrays;
 
 import static com.fermanis.aitetris.ProjectConstants.formatStackTrace;
 
@@ -54,7 +56,18 @@ public class AiTetrisApplication {
         ConfigurationManager.updateSetting("genetic_algo.population", pop);
     }
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        // "train" runs the headless Trainer instead: no Spring context, no Swing.
+        if (args.length > 0 && args[0].equals("train")) {
+            Trainer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        // "arena" shows the starting population playing side by side in an ArenaPanel.
+        if (args.length > 0 && args[0].equals("arena")) {
+            ArenaPanel.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         System.setProperty("java.awt.headless", "false");
         SpringApplication.run(AiTetrisApplication.class, args);
         System.setErr(System.out);
@@ -92,6 +105,7 @@ public class AiTetrisApplication {
                     public void run() {
                         // Initialize configuration manager
                         ConfigurationManager.initialize();
+                        Metrics.startConfiguredDump();
                         
                         // Launch splash screen first, then main menu
                         SplashScreen splashScreen = new SplashScreen();
@@ -0,0 +1,223 @@
+package com.fermanis.aitetris;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hosts many independent games in one JVM, e.g. to compare hundreds of
+ * weight vectors at once.
+ *
+ * Every ArenaGame has its own AI, piece generator and statistics. All games
+ * share one thread pool: a game plays PIECES_PER_TURN pieces, then goes to
+ * the back of the pool's queue, so every game makes progress no matter how
+ * many there are. Worker threads keep a TranspositionCache of
+ * genetic_algo.cache_entries entries, like GenerationEvaluator, unless the
+ * configured search doesn't use one.
+ *
+ * The arena also hands out one scheduler for everything around the games,
+ * such as an ArenaPanel repainting the boards.
+ */
+public class Arena {
+
+    private static final Logger log = LoggerFactory.getLogger(Arena.class);
+
+    /*Pieces a game plays before it gives the thread to the next game.*/
+    static final int PIECES_PER_TURN = 64;
+
+    private final ExecutorService pool;
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownsExecutors;
+    private final String pieceSource;
+    // A piece file, loaded once; every game plays a copy. Null for random sources.
+    private final ReplayPieceSource replay;
+    private final int cacheEntries;
+    private final List<ArenaGame> games = new ArrayList<ArenaGame>();
+    private final ThreadLocal<TranspositionCache> threadCache = new ThreadLocal<TranspositionCache>() {
+        @Override
+        protected TranspositionCache initialValue() {
+            return cacheEntries > 0 ? new TranspositionCache(cacheEntries) : null;
+        }
+    };
+
+    private volatile boolean running = false;
+    private CountDownLatch done = new CountDownLatch(0);
+
+    /**
+     * Creates an arena with its own pool and scheduler
+     * @param threads Threads playing games; 0 or less means one per core
+     * @throws IllegalArgumentException If genetic_algo.piece_source is unknown or its file can't be read
+     */
+    public Arena(int threads) {
+        this(Executors.newFixedThreadPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors(),
+                GameScheduler.daemonThreads("arena")), GameScheduler.create(1), true);
+    }
+
+    /**
+     * Creates an arena on executors owned by the caller; shutdown() leaves them running
+     * @param pool Plays the games
+     * @param scheduler Shared scheduler, see getScheduler()
+     * @throws IllegalArgumentException If genetic_algo.piece_source is unknown or its file can't be read
+     */
+    public Arena(ExecutorService pool, ScheduledExecutorService scheduler) {
+        this(pool, scheduler, false);
+    }
+
+    private Arena(ExecutorService pool, ScheduledExecutorService scheduler, boolean ownsExecutors) {
+        this.pool = pool;
+        this.scheduler = scheduler;
+        this.ownsExecutors = ownsExecutors;
+        this.pieceSource = ConfigurationManager.getSetting("genetic_algo.piece_source", "uniform");
+        PieceSource configured = PieceSource.forName(pieceSource, 0);
+        this.replay = configured instanceof ReplayPieceSource ? (ReplayPieceSource) configured : null;
+        this.cacheEntries = TetrisAI.configuredCacheEntries(
+                ConfigurationManager.getIntSetting("genetic_algo.cache_entries", 1 << 16));
+    }
+
+    /**
+     * Adds a game. Games can only be added while the arena isn't running.
+     * @param weights AI weights, in chromosome order
+     * @param seed Seed of the game's piece generator
+     * @return The new game
+     */
+    public synchronized ArenaGame add(double[] weights, long seed) {
+        if (running) {
+            throw new IllegalStateException("Can't add games while the arena is running");
+        }
+        ArenaGame game = new ArenaGame(games.size(), weights, seed, pieceSource, replay);
+        games.add(game);
+        return game;
+    }
+
+    /**
+     * The games, in the order they were added
+     * @return Unmodifiable list of games
+     */
+    public synchronized List<ArenaGame> getGames() {
+        return Collections.unmodifiableList(new ArrayList<ArenaGame>(games));
+    }
+
+    /**
+     * Scheduler shared by everything running alongside the games
+     * @return The scheduler
+     */
+    public ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Starts every game; returns immediately
+     * @param gamesEach Games every board plays before it stops; 0 or less to play until stop()
+     */
+    public synchronized void start(int gamesEach) {
+        if (running || done.getCount() > 0) {
+            throw new IllegalStateException("Arena is already running");
+        }
+        running = true;
+        done = new CountDownLatch(games.size());
+        for (ArenaGame game : games) {
+            int target = gamesEach > 0 ? game.getGames() + gamesEach : Integer.MAX_VALUE;
+            schedule(game, target, done);
+        }
+        if (games.isEmpty()) {
+            running = false;
+        }
+    }
+
+    /**
+     * Plays gamesEach more games on every board and waits for them
+     * @param gamesEach Games per board, at least 1
+     */
+    public void run(int gamesEach) {
+        if (gamesEach < 1) {
+            throw new IllegalArgumentException("Games per board must be at least 1, was " + gamesEach);
+        }
+        start(gamesEach);
+        try {
+            await(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stop();
+            throw new RuntimeException("Arena interrupted", e);
+        }
+    }
+
+    /**
+     * Waits until every board has stopped, after its last game or stop()
+     * @param timeout Longest time to wait
+     * @param unit Unit of the timeout
+     * @return true if every board stopped in time
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        CountDownLatch latch;
+        synchronized (this) {
+            latch = done;
+        }
+        return latch.await(timeout, unit);
+    }
+
+    /**
+     * Stops every board after its current turn. Games in progress carry on
+     * from where they were when the arena is started again.
+     */
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * Stops the games and, for an arena that created its own, the executors
+     */
+    public void shutdown() {
+        stop();
+        if (ownsExecutors) {
+            pool.shutdownNow();
+            scheduler.shutdownNow();
+        }
+    }
+
+    private void schedule(final ArenaGame game, final int target, final CountDownLatch latch) {
+        pool.execute(new Runnable() {
+            public void run() {
+                turn(game, target, latch);
+            }
+        });
+    }
+
+    /*One turn of a game, then back in the queue until it reaches its target.*/
+    private void turn(ArenaGame game, int target, CountDownLatch latch) {
+        boolean more = false;
+        try {
+            if (running) {
+                game.play(PIECES_PER_TURN, threadCache.get());
+                more = game.getGames() < target;
+            }
+        } catch (RuntimeException e) {
+            log.error("Arena game " + game.getId() + " failed", e);
+        }
+
+        if (more && running) {
+            schedule(game, target, latch);
+        } else {
+            // One board stopped; the arena stops running once all of them have.
+            synchronized (this) {
+                if (latch.getCount() == 1) {
+                    running = false;
+                }
+                latch.countDown();
+            }
+        }
+    }
+}
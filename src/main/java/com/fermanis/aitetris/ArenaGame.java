@@ -0,0 +1,149 @@
+package com.fermanis.aitetris;
+
+import java.util.Random;
+
+/**
+ * One board of an Arena: a headless game and the AI that plays it, with
+ * its own piece generator and statistics.
+ *
+ * The arena plays a game a few pieces at a time, so many games can take
+ * turns on a small thread pool. Only one thread plays a given game at a
+ * time; the statistics and getBoard() can be read from any thread, e.g.
+ * by a panel that draws the board.
+ */
+public class ArenaGame {
+
+    private final int id;
+    private final double[] weights;
+    private final long seed;
+    private final String pieceSource;
+    private final ReplayPieceSource replay;
+
+    /*Seeds the piece source of every game, so a seed replays the same games.*/
+    private final Random rnd;
+    private final TetrisAI ai;
+
+    /*Game in progress, null between games.*/
+    private SimulationEngine sim;
+
+    /*Copy of the board after the latest turn.*/
+    private volatile Board board;
+
+    private volatile int games = 0, lastScore = 0, bestScore = 0, currentScore = 0;
+    private volatile long totalScore = 0, totalLines = 0, totalPieces = 0;
+
+    /*replay is the arena's piece file, copied for every game; null to
+     * draw from pieceSource with a seed from rnd.*/
+    ArenaGame(int id, double[] weights, long seed, String pieceSource, ReplayPieceSource replay) {
+        this.id = id;
+        this.weights = weights.clone();
+        this.seed = seed;
+        this.pieceSource = pieceSource;
+        this.replay = replay;
+        this.rnd = new Random(seed);
+        this.ai = new TetrisAI();
+        GeneticAIAlgorithm.applyWeights(ai, this.weights);
+        this.board = new Board(10, 10);
+    }
+
+    /*Plays up to maxPieces pieces with the given cache (may be null).
+     * Returns the number of games finished during the turn.*/
+    int play(int maxPieces, TranspositionCache cache) {
+        ai.setCache(cache);
+        int finished = 0;
+        for (int i = 0; i < maxPieces; i++) {
+            if (sim == null) {
+                sim = new SimulationEngine(replay != null ? replay.copy() : PieceSource.forName(pieceSource, rnd.nextLong()));
+                sim.reset();
+            }
+            if (!sim.step(ai)) {
+                gameOver(sim);
+                sim = null;
+                finished++;
+                break;
+            }
+        }
+        if (sim != null) {
+            currentScore = sim.score;
+            board = new Board(sim.board);
+        }
+        ai.setCache(null);
+        return finished;
+    }
+
+    private void gameOver(SimulationEngine sim) {
+        lastScore = sim.score;
+        bestScore = Math.max(bestScore, sim.score);
+        totalScore += sim.score;
+        totalLines += sim.lines;
+        totalPieces += sim.blocksdropped;
+        currentScore = 0;
+        board = new Board(sim.board);
+        games++;
+    }
+
+    /**
+     * Index of this game in its arena
+     * @return Game id
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Weights of the AI
+     * @return A copy of the weights
+     */
+    public double[] getWeights() {
+        return weights.clone();
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Board after the latest turn, a copy that is never modified
+     * @return Settled blocks
+     */
+    public Board getBoard() {
+        return board;
+    }
+
+    public int getGames() {
+        return games;
+    }
+
+    public int getLastScore() {
+        return lastScore;
+    }
+
+    public int getBestScore() {
+        return bestScore;
+    }
+
+    /**
+     * Score of the game in progress, as of the latest turn
+     * @return Current score, 0 between games
+     */
+    public int getCurrentScore() {
+        return currentScore;
+    }
+
+    /**
+     * Average final score over the finished games
+     * @return Mean score, 0 before the first game ends
+     */
+    public double getMeanScore() {
+        int n = games;
+        return n == 0 ? 0 : (double) totalScore / n;
+    }
+
+    public long getTotalLines() {
+        return totalLines;
+    }
+
+    public long getTotalPieces() {
+        return totalPieces;
+    }
+}
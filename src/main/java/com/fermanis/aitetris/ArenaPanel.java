@@ -0,0 +1,164 @@
+package com.fermanis.aitetris;
+
+import org.springframework.boot.logging.LogLevel;
+import org.springframework.boot.logging.LoggingSystem;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/* Shows the boards of an Arena: the selected board large on the left, the
+ * others as a grid of thumbnails. Click a thumbnail to select it. The panel
+ * repaints itself on the arena's scheduler while it is showing.
+ *
+ * main() opens one in a window, with a board for every chromosome of the
+ * population training would start with (preset, random or resumed):
+ *
+ * java -cp <classpath> com.fermanis.aitetris.ArenaPanel [threads] [--config=<file>] [--key=value ...]
+ * java -jar ai-tetris.jar arena [same arguments]*/
+public class ArenaPanel extends JPanel {
+
+    /*Size of a thumbnail cell, and of a cell of the selected board, in pixels.*/
+    static final int THUMB_CELL = 6, LARGE_CELL = 30;
+
+    /*Space around and between boards.*/
+    static final int GAP = 10;
+
+    private final Arena arena;
+    private volatile int selected = 0;
+    private ScheduledFuture<?> refresh;
+
+    public ArenaPanel(Arena arena) {
+        this.arena = arena;
+        setBackground(Color.DARK_GRAY);
+
+        addMouseListener(new MouseAdapter() {
+            public void mousePressed(MouseEvent me) {
+                int game = thumbnailAt(me.getX(), me.getY());
+                if (game >= 0) {
+                    selected = game;
+                    repaint();
+                }
+            }
+        });
+    }
+
+    /*Starts refreshing at 10 fps once the panel is on screen.*/
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        refresh = arena.getScheduler().scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                repaint();
+            }
+        }, 100, 100, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void removeNotify() {
+        if (refresh != null) {
+            refresh.cancel(false);
+            refresh = null;
+        }
+        super.removeNotify();
+    }
+
+    public void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        List<ArenaGame> games = arena.getGames();
+        if (games.isEmpty()) return;
+
+        ArenaGame current = games.get(Math.min(selected, games.size() - 1));
+        drawBoard(g, current.getBoard(), GAP, GAP, LARGE_CELL, Color.WHITE);
+
+        g.setColor(Color.WHITE);
+        g.setFont(new Font(Font.MONOSPACED, Font.BOLD, 14));
+        int textY = GAP + 10 * LARGE_CELL + 25;
+        g.drawString("Game " + current.getId() + "  seed " + current.getSeed(), GAP, textY);
+        g.drawString("Score " + current.getCurrentScore() + "  best " + current.getBestScore(), GAP, textY + 18);
+        g.drawString(String.format("Games %d  mean %.1f", current.getGames(), current.getMeanScore()), GAP, textY + 36);
+
+        int left = thumbnailsLeft();
+        int columns = thumbnailColumns();
+        for (ArenaGame game : games) {
+            int i = game.getId();
+            int x = left + (i % columns) * thumbnailPitch();
+            int y = GAP + (i / columns) * thumbnailPitch();
+            drawBoard(g, game.getBoard(), x, y, THUMB_CELL, game == current ? Color.YELLOW : Color.GRAY);
+        }
+    }
+
+    private void drawBoard(Graphics g, Board board, int x, int y, int cell, Color border) {
+        g.setColor(Color.BLACK);
+        g.fillRect(x, y, board.width * cell, board.height * cell);
+        g.setColor(new Color(90, 160, 255));
+        for (int row = 0; row < board.height; row++) {
+            for (int mask = board.getRow(row); mask != 0; mask &= mask - 1) {
+                int col = Integer.numberOfTrailingZeros(mask);
+                g.fillRect(x + col * cell, y + row * cell, cell, cell);
+            }
+        }
+        g.setColor(border);
+        g.drawRect(x - 1, y - 1, board.width * cell + 1, board.height * cell + 1);
+    }
+
+    /*Index of the game whose thumbnail is at a point, or -1.*/
+    private int thumbnailAt(int px, int py) {
+        int col = (px - thumbnailsLeft()) / thumbnailPitch();
+        int row = (py - GAP) / thumbnailPitch();
+        if (px < thumbnailsLeft() || py < GAP || col >= thumbnailColumns()) return -1;
+        int game = row * thumbnailColumns() + col;
+        return game < arena.getGames().size() ? game : -1;
+    }
+
+    private int thumbnailsLeft() {
+        return 2 * GAP + 10 * LARGE_CELL;
+    }
+
+    private int thumbnailPitch() {
+        return 10 * THUMB_CELL + GAP;
+    }
+
+    private int thumbnailColumns() {
+        return Math.max(1, (getWidth() - thumbnailsLeft()) / thumbnailPitch());
+    }
+
+    /**
+     * Plays the starting population in an arena until the window is closed
+     * @param args Optional thread count (0 or less means one per core), then
+     * settings as --key=value and --config=&lt;file&gt; for a YAML file
+     * @throws IOException If the configuration can't be read
+     */
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "false");
+        ConfigurationManager.loadStandalone(args);
+        // Spring Boot would set this up; without it the default level is DEBUG.
+        LoggingSystem.get(ArenaPanel.class.getClassLoader()).setLogLevel(LoggingSystem.ROOT_LOGGER_NAME,
+                LogLevel.valueOf(ConfigurationManager.getSetting("logging.level.root", "INFO").toUpperCase()));
+        List<String> positional = ConfigurationManager.positionalArgs(args);
+        int threads = positional.isEmpty() ? 0 : Integer.parseInt(positional.get(0));
+
+        final Arena arena = new Arena(threads);
+        double[][] population = new GeneticAIAlgorithm(false).chromosomes;
+        for (int i = 0; i < population.length; i++) {
+            arena.add(population[i], i);
+        }
+        arena.start(0);
+
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                JFrame frame = new JFrame("AI Tetris Arena");
+                frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+                frame.add(new ArenaPanel(arena));
+                frame.setSize(1000, 480);
+                frame.setLocationRelativeTo(null);
+                frame.setVisible(true);
+            }
+        });
+    }
+}
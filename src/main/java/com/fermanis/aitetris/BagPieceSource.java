@@ -0,0 +1,40 @@
+package com.fermanis.aitetris;
+
+import java.util.Random;
+
+/**
+ * 7-bag randomizer: the types are dealt from a shuffled bag holding each
+ * type once, and the bag is refilled when it runs empty. Droughts of a type
+ * are at most 12 pieces long. Rotations are random, like the uniform source.
+ */
+public class BagPieceSource implements PieceSource {
+
+    private final Random rdm;
+    private final int[] bag = new int[TetrisEngine.blockdef.length];
+    private int left = 0;
+
+    /**
+     * @param rdm Generator; pass a seeded Random for a reproducible sequence
+     */
+    public BagPieceSource(Random rdm) {
+        this.rdm = rdm;
+    }
+
+    @Override
+    public int next() {
+        if (left == 0) {
+            for (int i = 0; i < bag.length; i++) {
+                bag[i] = i;
+            }
+            left = bag.length;
+        }
+
+        // Draw from what is left: a Fisher-Yates shuffle done one piece at a time.
+        int pick = rdm.nextInt(left);
+        int type = bag[pick];
+        bag[pick] = bag[--left];
+
+        int rot = rdm.nextInt(TetrisEngine.blockdef[type].length);
+        return PieceSource.piece(type, rot);
+    }
+}
@@ -0,0 +1,409 @@
+package com.fermanis.aitetris;
+
+import java.util.Arrays;
+
+/**
+ * Primitive bitboard representation of the playfield.
+ * Every row is a single int mask where bit x is set when the cell in
+ * column x is filled, so a board is just {@code height} ints. Rows are
+ * counted from the top, the same way TetrisEngine always counted them:
+ * row 0 is the top of the field and row height-1 the floor.
+ *
+ * Only settled blocks are stored here. The active piece lives in the
+ * engine's Tetromino and the colors live in a separate layer that is
+ * only used for drawing.
+ *
+ * The board also keeps per-column features up to date as blocks are
+ * filled and rows are removed: column heights, filled cell counts and
+ * the run of filled cells resting on the floor. Only the columns a
+ * change touches are updated, so the AI heuristic's height, hole and
+ * blockade features come out in O(columns) without rescanning the grid.
+ *
+ * Finally it can keep a 64 bit Zobrist-style hash of the filled cells, so
+ * the AI can recognise a position it has already searched. The hash is the
+ * XOR of one key per row, computed from the row's mask and index, so
+ * filling a cell updates one row key and a line clear one key per row that
+ * moves. It is only kept up to date once zobristHash() has been called;
+ * boards nobody hashes, like the engine's without a search cache, never
+ * pay for it.
+ */
+public class Board {
+
+    /*Width and height of the board, counted in blocks.*/
+    public final int width, height;
+
+    /*Mask with a bit set for every column of the board.*/
+    public final int fullRow;
+
+    /*One mask per row, top row first.*/
+    final int[] rows;
+
+    /*Three ints per column x, packed in one array so a copy is a
+     * single arraycopy: columns[3x] is the height of the highest filled
+     * cell above the floor (0 if empty), columns[3x+1] the number of
+     * filled cells and columns[3x+2] the number of filled cells stacked
+     * on the floor without a gap.*/
+    final int[] columns;
+    static final int HEIGHT = 0, COUNT = 1, FLOOR_RUN = 2;
+
+    /*Sum of (height - y) over every filled cell.*/
+    int heightSum;
+
+    /*XOR of rowKey() over every row, valid while hashed is set.*/
+    long hash;
+    boolean hashed;
+
+    /**
+     * Creates an empty board
+     * @param width Number of columns, at most 32
+     * @param height Number of rows
+     */
+    public Board(int width, int height) {
+        if (width < 1 || width > 32 || height < 1) {
+            throw new IllegalArgumentException("Unsupported board size " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+        this.fullRow = width == 32 ? -1 : (1 << width) - 1;
+        this.rows = new int[height];
+        this.columns = new int[3 * width];
+    }
+
+    /**
+     * Creates a copy of another board
+     * @param other The board to copy
+     */
+    public Board(Board other) {
+        this(other.width, other.height);
+        copyFrom(other);
+    }
+
+    /**
+     * Overwrites this board with the contents of another board of the same size
+     * @param other The board to copy from
+     */
+    public void copyFrom(Board other) {
+        System.arraycopy(other.rows, 0, rows, 0, height);
+        System.arraycopy(other.columns, 0, columns, 0, columns.length);
+        heightSum = other.heightSum;
+        hash = other.hash;
+        hashed = other.hashed;
+    }
+
+    /**
+     * Check whether a cell is filled. Out-of-range coordinates throw
+     * an ArrayIndexOutOfBoundsException, just like indexing a grid array would.
+     * @param x Column
+     * @param y Row, counted from the top
+     * @return true if the cell holds a settled block
+     */
+    public boolean isFilled(int x, int y) {
+        if (x < 0 || x >= width) {
+            throw new ArrayIndexOutOfBoundsException(x);
+        }
+        return (rows[y] >>> x & 1) != 0;
+    }
+
+    /**
+     * Marks a cell as filled
+     * @param x Column
+     * @param y Row, counted from the top
+     */
+    public void fill(int x, int y) {
+        int bit = 1 << x;
+        if ((rows[y] & bit) != 0) {
+            return;
+        }
+        if (hashed) {
+            hash ^= rowKey(rows[y], y) ^ rowKey(rows[y] | bit, y);
+        }
+        rows[y] |= bit;
+
+        int c = 3 * x;
+        columns[c + COUNT]++;
+        heightSum += height - y;
+        if (height - y > columns[c + HEIGHT]) {
+            columns[c + HEIGHT] = height - y;
+        }
+        // The cell may close the gap on top of the floor run.
+        while (columns[c + FLOOR_RUN] < height && (rows[height - 1 - columns[c + FLOOR_RUN]] & bit) != 0) {
+            columns[c + FLOOR_RUN]++;
+        }
+    }
+
+    /**
+     * Overwrites the whole board with the given row masks
+     * @param masks One mask per row, top row first
+     */
+    public void setRows(int[] masks) {
+        System.arraycopy(masks, 0, rows, 0, height);
+        recountColumns();
+        hashed = false;
+    }
+
+    /**
+     * Get the mask of a single row
+     * @param y Row, counted from the top
+     * @return Mask with bit x set for every filled column
+     */
+    public int getRow(int y) {
+        return rows[y];
+    }
+
+    /**
+     * Check whether every cell of a row is filled
+     * @param y Row, counted from the top
+     * @return true if the row can be cleared
+     */
+    public boolean isRowFull(int y) {
+        return rows[y] == fullRow;
+    }
+
+    /**
+     * Removes a row and moves everything above it one row down.
+     * The top row becomes empty.
+     * @param y Row to remove
+     */
+    public void removeRow(int y) {
+        if (rows[y] != fullRow) {
+            // Not a clear; rare enough to just recount.
+            removeRow(rows, y);
+            recountColumns();
+            hashed = false;
+            return;
+        }
+
+        // Every cell above the row moves one down.
+        int above = 0;
+        for (int i = 0; i < y; i++) {
+            above += Integer.bitCount(rows[i]);
+        }
+        heightSum -= width * (height - y) + above;
+
+        // The rows above change index, so their keys change.
+        if (hashed) {
+            hash ^= rowKey(rows[y], y);
+            for (int i = y - 1; i >= 0; i--) {
+                if (rows[i] != 0) {
+                    hash ^= rowKey(rows[i], i) ^ rowKey(rows[i], i + 1);
+                }
+            }
+        }
+
+        // Columns whose highest block was in this row.
+        int lostTop = 0;
+        for (int x = 0, c = 0; x < width; x++, c += 3) {
+            columns[c + COUNT]--;
+            if (y >= height - columns[c + FLOOR_RUN]) {
+                columns[c + FLOOR_RUN]--;
+            }
+            if (columns[c + HEIGHT] == height - y) {
+                lostTop |= 1 << x;
+                columns[c + HEIGHT] = 0;
+            } else {
+                columns[c + HEIGHT]--;
+            }
+        }
+
+        removeRow(rows, y);
+
+        // Their new top is the first filled cell below the removed row.
+        for (int i = y + 1; i < height && lostTop != 0; i++) {
+            int found = rows[i] & lostTop;
+            while (found != 0) {
+                columns[3 * Integer.numberOfTrailingZeros(found) + HEIGHT] = height - i;
+                found &= found - 1;
+            }
+            lostTop &= ~rows[i];
+        }
+    }
+
+    /**
+     * Removes every full row, bottom to top.
+     * @return Number of rows removed
+     */
+    public int clearLines() {
+        int cleared = 0;
+        for (int y = height - 1; y >= 0; ) {
+            if (rows[y] == fullRow) {
+                removeRow(y);
+                cleared++;
+            } else {
+                y--;
+            }
+        }
+        return cleared;
+    }
+
+    /**
+     * Empties the whole board
+     */
+    public void clear() {
+        Arrays.fill(rows, 0);
+        Arrays.fill(columns, 0);
+        heightSum = 0;
+        hash = 0;
+    }
+
+    /**
+     * Zobrist-style hash of the filled cells. Equal boards always have equal
+     * hashes, different boards almost never do. The first call computes it
+     * from the rows; from then on the board keeps it up to date.
+     * @return 64 bit hash
+     */
+    public long zobristHash() {
+        if (!hashed) {
+            hash = 0;
+            for (int y = 0; y < height; y++) {
+                hash ^= rowKey(rows[y], y);
+            }
+            hashed = true;
+        }
+        return hash;
+    }
+
+    /**
+     * Key of one row of the hash: 0 for an empty row, so rows above the
+     * stack cost nothing, otherwise SplitMix64 of the mask and the index.
+     * @param mask Row mask
+     * @param y Row, counted from the top
+     * @return Key of the row
+     */
+    static long rowKey(int mask, int y) {
+        return mask == 0 ? 0 : mix64((long) y << 32 | mask & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Key of a single cell. The keys are pseudo random numbers computed on
+     * demand (SplitMix64 of the cell index) instead of stored in a table, so
+     * they work for any board size. The board hash uses rowKey() instead.
+     * @param x Column
+     * @param y Row, counted from the top
+     * @return Key of the cell
+     */
+    static long cellKey(int x, int y) {
+        return mix64((long) y << 5 | x);
+    }
+
+    /*SplitMix64 finalizer: a cheap, well spread 64 bit hash of a long.*/
+    static long mix64(long z) {
+        z += 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Height of a column: rows from the floor up to and including its highest block
+     * @param x Column
+     * @return 0 for an empty column, height for a full one
+     */
+    public int getColumnHeight(int x) {
+        return columns[3 * x + HEIGHT];
+    }
+
+    /**
+     * Sum of (height - y) over every filled cell, i.e. the AI's height feature
+     * @return Weighted cell height
+     */
+    public int getHeightSum() {
+        return heightSum;
+    }
+
+    /**
+     * Empty cells that have a block somewhere above them in their column
+     * @return Hole count, in O(columns)
+     */
+    public int getHoles() {
+        int holes = 0;
+        for (int c = 0; c < columns.length; c += 3) {
+            holes += columns[c + HEIGHT] - columns[c + COUNT];
+        }
+        return holes;
+    }
+
+    /**
+     * Filled cells that have an empty cell somewhere below them in their column
+     * @return Blockade count, in O(columns)
+     */
+    public int getBlockades() {
+        int blockades = 0;
+        for (int c = 0; c < columns.length; c += 3) {
+            blockades += columns[c + COUNT] - columns[c + FLOOR_RUN];
+        }
+        return blockades;
+    }
+
+    /*Rebuilds the column features from the rows.*/
+    private void recountColumns() {
+        Arrays.fill(columns, 0);
+        heightSum = 0;
+        for (int y = 0; y < height; y++) {
+            int row = rows[y];
+            heightSum += Integer.bitCount(row) * (height - y);
+            while (row != 0) {
+                int c = 3 * Integer.numberOfTrailingZeros(row);
+                columns[c + COUNT]++;
+                if (columns[c + HEIGHT] == 0) {
+                    columns[c + HEIGHT] = height - y;
+                }
+                row &= row - 1;
+            }
+        }
+        for (int x = 0; x < width; x++) {
+            int bit = 1 << x, c = 3 * x;
+            while (columns[c + FLOOR_RUN] < height && (rows[height - 1 - columns[c + FLOOR_RUN]] & bit) != 0) {
+                columns[c + FLOOR_RUN]++;
+            }
+        }
+    }
+
+    /**
+     * Number of filled cells on the board
+     * @return Filled cell count
+     */
+    public int count() {
+        int n = 0;
+        for (int y = 0; y < height; y++) {
+            n += Integer.bitCount(rows[y]);
+        }
+        return n;
+    }
+
+    /**
+     * Removes row y from an array of row masks and shifts the rows above it
+     * down. Shared with other layers that have to stay aligned with a board
+     * (the AI keeps one for the blocks it has placed).
+     * @param masks Row masks, top row first
+     * @param y Row to remove
+     */
+    static void removeRow(int[] masks, int y) {
+        System.arraycopy(masks, 0, masks, 1, y);
+        masks[0] = 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Board)) return false;
+        Board b = (Board) o;
+        return b.width == width && Arrays.equals(b.rows, rows);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(rows);
+    }
+
+    /*String representation, one line per row.*/
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                sb.append((rows[y] >>> x & 1) != 0 ? '#' : '.');
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
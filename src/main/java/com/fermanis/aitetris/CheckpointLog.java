@@ -0,0 +1,442 @@
+package com.fermanis.aitetris;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Crash-safe, append-only log of a genetic algorithm run.
+ *
+ * The file starts with a header (magic, format version) followed by
+ * records. A GENERATION record holds everything needed to start a
+ * generation over: its index, the GA settings, the seed of its random
+ * generator and every chromosome. A RUN record holds the score of one
+ * fitness game of that generation, with the seed of its pieces. Loading
+ * the last GENERATION record and the RUN records after it resumes a run
+ * in the middle of a generation, without replaying the games already
+ * scored.
+ *
+ * Every record is written as {@code int length, int crc32, payload}. A
+ * GENERATION record is forced to disk before appendGeneration returns; RUN
+ * records are forced in batches of FORCE_RUNS, and on close. A crash of the
+ * process loses nothing that was appended. A crash of the machine can lose
+ * the last FORCE_RUNS - 1 runs at most, which are simply played again on
+ * resume, and can tear the last record. A torn record fails its length or
+ * checksum, and a record that doesn't fit the generation before it is out
+ * of place; either is cut off, with everything after it, when the log is
+ * opened again. The header, and the whole file when it is compacted, is
+ * written to a temporary file, forced to disk and renamed over the log, so
+ * the log on disk is always complete.
+ *
+ * The log has its own encoding of chromosomes, independent of the island
+ * wire format, so either can change without the other.
+ *
+ * Not thread safe.
+ */
+public class CheckpointLog implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(CheckpointLog.class);
+
+    static final int MAGIC = 0x54434B50; // "TCKP"
+    static final int VERSION = 1;
+    private static final int HEADER_BYTES = 8;
+
+    static final byte GENERATION = 1, RUN = 2;
+
+    /*Compact when the log grows past this many bytes.*/
+    static final long COMPACT_BYTES = 4 << 20;
+
+    /*RUN records written between forces to disk.*/
+    static final int FORCE_RUNS = 64;
+
+    /*Largest population and chromosome a GENERATION record may hold.*/
+    private static final int MAX_CHROMOSOMES = 1 << 16, MAX_GENES = 1 << 10;
+
+    private final Path path;
+    private FileChannel channel;
+
+    /*Last generation in the log and the runs recorded after it.*/
+    private State state;
+
+    /*RUN records written since the last force.*/
+    private int unforced;
+
+    /**
+     * State of the run as of the end of the log.
+     */
+    public static final class State {
+        public final int generation;
+        public final long seed;
+        public final int population, runs;
+        public final double mutationRate;
+
+        /*GA switches, see GeneticAIAlgorithm.flags().*/
+        public final int flags;
+
+        public final double[][] chromosomes;
+
+        /*Score and piece seed of every recorded run, indexed by [candidate][run].*/
+        final int[][] scores;
+        final long[][] gameSeeds;
+        final boolean[][] recorded;
+
+        State(int generation, long seed, int runs, double mutationRate, int flags, double[][] chromosomes) {
+            this.generation = generation;
+            this.seed = seed;
+            this.population = chromosomes.length;
+            this.runs = runs;
+            this.mutationRate = mutationRate;
+            this.flags = flags;
+            this.chromosomes = chromosomes;
+            this.scores = new int[population][runs];
+            this.gameSeeds = new long[population][runs];
+            this.recorded = new boolean[population][runs];
+        }
+
+        /**
+         * Was this game scored before the log ended?
+         * @param candidate Candidate index
+         * @param run Run index
+         * @return true if score() is valid
+         */
+        public boolean isRecorded(int candidate, int run) {
+            return recorded[candidate][run];
+        }
+
+        public int score(int candidate, int run) {
+            return scores[candidate][run];
+        }
+
+        public long gameSeed(int candidate, int run) {
+            return gameSeeds[candidate][run];
+        }
+    }
+
+    /**
+     * Opens a log, creating it if it doesn't exist. A torn or out of place
+     * record is cut off, with everything after it.
+     * @param file Log file; missing parent directories are created
+     * @throws IOException If the file can't be read or isn't a checkpoint log
+     */
+    public CheckpointLog(File file) throws IOException {
+        path = file.getAbsoluteFile().toPath();
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        if (!Files.exists(path) || Files.size(path) < HEADER_BYTES) {
+            replace(new byte[0]);
+        }
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long end = scan();
+        if (end < channel.size()) {
+            log.warn("Cutting " + (channel.size() - end) + " bytes of torn or out of place records off " + path);
+            channel.truncate(end);
+            channel.force(true);
+        }
+        channel.position(end);
+    }
+
+    /**
+     * State as of the end of the log
+     * @return Latest state, null if the log has no generation yet
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Records the start of a generation. Compacts the log first when it has
+     * grown too large, keeping only this generation.
+     * @param generation Generation index
+     * @param seed Seed of the GA's random generator for this generation
+     * @param runs Runs per candidate
+     * @param mutationRate Mutation rate
+     * @param flags GA switches
+     * @param chromosomes Every candidate
+     * @throws IOException If the write fails
+     */
+    public void appendGeneration(int generation, long seed, int runs, double mutationRate, int flags,
+                                 double[][] chromosomes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(GENERATION);
+        out.writeInt(generation);
+        out.writeLong(seed);
+        out.writeInt(runs);
+        out.writeDouble(mutationRate);
+        out.writeInt(flags);
+        writeChromosomes(out, chromosomes);
+        byte[] record = frame(bytes.toByteArray());
+
+        if (channel.size() + record.length > COMPACT_BYTES) {
+            compact(record);
+        } else {
+            append(record);
+            force();
+        }
+
+        double[][] copy = new double[chromosomes.length][];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = chromosomes[i].clone();
+        }
+        state = new State(generation, seed, runs, mutationRate, flags, copy);
+    }
+
+    /**
+     * Records the score of one fitness game of the current generation.
+     * Forced to disk along with the runs before it every FORCE_RUNS runs.
+     * @param candidate Candidate index
+     * @param run Run index
+     * @param gameSeed Seed of the game's pieces
+     * @param score Final score
+     * @throws IOException If the write fails
+     */
+    public void appendRun(int candidate, int run, long gameSeed, int score) throws IOException {
+        if (state == null) {
+            throw new IllegalStateException("No generation in the log yet");
+        }
+        if (!fits(state.generation, candidate, run)) {
+            throw new IllegalArgumentException("No run " + run + " of candidate " + candidate
+                    + " in generation " + state.generation);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(RUN);
+        out.writeInt(state.generation);
+        out.writeInt(candidate);
+        out.writeInt(run);
+        out.writeLong(gameSeed);
+        out.writeInt(score);
+        append(frame(bytes.toByteArray()));
+        applyRun(candidate, run, gameSeed, score);
+        if (++unforced >= FORCE_RUNS) {
+            force();
+        }
+    }
+
+    /**
+     * Forces the runs not yet on disk and closes the file
+     * @throws IOException If the force or close fails
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            force();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /*Reads every record, keeping the state of the last generation.
+     * Returns the offset after the last intact record that fits.*/
+    private long scan() throws IOException {
+        channel.position(0);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        int magic = in.readInt();
+        int version = in.readInt();
+        if (magic != MAGIC) {
+            throw new IOException(path + " is not a checkpoint log");
+        }
+        if (version != VERSION) {
+            throw new IOException(path + " has checkpoint format " + version + ", expected " + VERSION);
+        }
+
+        long end = HEADER_BYTES;
+        while (true) {
+            byte[] payload = readRecord(in);
+            if (payload == null || !apply(payload)) {
+                return end;
+            }
+            end += 8 + payload.length;
+        }
+    }
+
+    /*Next intact record, or null at the end or at a torn record.*/
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            int crc = in.readInt();
+            if (length <= 0 || length > COMPACT_BYTES) {
+                return null;
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            return crc(payload) == crc ? payload : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /*Applies a record to the state; false for a run record out of place.*/
+    private boolean apply(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        if (type == GENERATION) {
+            int generation = in.readInt();
+            long seed = in.readLong();
+            int runs = in.readInt();
+            double mutationRate = in.readDouble();
+            int flags = in.readInt();
+            double[][] chromosomes = readChromosomes(in);
+            state = new State(generation, seed, runs, mutationRate, flags, chromosomes);
+            return true;
+        } else if (type == RUN) {
+            int generation = in.readInt(), candidate = in.readInt(), run = in.readInt();
+            long gameSeed = in.readLong();
+            int score = in.readInt();
+            if (!fits(generation, candidate, run)) {
+                log.warn("Run record out of place in " + path + ": generation " + generation
+                        + ", candidate " + candidate + ", run " + run);
+                return false;
+            }
+            applyRun(candidate, run, gameSeed, score);
+            return true;
+        } else {
+            throw new IOException("Unknown checkpoint record type " + type + " in " + path);
+        }
+    }
+
+    /*Does a run belong to the last generation in the log?*/
+    private boolean fits(int generation, int candidate, int run) {
+        return state != null && generation == state.generation && candidate >= 0 && candidate < state.population
+                && run >= 0 && run < state.runs;
+    }
+
+    private void applyRun(int candidate, int run, long gameSeed, int score) {
+        state.scores[candidate][run] = score;
+        state.gameSeeds[candidate][run] = gameSeed;
+        state.recorded[candidate][run] = true;
+    }
+
+    private static byte[] frame(byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + payload.length);
+        buffer.putInt(payload.length);
+        buffer.putInt(crc(payload));
+        buffer.put(payload);
+        return buffer.array();
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    private void append(byte[] record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void force() throws IOException {
+        channel.force(false);
+        unforced = 0;
+    }
+
+    /*Chromosome encoding of GENERATION records: count, then every
+     * chromosome as its length and its genes.*/
+    private static void writeChromosomes(DataOutputStream out, double[][] chromosomes) throws IOException {
+        out.writeInt(chromosomes.length);
+        for (double[] chromosome : chromosomes) {
+            out.writeInt(chromosome.length);
+            for (double gene : chromosome) {
+                out.writeDouble(gene);
+            }
+        }
+    }
+
+    private static double[][] readChromosomes(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > MAX_CHROMOSOMES) {
+            throw new IOException("Bad chromosome count " + count);
+        }
+        double[][] chromosomes = new double[count][];
+        for (int i = 0; i < count; i++) {
+            int length = in.readInt();
+            if (length < 0 || length > MAX_GENES) {
+                throw new IOException("Bad chromosome length " + length);
+            }
+            chromosomes[i] = new double[length];
+            for (int j = 0; j < length; j++) {
+                chromosomes[i][j] = in.readDouble();
+            }
+        }
+        return chromosomes;
+    }
+
+    /*Starts the log over with a single record.*/
+    private void compact(byte[] record) throws IOException {
+        channel.close();
+        replace(record);
+        unforced = 0;
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+    }
+
+    /*Atomically replaces the log with a header and the given records:
+     * write a temporary file, force it to disk, rename it over the log.*/
+    private void replace(byte[] records) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + records.length);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.put(records);
+        buffer.flip();
+
+        FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        } finally {
+            out.close();
+        }
+
+        try {
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+        syncDirectory();
+    }
+
+    /*Makes the rename durable. Not every platform can open a directory; there
+     * the rename is as durable as the file system makes it.*/
+    private void syncDirectory() {
+        Path dir = path.getParent();
+        if (dir == null) {
+            return;
+        }
+        try {
+            FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // Windows, for one, can't.
+        }
+    }
+}
@@ -1,10 +1,21 @@
 package com.fermanis.aitetris;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.env.YamlPropertySourceLoader;
 import org.springframework.core.env.Environment;
+import org.springframework.core.env.MutablePropertySources;
+import org.springframework.core.env.PropertySource;
+import org.springframework.core.env.SimpleCommandLinePropertySource;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 import java.util.logging.Level;
@@ -39,6 +50,77 @@ public class ConfigurationManager {
         }
     }
     
+    /**
+     * Loads the configuration without starting a Spring application context,
+     * for command line tools that must start fast and run without a display.
+     * Settings are looked up, first match wins, in --key=value arguments,
+     * system properties, environment variables, the YAML file given by
+     * --config=&lt;file&gt;, then application.yml on the classpath.
+     * @param args Command line arguments; arguments not starting with -- are ignored
+     * @throws IOException If a YAML file can't be read
+     */
+    public static void loadStandalone(String[] args) throws IOException {
+        StandardEnvironment env = new StandardEnvironment();
+        MutablePropertySources sources = env.getPropertySources();
+        SimpleCommandLinePropertySource commandLine = new SimpleCommandLinePropertySource(args);
+        sources.addFirst(commandLine);
+        String config = commandLine.getProperty("config");
+        if (config != null) {
+            addYaml(sources, new FileSystemResource(config));
+        }
+        addYaml(sources, new ClassPathResource("application.yml"));
+        environment = env;
+        initialize();
+    }
+    
+    /**
+     * The arguments loadStandalone() reads settings from, e.g. to hand them on to a child process
+     * @param args Command line arguments
+     * @return Arguments starting with --, in order
+     */
+    public static List<String> optionArgs(String[] args) {
+        List<String> options = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                options.add(arg);
+            }
+        }
+        return options;
+    }
+    
+    /**
+     * The arguments loadStandalone() ignores, for tools that also take positional arguments
+     * @param args Command line arguments
+     * @return Arguments not starting with --, in order
+     */
+    public static List<String> positionalArgs(String[] args) {
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                positional.add(arg);
+            }
+        }
+        return positional;
+    }
+    
+    private static void addYaml(MutablePropertySources sources, Resource resource) throws IOException {
+        if (!resource.exists()) {
+            throw new IOException("Configuration file not found: " + resource.getDescription());
+        }
+        List<PropertySource<?>> loaded = new YamlPropertySourceLoader().load(resource.getDescription(), resource);
+        for (PropertySource<?> source : loaded) {
+            sources.addLast(source);
+        }
+    }
+    
+    /**
+     * The environment settings are read from, for code that swaps it temporarily
+     * @return Spring's environment or the standalone one, null if neither is loaded
+     */
+    static Environment getEnvironment() {
+        return environment;
+    }
+    
     /**
      * Get a configuration setting by key from Spring Environment
      * @param key The configuration key (supports dot notation for nested properties)
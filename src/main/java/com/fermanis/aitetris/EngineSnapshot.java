@@ -0,0 +1,101 @@
+package com.fermanis.aitetris;
+
+import java.awt.*;
+
+/**
+ * Immutable picture of a TetrisEngine at one instant.
+ *
+ * Only the engine's game loop changes the game. After every update it
+ * publishes a new snapshot through a volatile field, and every other thread
+ * (the renderer, the AI, key handlers) reads the latest snapshot instead of
+ * the engine's own fields, without taking a lock. Nothing in a snapshot
+ * changes once it has been published; the board is a private copy that
+ * readers must not modify.
+ */
+public final class EngineSnapshot {
+
+    /*Settled blocks, a private copy. Don't modify.*/
+    public final Board board;
+
+    /*Color layer, indexed X first like the board.*/
+    private final Color[][] colors;
+
+    /*Active block, or -1 for the type when there is none.*/
+    public final int activeType, activeRot, activeX, activeY;
+    public final Color activeColor;
+
+    /*Next block, or -1 for the type when there is none.*/
+    public final int nextType, nextRot;
+
+    public final int score, lines, blocksdropped, lastlines;
+
+    /*Gravity steps so far, see TetrisEngine.ticks.*/
+    public final long ticks;
+
+    public final ProjectConstants.GameState state;
+
+    /*Number of input commands the game loop had applied.*/
+    public final long applied;
+
+    /*Copies the engine's state. Only called by the game loop.*/
+    EngineSnapshot(TetrisEngine engine, long applied) {
+        board = new Board(engine.board);
+        colors = new Color[engine.colors.length][];
+        for (int x = 0; x < colors.length; x++) {
+            colors[x] = engine.colors[x].clone();
+        }
+
+        Tetromino active = engine.activeblock;
+        if (active != null && active.shape != null) {
+            activeType = active.type;
+            activeRot = active.rot;
+            activeX = active.x;
+            activeY = active.y;
+            activeColor = active.color;
+        } else {
+            activeType = -1;
+            activeRot = -1;
+            activeX = 0;
+            activeY = 0;
+            activeColor = null;
+        }
+
+        Tetromino next = engine.nextblock;
+        nextType = next != null ? next.type : -1;
+        nextRot = next != null ? next.rot : -1;
+
+        score = engine.score;
+        lines = engine.lines;
+        blocksdropped = engine.blocksdropped;
+        ticks = engine.ticks;
+        lastlines = engine.lastlines;
+        state = engine.state;
+        this.applied = applied;
+    }
+
+    /**
+     * Is there a block falling?
+     * @return true if the active block fields are valid
+     */
+    public boolean hasActive() {
+        return activeType >= 0;
+    }
+
+    /**
+     * Is there a next block?
+     * @return true if the next block fields are valid
+     */
+    public boolean hasNext() {
+        return nextType >= 0;
+    }
+
+    /**
+     * Color of a cell of the settled blocks
+     * @param x Column
+     * @param y Row, counted from the top
+     * @return Cell color, Block.emptycolor for empty cells
+     */
+    public Color color(int x, int y) {
+        return colors[x][y];
+    }
+}
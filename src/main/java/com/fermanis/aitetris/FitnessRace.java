@@ -0,0 +1,120 @@
+package com.fermanis.aitetris;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Racing for the fitness games of one generation: stops playing a
+ * candidate as soon as it can no longer make the top half that
+ * newGeneration() breeds from.
+ *
+ * Scores only grow during a game, and with a piece limit no game can score
+ * more than SimulationEngine.maxScore(). So a candidate's total is at least
+ * what its games have scored so far, and at most its finished scores plus
+ * the bound for every game still running or not started. Once enough other
+ * candidates are certain to total more than a candidate can at best, it
+ * is out: its running games stop and its other games are not played. Its
+ * total then still stays below theirs, so the top half comes out the same
+ * as if every game had been played to the end. Its fitness is the mean of
+ * the games it did play, which is at most the bound on its total divided
+ * by runs (no game scores more than the bound), so that stays below theirs
+ * too.
+ *
+ * Thread safe; the games of a generation report to it from any thread.
+ */
+final class FitnessRace {
+
+    /*Pieces between checks of a running game.*/
+    static final int CHECK_PIECES = 16;
+
+    private final int population, runs, keep;
+    private final long gameBound;
+
+    /*Score so far of every game, indexed by candidate * runs + run.*/
+    private final AtomicLongArray progress;
+    private final AtomicIntegerArray finished;
+    private final AtomicIntegerArray eliminated;
+
+    /**
+     * @param population Candidates
+     * @param runs Games per candidate
+     * @param keep Candidates that go on to breed, i.e. the top half
+     * @param gameBound Highest score one game can reach, see SimulationEngine.maxScore()
+     */
+    FitnessRace(int population, int runs, int keep, long gameBound) {
+        this.population = population;
+        this.runs = runs;
+        this.keep = keep;
+        this.gameBound = gameBound;
+        progress = new AtomicLongArray(population * runs);
+        finished = new AtomicIntegerArray(population * runs);
+        eliminated = new AtomicIntegerArray(population);
+    }
+
+    /**
+     * Records the final score of a game
+     * @param candidate Candidate index
+     * @param run Run index
+     * @param score Final score
+     */
+    void finish(int candidate, int run, int score) {
+        progress.set(candidate * runs + run, score);
+        finished.set(candidate * runs + run, 1);
+    }
+
+    /**
+     * Can this candidate no longer make the top half? Once true, stays true.
+     * @param candidate Candidate index
+     * @return true if its games need not be played
+     */
+    boolean isEliminated(int candidate) {
+        if (eliminated.get(candidate) != 0) {
+            return true;
+        }
+        long best = 0;
+        for (int run = 0; run < runs; run++) {
+            int game = candidate * runs + run;
+            best += finished.get(game) != 0 ? progress.get(game) : Math.max(gameBound, progress.get(game));
+            if (best < 0) {
+                return false; // No bound.
+            }
+        }
+        // Scores are averaged and rounded; a margin of one point per run
+        // keeps the rounded averages apart too.
+        int ahead = 0;
+        for (int other = 0; other < population && ahead < keep; other++) {
+            if (other != candidate && least(other) > best + runs) {
+                ahead++;
+            }
+        }
+        if (ahead < keep) {
+            return false;
+        }
+        eliminated.set(candidate, 1);
+        return true;
+    }
+
+    /**
+     * Stop condition for one game: reports its score and stops it once its candidate is out
+     * @param candidate Candidate index
+     * @param run Run index
+     * @return Condition for SimulationEngine.setStopCondition()
+     */
+    SimulationEngine.StopCondition condition(final int candidate, final int run) {
+        return new SimulationEngine.StopCondition() {
+            public boolean shouldStop(SimulationEngine game) {
+                progress.set(candidate * runs + run, game.score);
+                return game.blocksdropped % CHECK_PIECES == 0 && isEliminated(candidate);
+            }
+        };
+    }
+
+    /*Lowest total a candidate can end with: what its games have scored so far.*/
+    private long least(int candidate) {
+        long sum = 0;
+        for (int run = 0; run < runs; run++) {
+            sum += progress.get(candidate * runs + run);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,103 @@
+package com.fermanis.aitetris;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Statistics of a candidate's fitness games: mean, sample variance and a
+ * 95% confidence interval of the mean, from Student's t distribution.
+ *
+ * GenerationEvaluator uses them to decide where more games are worth it.
+ * Only candidates whose interval straddles the line between the top half
+ * and the rest can still change which candidates breed; the others are
+ * ranked on the right side of it already.
+ */
+final class FitnessStats {
+
+    /*Two-sided 95% quantiles of Student's t, by degrees of freedom 1 to 30.*/
+    private static final double[] T95 = {
+            12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+            2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+            2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042};
+
+    private FitnessStats() {
+    }
+
+    /**
+     * @param scores Scores
+     * @param n Use the first n
+     * @return Mean, 0 if n is 0
+     */
+    static double mean(int[] scores, int n) {
+        if (n == 0) {
+            return 0;
+        }
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += scores[i];
+        }
+        return sum / n;
+    }
+
+    /**
+     * @param scores Scores
+     * @param n Use the first n
+     * @return Sample variance, 0 for fewer than 2 scores
+     */
+    static double variance(int[] scores, int n) {
+        if (n < 2) {
+            return 0;
+        }
+        double mean = mean(scores, n);
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += (scores[i] - mean) * (scores[i] - mean);
+        }
+        return sum / (n - 1);
+    }
+
+    /**
+     * Half the width of the 95% confidence interval of the mean
+     * @param scores Scores
+     * @param n Use the first n
+     * @return Half width, infinite for fewer than 2 scores
+     */
+    static double confidence(int[] scores, int n) {
+        if (n < 2) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double t = n - 1 <= T95.length ? T95[n - 2] : 1.96;
+        return t * Math.sqrt(variance(scores, n) / n);
+    }
+
+    /**
+     * Candidates that more games could move across the top half line: their
+     * confidence interval contains the point halfway between the worst of
+     * the top half and the best of the rest
+     * @param scores Scores indexed by [candidate][run]
+     * @param played Games played by each candidate, the first runs
+     * @param keep Size of the top half
+     * @return Candidate indexes
+     */
+    static List<Integer> undecided(int[][] scores, int[] played, int keep) {
+        List<Integer> undecided = new ArrayList<Integer>();
+        int population = played.length;
+        if (keep <= 0 || keep >= population) {
+            return undecided;
+        }
+        double[] means = new double[population];
+        for (int c = 0; c < population; c++) {
+            means[c] = mean(scores[c], played[c]);
+        }
+        double[] sorted = means.clone();
+        Arrays.sort(sorted);
+        double line = (sorted[population - keep] + sorted[population - keep - 1]) / 2;
+        for (int c = 0; c < population; c++) {
+            if (Math.abs(means[c] - line) < confidence(scores[c], played[c])) {
+                undecided.add(c);
+            }
+        }
+        return undecided;
+    }
+}
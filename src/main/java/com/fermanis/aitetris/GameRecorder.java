@@ -0,0 +1,173 @@
+package com.fermanis.aitetris;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Records every placement of a game, or of many games in a row, to a
+ * memory-mapped file that GameReplay can seek in.
+ *
+ * A placement is one 8 byte record: the block type, rotation and lines it
+ * cleared packed in one byte, then X, Y and the tick it settled at. A game
+ * over is a record of type END, after which the board starts empty. Every
+ * KEYFRAME placements the recorder also writes the board as it was before
+ * the next one, so GameReplay can rebuild the board at any move from the
+ * nearest keyframe instead of from the start. Writing goes straight into the
+ * mapped file: no system call per record and no copy, so recording keeps up
+ * with headless games.
+ *
+ * The file holds a header and then blocks of one keyframe (a row mask per
+ * board row) followed by KEYFRAME records:
+ *
+ * <pre>
+ * header   = int magic, int version, int width, int height, int keyframe, int 0, long moves
+ * record   = byte type&lt;&lt;5 | rot&lt;&lt;3 | lines, byte x, byte y, byte 0, int tick
+ * </pre>
+ *
+ * The move count in the header is updated after every record, so a reader
+ * never sees a half written one. The file grows in steps and may be longer
+ * than the records in it. It can hold about 2 GB, some 250 million moves.
+ *
+ * The recorder keeps its own copy of the board, so the engines only report
+ * where each block went. Attach it between games. Not thread safe.
+ */
+public class GameRecorder implements Closeable {
+
+    static final int MAGIC = 0x54524543; // "TREC"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 32, MOVES_AT = 24, RECORD_BYTES = 8;
+
+    /*Placements between keyframes.*/
+    static final int KEYFRAME = 1024;
+
+    /*Record type of a game over.*/
+    static final int END = 7;
+
+    private static final int INITIAL_BYTES = 1 << 20;
+
+    private final FileChannel channel;
+    private MappedByteBuffer map;
+
+    /*The board as the recorded moves left it.*/
+    private final Board board;
+    private final int blockBytes;
+    private long moves = 0;
+
+    /**
+     * Creates a recording, replacing any file that is already there
+     * @param file Recording file; missing parent directories are created
+     * @param width Board width
+     * @param height Board height, at most 100
+     * @throws IOException If the file can't be created
+     */
+    public GameRecorder(File file, int width, int height) throws IOException {
+        if (height > 100) {
+            throw new IllegalArgumentException("Can't record boards higher than 100 rows: " + height);
+        }
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null) {
+            dir.mkdirs();
+        }
+        board = new Board(width, height);
+        blockBytes = 4 * height + KEYFRAME * RECORD_BYTES;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, INITIAL_BYTES);
+        map.putInt(0, MAGIC);
+        map.putInt(4, VERSION);
+        map.putInt(8, width);
+        map.putInt(12, height);
+        map.putInt(16, KEYFRAME);
+        map.putLong(MOVES_AT, 0);
+    }
+
+    /**
+     * Records a placement. The block must fit where it is.
+     * @param type Block type
+     * @param rot Rotation
+     * @param x Block x
+     * @param y Block y, where it settled
+     * @param tick Engine time of the placement
+     * @return Lines the placement cleared
+     */
+    public int record(int type, int rot, int x, int y, int tick) {
+        int offset = begin();
+        PlacementTable.get(type, rot).fill(board, x, y);
+        int lines = board.clearLines();
+        put(offset, type << 5 | rot << 3 | lines, x, y, tick);
+        return lines;
+    }
+
+    /**
+     * Records the end of a game; the next placement starts on an empty board
+     * @param tick Engine time of the game over
+     */
+    public void gameOver(int tick) {
+        int offset = begin();
+        board.clear();
+        put(offset, END << 5, 0, 0, tick);
+    }
+
+    /**
+     * Number of records so far, game overs included
+     * @return Move count
+     */
+    public long getMoves() {
+        return moves;
+    }
+
+    /**
+     * Writes the recording to disk and closes the file
+     * @throws IOException If the file can't be written
+     */
+    @Override
+    public void close() throws IOException {
+        map.force();
+        channel.close();
+    }
+
+    /*Offset of the next record, after writing the keyframe before it if one is due.*/
+    private int begin() {
+        long block = moves / KEYFRAME;
+        int slot = (int) (moves % KEYFRAME);
+        long keyframe = HEADER_BYTES + block * blockBytes;
+        long offset = keyframe + 4 * board.height + (long) slot * RECORD_BYTES;
+        ensure(offset + RECORD_BYTES);
+        if (slot == 0) {
+            for (int y = 0; y < board.height; y++) {
+                map.putInt((int) keyframe + 4 * y, board.getRow(y));
+            }
+        }
+        return (int) offset;
+    }
+
+    private void put(int offset, int head, int x, int y, int tick) {
+        map.put(offset, (byte) head);
+        map.put(offset + 1, (byte) x);
+        map.put(offset + 2, (byte) y);
+        map.put(offset + 3, (byte) 0);
+        map.putInt(offset + 4, tick);
+        map.putLong(MOVES_AT, ++moves);
+    }
+
+    /*Maps a larger part of the file when the next record doesn't fit.*/
+    private void ensure(long end) {
+        if (end <= map.capacity()) {
+            return;
+        }
+        long size = Math.min(Math.max(2L * map.capacity(), end), Integer.MAX_VALUE);
+        if (end > size) {
+            throw new IllegalStateException("Recording is full after " + moves + " moves");
+        }
+        try {
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't grow the recording", e);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.fermanis.aitetris;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a recording made by GameRecorder. Every move can be looked up by
+ * its number, and boardAt() rebuilds the board before any move from the
+ * nearest keyframe, replaying at most GameRecorder.KEYFRAME - 1 placements,
+ * so seeking in a game of a million pieces costs the same as in a short one.
+ *
+ * The file is mapped read only, so opening it reads nothing but the header.
+ * A recording that is still being written can be read too; it shows the
+ * moves recorded when it was opened.
+ */
+public class GameReplay implements Closeable {
+
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+
+    public final int width, height;
+    private final int keyframe;
+    private final int blockBytes;
+    private final long moves;
+
+    /**
+     * Opens a recording
+     * @param file File written by a GameRecorder
+     * @throws IOException If the file can't be read or isn't a recording
+     */
+    public GameReplay(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        if (map.capacity() < GameRecorder.HEADER_BYTES || map.getInt(0) != GameRecorder.MAGIC) {
+            channel.close();
+            throw new IOException(file + " is not a game recording");
+        }
+        if (map.getInt(4) != GameRecorder.VERSION) {
+            channel.close();
+            throw new IOException(file + " has recording format " + map.getInt(4)
+                    + ", expected " + GameRecorder.VERSION);
+        }
+        width = map.getInt(8);
+        height = map.getInt(12);
+        keyframe = map.getInt(16);
+        blockBytes = 4 * height + keyframe * GameRecorder.RECORD_BYTES;
+        moves = map.getLong(GameRecorder.MOVES_AT);
+    }
+
+    /**
+     * Number of recorded moves, game overs included
+     * @return Move count
+     */
+    public long getMoves() {
+        return moves;
+    }
+
+    /**
+     * Block type of a move
+     * @param move Move number, from 0
+     * @return Block type, or -1 for a game over
+     */
+    public int type(long move) {
+        int type = head(move) >>> 5;
+        return type == GameRecorder.END ? -1 : type;
+    }
+
+    public boolean isGameOver(long move) {
+        return head(move) >>> 5 == GameRecorder.END;
+    }
+
+    public int rotation(long move) {
+        return head(move) >>> 3 & 3;
+    }
+
+    public int x(long move) {
+        return map.get(offset(move) + 1);
+    }
+
+    public int y(long move) {
+        return map.get(offset(move) + 2);
+    }
+
+    /**
+     * Lines a move cleared
+     * @param move Move number, from 0
+     * @return 0 to 4
+     */
+    public int lines(long move) {
+        return head(move) & 7;
+    }
+
+    /**
+     * Engine time of a move, see the engine's recorder hook
+     * @param move Move number, from 0
+     * @return Tick
+     */
+    public int tick(long move) {
+        return map.getInt(offset(move) + 4);
+    }
+
+    /**
+     * Board before a move
+     * @param move Move number, from 0 to getMoves() (the board after the last move)
+     * @return New board
+     */
+    public Board boardAt(long move) {
+        Board board = new Board(width, height);
+        boardAt(move, board);
+        return board;
+    }
+
+    /**
+     * Board before a move, written into an existing board
+     * @param move Move number, from 0 to getMoves() (the board after the last move)
+     * @param board Board of the recording's size to overwrite
+     */
+    public void boardAt(long move, Board board) {
+        if (move < 0 || move > moves) {
+            throw new IndexOutOfBoundsException("Move " + move + " of " + moves);
+        }
+        if (move == 0) {
+            board.clear();
+            return;
+        }
+        // The keyframe at the end of the recording may not have been written yet.
+        long block = Math.min(move, moves - 1) / keyframe;
+        int at = GameRecorder.HEADER_BYTES + (int) (block * blockBytes);
+        int[] rows = new int[height];
+        for (int y = 0; y < height; y++) {
+            rows[y] = map.getInt(at + 4 * y);
+        }
+        board.setRows(rows);
+
+        for (long m = block * keyframe; m < move; m++) {
+            if (isGameOver(m)) {
+                board.clear();
+            } else {
+                PlacementTable.get(type(m), rotation(m)).fill(board, x(m), y(m));
+                board.clearLines();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private int head(long move) {
+        return map.get(offset(move)) & 0xFF;
+    }
+
+    private int offset(long move) {
+        if (move < 0 || move >= moves) {
+            throw new IndexOutOfBoundsException("Move " + move + " of " + moves);
+        }
+        return GameRecorder.HEADER_BYTES + (int) (move / keyframe * blockBytes + 4 * height
+                + move % keyframe * GameRecorder.RECORD_BYTES);
+    }
+}
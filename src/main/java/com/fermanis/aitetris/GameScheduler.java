@@ -0,0 +1,54 @@
+package com.fermanis.aitetris;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Timers for the game: the engine's step timer, line fade and game over
+ * reset, the panel's repaint and the key repeat all run as tasks on one
+ * ScheduledExecutorService instead of each owning a thread. Several engines
+ * may share a scheduler; each engine still runs its own updates one at a
+ * time.
+ */
+public final class GameScheduler {
+
+    private GameScheduler() {
+    }
+
+    /**
+     * Creates a scheduler with daemon threads
+     * @param threads Number of threads, at least 1
+     * @return A new scheduler; shut it down when its games are over
+     */
+    public static ScheduledExecutorService create(int threads) {
+        return Executors.newScheduledThreadPool(threads, daemonThreads("game-scheduler"));
+    }
+
+    /**
+     * Thread factory for daemon threads, so a pool never keeps the JVM alive
+     * @param name Prefix of the thread names
+     * @return A new factory
+     */
+    static ThreadFactory daemonThreads(String name) {
+        return new DaemonThreadFactory(name);
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private static final AtomicInteger poolNumber = new AtomicInteger(1);
+        private final String name;
+        private final int pool = poolNumber.getAndIncrement();
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        DaemonThreadFactory(String name) {
+            this.name = name;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, name + "-" + pool + "-" + threadNumber.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -91,6 +91,14 @@ public class GameWindow extends JFrame {
     }
 
 
+    /*Stops the game and disposes the window. The game can't be
+     * played again afterwards.*/
+    public void close() {
+        t.engine.shutdown();
+        dispose();
+    }
+
+
     /*Creates a fullscreen window from an old window.*/
     public static GameWindow enterFullScreen(GameWindow win, boolean useSounds, boolean useAI, boolean trainAI) {
         win = new GameWindow(true, win, useSounds, useAI, trainAI );
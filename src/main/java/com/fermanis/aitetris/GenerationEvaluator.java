@@ -0,0 +1,328 @@
+package com.fermanis.aitetris;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+
+/**
+ * Evaluates a whole generation of the genetic algorithm in parallel.
+ * Every (candidate, run) game is played on its own SimulationEngine and
+ * TetrisAI, so games share nothing and can run on any core. Once all
+ * population x runs_per_eval games are done the scores are handed to
+ * GeneticAIAlgorithm.sendScores(), which calls newGeneration() once.
+ *
+ * Every worker thread keeps a TranspositionCache of genetic_algo.cache_entries
+ * entries (0 turns it off) that its games share. Cache keys include the
+ * weights, so a candidate that survives into the next generation can reuse
+ * what it searched before. Searches deeper than two pieces or with a beam
+ * don't use the cache, so with those no caches are made.
+ *
+ * Games draw their pieces from genetic_algo.piece_source ("uniform", "bag" or
+ * "file:" and a path). With genetic_algo.common_seeds every candidate plays
+ * the same seeds, run for run (common random numbers), so differences in
+ * fitness come from the weights rather than from luckier pieces; otherwise
+ * every game gets a fresh seed. Every score is recorded with its seed as
+ * soon as it is collected, so a run resumed from the checkpoint log (see
+ * CheckpointLog) skips the games already played.
+ *
+ * The number of games adapts to how noisy the scores are: after
+ * runs_per_eval games each, candidates whose confidence interval still
+ * straddles the top half line play more, up to max_runs_per_eval, while
+ * the clear winners and losers don't.
+ *
+ * Fitness games can be given a budget, genetic_algo.limits: a piece cap, a
+ * line cap and a wall time cap, so a strong candidate can't hold up a
+ * generation forever; a capped game scores what it had. With a piece cap
+ * and genetic_algo.racing on, a candidate's games also stop as soon as it
+ * can't make the top half any more, see FitnessRace. The games it then
+ * skips get no score at all, so its fitness is the mean of the games it
+ * did play.
+ */
+public class GenerationEvaluator {
+
+    private static final Logger log = LoggerFactory.getLogger(GenerationEvaluator.class);
+
+    /*Result of a game a race skipped; it is never recorded.*/
+    static final int SKIPPED = -1;
+
+    private final GeneticAIAlgorithm genetic;
+    private final ExecutorService pool;
+    private final int threads;
+    private final int cacheEntries;
+    private final String pieceSource;
+    // A piece file, loaded once; every game plays a copy. Null for random sources.
+    private final ReplayPieceSource replay;
+    private int maxPieces, maxLines;
+    private long maxGameMillis;
+    private boolean racing;
+    private boolean commonSeeds;
+    private final Random seeds = new Random();
+    private final List<TranspositionCache> caches = new CopyOnWriteArrayList<TranspositionCache>();
+    private final ThreadLocal<TranspositionCache> threadCache = new ThreadLocal<TranspositionCache>() {
+        @Override
+        protected TranspositionCache initialValue() {
+            if (cacheEntries <= 0) {
+                return null;
+            }
+            TranspositionCache cache = new TranspositionCache(cacheEntries);
+            caches.add(cache);
+            return cache;
+        }
+    };
+
+    /**
+     * Creates an evaluator using the genetic_algo.eval_threads setting
+     * (0 or less means one thread per core)
+     * @param genetic The genetic algorithm to evaluate
+     */
+    public GenerationEvaluator(GeneticAIAlgorithm genetic) {
+        this(genetic, ConfigurationManager.getIntSetting("genetic_algo.eval_threads", 0),
+                ConfigurationManager.getIntSetting("genetic_algo.cache_entries", 1 << 16));
+    }
+
+    /**
+     * Creates an evaluator with a capped number of threads
+     * @param genetic The genetic algorithm to evaluate
+     * @param maxThreads Thread cap; 0 or less means one thread per core
+     */
+    public GenerationEvaluator(GeneticAIAlgorithm genetic, int maxThreads) {
+        this(genetic, maxThreads, 0);
+    }
+
+    /**
+     * Creates an evaluator with a capped number of threads and a search cache per thread
+     * @param genetic The genetic algorithm to evaluate
+     * @param maxThreads Thread cap; 0 or less means one thread per core
+     * @param cacheEntries Cache size per thread; 0 or less means no cache, and
+     * so does an ai.search_depth or ai.beam_width whose search doesn't use it
+     */
+    public GenerationEvaluator(GeneticAIAlgorithm genetic, int maxThreads, int cacheEntries) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        this.genetic = genetic;
+        this.threads = maxThreads > 0 ? Math.min(maxThreads, cores) : cores;
+        this.cacheEntries = TetrisAI.configuredCacheEntries(cacheEntries);
+        this.pieceSource = ConfigurationManager.getSetting("genetic_algo.piece_source", "uniform");
+        PieceSource configured = PieceSource.forName(pieceSource, 0);
+        this.replay = configured instanceof ReplayPieceSource ? (ReplayPieceSource) configured : null;
+        this.maxPieces = ConfigurationManager.getIntSetting("genetic_algo.limits.max_pieces", 0);
+        this.maxLines = ConfigurationManager.getIntSetting("genetic_algo.limits.max_lines", 0);
+        this.maxGameMillis = ConfigurationManager.getIntSetting("genetic_algo.limits.max_game_ms", 0);
+        this.racing = ConfigurationManager.getBooleanSetting("genetic_algo.racing", false);
+        this.commonSeeds = ConfigurationManager.getBooleanSetting("genetic_algo.common_seeds", true);
+        this.pool = Executors.newFixedThreadPool(threads, GameScheduler.daemonThreads("ga-eval"));
+    }
+
+    /**
+     * Number of games played at the same time
+     * @return Thread count of the pool
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the budget of every fitness game, replacing genetic_algo.limits
+     * @param maxPieces Pieces per game, 0 for no limit
+     * @param maxLines Lines per game, 0 for no limit
+     * @param maxGameMillis Wall time per game, 0 for no limit
+     */
+    public void setLimits(int maxPieces, int maxLines, long maxGameMillis) {
+        this.maxPieces = maxPieces;
+        this.maxLines = maxLines;
+        this.maxGameMillis = maxGameMillis;
+    }
+
+    /**
+     * Turns racing on or off, replacing genetic_algo.racing. Racing needs a
+     * piece limit and top half selection; without them every game is played.
+     * @param racing Stop playing candidates that can't make the top half?
+     */
+    public void setRacing(boolean racing) {
+        this.racing = racing;
+    }
+
+    /**
+     * Plays every game of the current generation, then makes the next generation
+     */
+    public void evaluateGeneration() {
+        long start = System.currentTimeMillis();
+        int[][] runScores = playGeneration();
+        int games = 0;
+        for (int[] runs : runScores) {
+            games += runs.length;
+        }
+        log.info("Generation " + genetic.generation + ": " + games
+                + " games on " + threads + " threads in " + (System.currentTimeMillis() - start) + " ms"
+                + cacheStats());
+        genetic.sendScores(runScores);
+    }
+
+    /**
+     * Plays every game of the current generation that hasn't been scored yet,
+     * recording each score with the genetic algorithm but not handing it the
+     * generation. Every candidate plays runs_per_eval games first; then,
+     * while some candidates can't be ranked against the top half line yet
+     * (see FitnessStats.undecided()), they play one more, up to
+     * max_runs_per_eval.
+     * @return Scores indexed by [candidate][run], one per game played; games
+     * a race skipped are left out
+     */
+    public int[][] playGeneration() {
+        int population = genetic.getPopulation();
+        int runs = genetic.currentRunTotal;
+        long[] common = commonSeeds ? genetic.gameSeeds() : null;
+        FitnessRace race = racing && maxPieces > 0 && genetic.useTopHalf
+                ? new FitnessRace(population, runs, population / 2,
+                        SimulationEngine.maxScore(SimulationEngine.WIDTH, maxPieces, maxLines))
+                : null;
+
+        List<int[]> games = new ArrayList<int[]>(population * runs);
+        for (int candidate = 0; candidate < population; candidate++) {
+            for (int run = 0; run < runs; run++) {
+                if (!genetic.isScored(candidate, run)) {
+                    games.add(new int[]{candidate, run});
+                } else if (race != null) {
+                    race.finish(candidate, run, genetic.runScores[candidate][run]);
+                }
+            }
+        }
+        play(games, common, race);
+
+        // Only candidates a race eliminated skip games, and they play no more,
+        // so everyone else has scores for exactly their first played[c] runs.
+        int[][] runScores = new int[population][];
+        int[] played = new int[population];
+        for (int candidate = 0; candidate < population; candidate++) {
+            runScores[candidate] = genetic.playedScores(candidate);
+            played[candidate] = runScores[candidate].length;
+        }
+        while (true) {
+            games.clear();
+            for (int candidate : FitnessStats.undecided(runScores, played, population / 2)) {
+                if (played[candidate] < genetic.maxRunTotal && (race == null || !race.isEliminated(candidate))) {
+                    games.add(new int[]{candidate, played[candidate]});
+                }
+            }
+            if (games.isEmpty()) {
+                break;
+            }
+            play(games, common, null);
+            for (int[] game : games) {
+                runScores[game[0]] = genetic.playedScores(game[0]);
+                played[game[0]] = runScores[game[0]].length;
+            }
+        }
+
+        return runScores;
+    }
+
+    /*Plays games in parallel and records their scores. Each game is a
+     * {candidate, run} pair; with common seeds a run's pieces are the same
+     * for every candidate, otherwise every game gets fresh ones.*/
+    private void play(List<int[]> games, long[] common, final FitnessRace race) {
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>(games.size());
+        long[] gameSeeds = new long[games.size()];
+        // Written by each game's thread, read once its future is done.
+        final long[] nanos = new long[games.size()];
+        for (int i = 0; i < games.size(); i++) {
+            final int candidate = games.get(i)[0], run = games.get(i)[1], index = i;
+            // Snapshot the weights; newGeneration() overwrites chromosomes in place.
+            final double[] weights = genetic.chromosomes[candidate].clone();
+            final long gameSeed = common != null ? common[run] : seeds.nextLong();
+            gameSeeds[i] = gameSeed;
+            results.add(pool.submit(new Callable<Integer>() {
+                public Integer call() {
+                    long start = System.nanoTime();
+                    int score;
+                    if (race == null) {
+                        score = play(weights, gameSeed, null);
+                    } else {
+                        // A candidate that is out doesn't play its remaining games.
+                        if (race.isEliminated(candidate)) {
+                            return SKIPPED;
+                        }
+                        score = play(weights, gameSeed, race.condition(candidate, run));
+                        race.finish(candidate, run, score);
+                    }
+                    nanos[index] = System.nanoTime() - start;
+                    return score;
+                }
+            }));
+        }
+
+        try {
+            for (int i = 0; i < results.size(); i++) {
+                int score = results.get(i).get();
+                if (score == SKIPPED) {
+                    continue;
+                }
+                genetic.evalNanos[games.get(i)[0]] += nanos[i];
+                genetic.recordRun(games.get(i)[0], games.get(i)[1], gameSeeds[i], score);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel(results);
+            throw new RuntimeException("Generation evaluation interrupted", e);
+        } catch (ExecutionException e) {
+            cancel(results);
+            throw new RuntimeException("Fitness game failed", e.getCause());
+        }
+    }
+
+    /*One fitness game, within the budget.*/
+    private int play(double[] weights, long gameSeed, SimulationEngine.StopCondition stop) {
+        TetrisAI ai = new TetrisAI();
+        GeneticAIAlgorithm.applyWeights(ai, weights);
+        ai.setCache(threadCache.get());
+        SimulationEngine game = new SimulationEngine(replay != null ? replay.copy() : PieceSource.forName(pieceSource, gameSeed));
+        game.setLimits(maxPieces, maxLines, maxGameMillis);
+        game.setStopCondition(stop);
+        int score = game.play(ai);
+        if (game.stopped) {
+            Metrics.GAMES_STOPPED.increment();
+        }
+        return score;
+    }
+
+    /**
+     * Evaluates several generations in a row
+     * @param generations How many generations to evaluate
+     */
+    public void evaluate(int generations) {
+        for (int i = 0; i < generations; i++) {
+            evaluateGeneration();
+        }
+    }
+
+    /**
+     * Stops the worker threads
+     */
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    /*Hit rate over all thread caches so far, for the log.*/
+    private String cacheStats() {
+        long hits = 0, lookups = 0;
+        for (TranspositionCache cache : caches) {
+            hits += cache.getHits();
+            lookups += cache.getHits() + cache.getMisses();
+        }
+        return lookups == 0 ? "" : String.format(", cache hit rate %.1f%%", 100.0 * hits / lookups);
+    }
+
+    private static void cancel(List<Future<Integer>> games) {
+        for (Future<Integer> game : games) {
+            game.cancel(true);
+        }
+    }
+}
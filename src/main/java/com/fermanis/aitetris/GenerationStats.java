@@ -0,0 +1,208 @@
+package com.fermanis.aitetris;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Streams the statistics of a training run to two CSV files in a
+ * directory, one row per record, for charting runs of any length without
+ * scraping the log:
+ *
+ * <pre>
+ * generations.csv = time,generation,population,games,min,median,max,mean,std_dev,millis
+ * candidates.csv  = generation,candidate,score,runs,ci95,std_dev,eval_ms,w0,...,w6,scores
+ * </pre>
+ *
+ * scores holds the candidate's run scores, separated by spaces. Files that
+ * already exist are appended to, so a resumed run carries on in the same
+ * files; a generation that was resumed may then appear twice.
+ *
+ * Callers never wait for the disk: rows go into a bounded queue that a
+ * writer thread of its own drains and writes in batches, flushing after
+ * each. If the writer falls that far behind, rows are dropped and counted
+ * in Metrics.STATS_DROPPED rather than holding up training.
+ */
+public class GenerationStats implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(GenerationStats.class);
+
+    static final String GENERATIONS_FILE = "generations.csv", CANDIDATES_FILE = "candidates.csv";
+
+    private static final String GENERATIONS_HEADER = "time,generation,population,games,min,median,max,mean,std_dev,millis";
+    private static final String CANDIDATES_HEADER = "generation,candidate,score,runs,ci95,std_dev,eval_ms,w0,w1,w2,w3,w4,w5,w6,scores";
+
+    /*Rows the writer may fall behind by.*/
+    private static final int QUEUE_ROWS = 1 << 16;
+
+    /*A row and the file it goes to; STOP ends the writer.*/
+    private static final class Row {
+        final boolean generation;
+        final String text;
+
+        Row(boolean generation, String text) {
+            this.generation = generation;
+            this.text = text;
+        }
+    }
+
+    private static final Row STOP = new Row(false, null);
+
+    private final BlockingQueue<Row> queue = new ArrayBlockingQueue<Row>(QUEUE_ROWS);
+    private final Writer generations, candidates;
+    private final Thread writer;
+
+    /**
+     * Opens the files, writing their headers if they are new
+     * @param dir Directory for the files; created if missing
+     * @throws IOException If a file can't be opened
+     */
+    public GenerationStats(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        generations = open(new File(dir, GENERATIONS_FILE), GENERATIONS_HEADER);
+        candidates = open(new File(dir, CANDIDATES_FILE), CANDIDATES_HEADER);
+        writer = new Thread(new Runnable() {
+            public void run() {
+                drain();
+            }
+        }, "ga-stats");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues the summary of a scored generation
+     * @param generation Generation index
+     * @param scores Fitness of every candidate
+     * @param games Fitness games played
+     * @param millis Wall time of the generation
+     */
+    public void generation(int generation, int[] scores, int games, long millis) {
+        int[] sorted = scores.clone();
+        Arrays.sort(sorted);
+        int n = sorted.length;
+        offer(new Row(true, String.format(Locale.ROOT, "%d,%d,%d,%d,%d,%d,%d,%.1f,%.1f,%d",
+                System.currentTimeMillis(), generation, n, games, sorted[0], sorted[n / 2], sorted[n - 1],
+                FitnessStats.mean(sorted, n), Math.sqrt(FitnessStats.variance(sorted, n)), millis)));
+    }
+
+    /**
+     * Queues the record of one scored candidate
+     * @param generation Generation index
+     * @param candidate Candidate index
+     * @param score Fitness
+     * @param weights Chromosome
+     * @param runScores Score of every game it played
+     * @param evalNanos Time its games took, summed over threads
+     */
+    public void candidate(int generation, int candidate, int score, double[] weights, int[] runScores, long evalNanos) {
+        int runs = runScores.length;
+        double ci = FitnessStats.confidence(runScores, runs);
+        StringBuilder row = new StringBuilder(String.format(Locale.ROOT, "%d,%d,%d,%d,%s,%.1f,%d",
+                generation, candidate, score, runs, Double.isInfinite(ci) ? "" : String.format(Locale.ROOT, "%.1f", ci),
+                Math.sqrt(FitnessStats.variance(runScores, runs)), evalNanos / 1000000));
+        for (double weight : weights) {
+            row.append(',').append(weight);
+        }
+        row.append(',');
+        for (int run = 0; run < runs; run++) {
+            if (run > 0) {
+                row.append(' ');
+            }
+            row.append(runScores[run]);
+        }
+        offer(new Row(false, row.toString()));
+    }
+
+    /**
+     * Writes the rows queued so far and closes the files
+     * @throws IOException If the files can't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            queue.put(STOP);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            generations.close();
+        } finally {
+            candidates.close();
+        }
+    }
+
+    private void offer(Row row) {
+        if (!queue.offer(row)) {
+            Metrics.STATS_DROPPED.increment();
+        }
+    }
+
+    /*Writer thread: writes whatever is queued, then flushes, until STOP.*/
+    private void drain() {
+        List<Row> batch = new ArrayList<Row>();
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+                for (Row row : batch) {
+                    if (row == STOP) {
+                        flush();
+                        return;
+                    }
+                    Writer out = row.generation ? generations : candidates;
+                    out.write(row.text);
+                    out.write('\n');
+                }
+                batch.clear();
+                flush();
+            }
+        } catch (InterruptedException e) {
+            // Closing without STOP; whatever was written stays.
+        } catch (IOException e) {
+            log.error("Can't write generation statistics, no longer recording them", e);
+            if (batch.contains(STOP)) {
+                return;
+            }
+            // Keep taking rows so callers never find the queue full.
+            try {
+                while (queue.take() != STOP) {
+                }
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        generations.flush();
+        candidates.flush();
+    }
+
+    private static Writer open(File file, String header) throws IOException {
+        boolean exists = file.length() > 0;
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+        if (!exists) {
+            out.write(header);
+            out.write('\n');
+            out.flush();
+        }
+        return out;
+    }
+}
@@ -3,9 +3,7 @@ package com.fermanis.aitetris;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
-import org.springframework.util.ResourceUtils;
 
 import java.io.*;
 import java.util.*;
@@ -23,17 +21,15 @@ public class GeneticAIAlgorithm {
 
     // How many candidates are there in a generation?
     // Must be a multiple of 4.
-    @Value("${genetic_algo.population}")
-    private int population = 16;
+    private int population = ConfigurationManager.getIntSetting("genetic_algo.population", 16);
 
     // How often do chromosomes mutate?
-    @Value("${genetic_algo.mutation_rate}")
-    private double mutation_rate = 0.05;
+    private double mutation_rate = ConfigurationManager.getDoubleSetting("genetic_algo.mutuation_rate", 0.05);
 
     // ****** Fitness Function ******* //
     // For Picking Winners - use Top scoring half of population?
     // If False - use random head-to-head pairings to determine winners.
-    private boolean useTopHalf = true;
+    boolean useTopHalf = ConfigurationManager.getBooleanSetting("genetic_algo.reproduction.useTopHalf", true);
 
     /* *** Reproduction options:*****
      * if useCrossover is true, crossover is used to generate children
@@ -41,9 +37,9 @@ public class GeneticAIAlgorithm {
      * if useTwinPrevention is true, an offspring cannot have the same weights as a sibling
      * if neither is true, a "coin-flip" is used per gene to pick which parent the gene comes from
      */
-    boolean useCrossover = true;
-    boolean useParentsAverage = false;
-    boolean useTwinPrevention = true;
+    boolean useCrossover = ConfigurationManager.getBooleanSetting("genetic_algo.reproduction.useCrossover", true);
+    boolean useParentsAverage = ConfigurationManager.getBooleanSetting("genetic_algo.reproduction.useParentsAverage", false);
+    boolean useTwinPrevention = ConfigurationManager.getBooleanSetting("genetic_algo.reproduction.useTwinPrevention", true);
 
 
     // ********** Application Configuration *** //
@@ -55,22 +51,30 @@ public class GeneticAIAlgorithm {
     int generation = 1;
 
     // How many runs per evaluation?
-    int currentRunTotal = 3;
+    int currentRunTotal = ConfigurationManager.getIntSetting("genetic_algo.runs_per_eval", 3);
 
-    // Save the generation so it can be loaded on subsequent runs?
-    boolean serializeGeneration = true;
+    // Up to how many runs GenerationEvaluator plays for candidates it can't rank yet
+    int maxRunTotal = Math.max(currentRunTotal, ConfigurationManager.getIntSetting("genetic_algo.max_runs_per_eval", 0));
 
-    // Load the Generation from a previous run?
-    boolean useLoadedGeneration = false;
+    // Save the generation and its scores to the checkpoint log as the run goes?
+    boolean serializeGeneration = ConfigurationManager.getBooleanSetting("genetic_algo.serialize_generation", true);
+
+    // Resume from the checkpoint log of a previous run?
+    boolean useLoadedGeneration = ConfigurationManager.getBooleanSetting("genetic_algo.use_loadedGeneration", false);
+
+    // Checkpoint log, relative to the working directory. See CheckpointLog.
+    String checkpointFile = ConfigurationManager.getSetting("genetic_algo.checkpoint_file", "generations/checkpoint.bin");
+
+    // Directory for per generation and per candidate statistics, see GenerationStats. Empty = off.
+    String statsDir = ConfigurationManager.getSetting("genetic_algo.stats_dir", "");
 
     // Load a preset Starting Population?
-    boolean usePreset = true;
+    boolean usePreset = ConfigurationManager.getBooleanSetting("genetic_algo.use_preset_population", true);
 
 
     // *********** Constants ************* //
 
-    private static final String generationFile = "classpath:generations/generation.ser";
-    private static final String presetFile = "classpath:generations/presetGeneration.csv";
+    private static final String presetFile = "/generations/presetGeneration.csv";
 
     // A chromosome is just an array of 7 doubles.
     double[][] chromosomes = new double[population][7];
@@ -82,12 +86,37 @@ public class GeneticAIAlgorithm {
     // Application hooks
     Random rnd;
 
+    // Seed of rnd at the start of this generation, kept in the checkpoint log so a resumed run breeds the same way
+    long seed;
+
     TetrisEngine tetris;
     int current = 0;
     int currentRun = 0;
-    int[] currentScores = new int[currentRunTotal];
     double currentRunSum = 0.0;
 
+    // Scores of this generation's runs so far, indexed by [candidate][run]
+    int[][] runScores = new int[population][maxRunTotal];
+    boolean[][] scored = new boolean[population][maxRunTotal];
+
+    // Time each candidate's games took this generation, summed over threads
+    long[] evalNanos = new long[population];
+
+    private CheckpointLog checkpoint;
+    private boolean generationRecorded = false;
+    private GenerationStats stats;
+
+    // When this generation started, for Metrics.GENERATION_MILLIS
+    private long generationStart = System.nanoTime();
+
+    /**
+     * Constructor for headless use, e.g. with a SimulationEngine
+     *
+     * @param useGenetic
+     */
+    public GeneticAIAlgorithm(boolean useGenetic) {
+        this(null, useGenetic);
+    }
+
     /**
      * Constructor
      *
@@ -104,24 +133,49 @@ public class GeneticAIAlgorithm {
 
         useGeneticAI = useGenetic;
 
-        if (useLoadedGeneration) {
-            chromosomes = loadGeneration();
+        if (useLoadedGeneration && resume()) {
+            log.info("Resumed generation " + generation + " from " + checkpointFile);
         } else if (usePreset) {
             chromosomes = loadPreset();
+            startGeneration(new Random().nextLong());
         } else {
             // Randomize starting chromosomes with values between -5 and 5.
-            rnd = new Random();
-            for (int i = 0; i < population; i++) {
-                for (int j = 0; j < 7; j++) {
-                    chromosomes[i][j] = rnd.nextDouble() * 10 - 5;
-                }
-            }
+            randomize(new Random());
         }
 
     }
 
 
+    /**
+     * Starts over from a random population, with weights between -5 and 5,
+     * and seeds reproduction from the given generator
+     *
+     * @param random Generator for the population and for reproduction
+     */
+    void randomize(Random random) {
+        for (int i = 0; i < population; i++) {
+            for (int j = 0; j < 7; j++) {
+                chromosomes[i][j] = random.nextDouble() * 10 - 5;
+            }
+        }
+        startGeneration(random.nextLong());
+    }
+
+    /**
+     * Seeds the generator the next newGeneration() breeds with
+     *
+     * @param seed Seed, recorded with the generation in the checkpoint log
+     */
+    void startGeneration(long seed) {
+        this.seed = seed;
+        rnd = new Random(seed);
+    }
+
     void newGeneration() {
+        long millis = (System.nanoTime() - generationStart) / 1000000;
+        Metrics.GENERATION_MILLIS.record(millis);
+        generationStart = System.nanoTime();
+        recordStats(millis);
         log.error("************* NEW GENERATION *****************");
         // Calculate average fitness
         int[] sortedScores = new int[population];
@@ -204,14 +258,7 @@ public class GeneticAIAlgorithm {
                 if (useCrossover) {
                     // Prevents parents from having identical offspring (twins)
                     while (twinPrevention.contains(crossover)) {
-                        try {
-                            if (rnd == null) {
-                                rnd = new Random();
-                            }
-                            crossover = rnd.nextInt(5) + 1;
-                        } catch (Exception e) {
-                            log.error("Exception occurred when performing crossover. Exception: ", e);
-                        }
+                        crossover = rnd.nextInt(5) + 1;
                     }
                     twinPrevention.add(crossover);
 
@@ -283,12 +330,14 @@ public class GeneticAIAlgorithm {
             }
         }
 
-        if (serializeGeneration) {
-            saveGeneration(chromosomes);
-        }
         log.info("*************** Evaluating Next Generation *******************");
         generation++;
         current = 0;
+        runScores = new int[population][maxRunTotal];
+        scored = new boolean[population][maxRunTotal];
+        evalNanos = new long[population];
+        generationRecorded = false;
+        startGeneration(rnd.nextLong());
 
     }
 
@@ -296,13 +345,18 @@ public class GeneticAIAlgorithm {
         if (!useGeneticAI)
             return;
 
-        ai._TOUCHING_EDGES = chromosomes[current][0];
-        ai._TOUCHING_WALLS = chromosomes[current][1];
-        ai._TOUCHING_FLOOR = chromosomes[current][2];
-        ai._HEIGHT = chromosomes[current][3];
-        ai._HOLES = chromosomes[current][4];
-        ai._BLOCKADE = chromosomes[current][5];
-        ai._CLEAR = chromosomes[current][6];
+        applyWeights(ai, chromosomes[current]);
+    }
+
+    // Copy a chromosome into the AI's weights.
+    static void applyWeights(TetrisAI ai, double[] chromosome) {
+        ai._TOUCHING_EDGES = chromosome[0];
+        ai._TOUCHING_WALLS = chromosome[1];
+        ai._TOUCHING_FLOOR = chromosome[2];
+        ai._HEIGHT = chromosome[3];
+        ai._HOLES = chromosome[4];
+        ai._BLOCKADE = chromosome[5];
+        ai._CLEAR = chromosome[6];
     }
 
     void sendScore(int score) {
@@ -313,6 +367,8 @@ public class GeneticAIAlgorithm {
         //System.out.println(s);
 
         log.debug("Generation: " + generation + "; Candidate: " + (current + 1) + "; Run: " + (currentRun + 1) + "; Score: " + score);
+        // The engine doesn't expose its piece seed, so the log records 0.
+        recordRun(current, currentRun, 0, score);
         currentRunSum += score;
         currentRun++;
 
@@ -329,6 +385,290 @@ public class GeneticAIAlgorithm {
             newGeneration();
     }
 
+    /**
+     * Records the scores of every run of every candidate at once, then makes
+     * the next generation. This replaces one sendScore() call per game when a
+     * whole generation is evaluated together (see GenerationEvaluator).
+     *
+     * @param runScores Scores indexed by [candidate][run]
+     */
+    void sendScores(int[][] runScores) {
+        if (!useGeneticAI)
+            return;
+
+        recordScores(runScores);
+        newGeneration();
+    }
+
+    /**
+     * Records the average score of every candidate, like sendScores(), but
+     * leaves making the next generation to the caller. In between, best()
+     * picks from the scored generation.
+     *
+     * @param runScores Scores indexed by [candidate][run]
+     */
+    void recordScores(int[][] runScores) {
+        for (int i = 0; i < population; i++) {
+            int runs = runScores[i].length;
+            scores[i] = (int) Math.round(FitnessStats.mean(runScores[i], runs));
+            // One run has no interval.
+            double ci = FitnessStats.confidence(runScores[i], runs);
+            log.info("Generation: " + generation + "; Candidate: " + (i + 1) + "; Avg Score = " + scores[i]
+                    + " +/- " + (Double.isInfinite(ci) ? "n/a" : String.valueOf(Math.round(ci)))
+                    + " (" + runs + " runs, stdDev " + Math.round(Math.sqrt(FitnessStats.variance(runScores[i], runs)))
+                    + ")  |  " + printWeights(chromosomes[i], true));
+        }
+        current = population;
+        currentRun = 0;
+        currentRunSum = 0;
+    }
+
+    /**
+     * Records the score of one game of the current generation, appending it
+     * to the checkpoint log when serializing. The first run of a generation
+     * also logs the generation itself.
+     *
+     * @param candidate Candidate index
+     * @param run Run index
+     * @param gameSeed Seed of the game's pieces, 0 if unknown
+     * @param score Final score
+     */
+    void recordRun(int candidate, int run, long gameSeed, int score) {
+        runScores[candidate][run] = score;
+        scored[candidate][run] = true;
+        if (!serializeGeneration) {
+            return;
+        }
+        try {
+            if (checkpoint == null) {
+                checkpoint = new CheckpointLog(new File(checkpointFile));
+            }
+            if (!generationRecorded) {
+                checkpoint.appendGeneration(generation, seed, maxRunTotal, mutation_rate, flags(), chromosomes);
+                generationRecorded = true;
+            }
+            checkpoint.appendRun(candidate, run, gameSeed, score);
+        } catch (IOException e) {
+            log.error("Can't write checkpoint log " + checkpointFile + ", no longer checkpointing", e);
+            serializeGeneration = false;
+        }
+    }
+
+    /**
+     * Picks the run up where the checkpoint log ends: the last generation,
+     * its seed and settings, and the games already scored. If the log ends
+     * with a fully scored generation, breeds the next one.
+     *
+     * @return false if there is no log, or nothing in it
+     */
+    boolean resume() {
+        CheckpointLog.State state;
+        try {
+            if (!new File(checkpointFile).exists()) {
+                return false;
+            }
+            if (checkpoint == null) {
+                checkpoint = new CheckpointLog(new File(checkpointFile));
+            }
+            state = checkpoint.getState();
+        } catch (IOException e) {
+            log.error("Can't read checkpoint log " + checkpointFile, e);
+            return false;
+        }
+        if (state == null) {
+            return false;
+        }
+
+        population = state.population;
+        // The log holds the most runs; the fewest are up to the configuration.
+        maxRunTotal = state.runs;
+        currentRunTotal = Math.min(currentRunTotal, maxRunTotal);
+        mutation_rate = state.mutationRate;
+        useTopHalf = (state.flags & 1) != 0;
+        useCrossover = (state.flags & 2) != 0;
+        useParentsAverage = (state.flags & 4) != 0;
+        useTwinPrevention = (state.flags & 8) != 0;
+        generation = state.generation;
+        chromosomes = new double[population][];
+        for (int i = 0; i < population; i++) {
+            chromosomes[i] = state.chromosomes[i].clone();
+        }
+        scores = new int[population];
+        runScores = new int[population][maxRunTotal];
+        scored = new boolean[population][maxRunTotal];
+        evalNanos = new long[population];
+        startGeneration(state.seed);
+        generationRecorded = true;
+
+        // Candidates are scored in order; sendScore() carries on after the last one scored.
+        current = 0;
+        currentRun = 0;
+        currentRunSum = 0;
+        for (int i = 0; i < population; i++) {
+            for (int run = 0; run < maxRunTotal; run++) {
+                if (state.isRecorded(i, run)) {
+                    runScores[i][run] = state.score(i, run);
+                    scored[i][run] = true;
+                }
+            }
+        }
+        while (current < population && scored[current][currentRun]) {
+            currentRunSum += runScores[current][currentRun];
+            if (++currentRun == currentRunTotal) {
+                scores[current] = (int) Math.round(currentRunSum / currentRunTotal);
+                current++;
+                currentRun = 0;
+                currentRunSum = 0;
+            }
+        }
+        if (current == population) {
+            newGeneration();
+        }
+        return true;
+    }
+
+    /**
+     * Piece seeds of the current generation's games, one per run and the
+     * same for every candidate (common random numbers), so candidates are
+     * compared on the same games and the piece luck cancels out. Derived
+     * from the generation's seed, so a resumed generation plays the same
+     * games.
+     *
+     * @return Seeds indexed by run, maxRunTotal of them
+     */
+    long[] gameSeeds() {
+        Random random = new Random(seed ^ 0x9E3779B97F4A7C15L);
+        long[] seeds = new long[maxRunTotal];
+        for (int run = 0; run < seeds.length; run++) {
+            seeds[run] = random.nextLong();
+        }
+        return seeds;
+    }
+
+    /**
+     * Has this game of the current generation been scored, e.g. before a resume?
+     *
+     * @param candidate Candidate index
+     * @param run Run index
+     * @return true if recordRun() has its score
+     */
+    boolean isScored(int candidate, int run) {
+        return scored[candidate][run];
+    }
+
+    /**
+     * Scores of the games of the current generation a candidate has played,
+     * in run order. Games a race skipped (see FitnessRace) were never
+     * recorded and have no score here.
+     *
+     * @param candidate Candidate index
+     * @return One score per game played
+     */
+    int[] playedScores(int candidate) {
+        int[] played = new int[maxRunTotal];
+        int n = 0;
+        for (int run = 0; run < maxRunTotal; run++) {
+            if (scored[candidate][run]) {
+                played[n++] = runScores[candidate][run];
+            }
+        }
+        return Arrays.copyOf(played, n);
+    }
+
+    // Closes the checkpoint log; the next recorded run opens it again.
+    void closeCheckpoint() {
+        if (checkpoint != null) {
+            try {
+                checkpoint.close();
+            } catch (IOException e) {
+                log.error("Can't close checkpoint log " + checkpointFile, e);
+            }
+            checkpoint = null;
+        }
+    }
+
+    // Queues this generation's statistics with the stats writer, when there is one.
+    private void recordStats(long millis) {
+        if (statsDir.isEmpty()) {
+            return;
+        }
+        try {
+            if (stats == null) {
+                stats = new GenerationStats(new File(statsDir));
+            }
+        } catch (IOException e) {
+            log.error("Can't open statistics in " + statsDir + ", no longer recording them", e);
+            statsDir = "";
+            return;
+        }
+        int games = 0;
+        for (int i = 0; i < population; i++) {
+            int[] played = playedScores(i);
+            games += played.length;
+            stats.candidate(generation, i, scores[i], chromosomes[i], played, evalNanos[i]);
+        }
+        stats.generation(generation, scores, games, millis);
+    }
+
+    // Writes the statistics queued so far and closes their files; the next generation opens them again.
+    void closeStats() {
+        if (stats != null) {
+            try {
+                stats.close();
+            } catch (IOException e) {
+                log.error("Can't close statistics in " + statsDir, e);
+            }
+            stats = null;
+        }
+    }
+
+    // Reproduction switches as bits, for the checkpoint log.
+    private int flags() {
+        return (useTopHalf ? 1 : 0) | (useCrossover ? 2 : 0) | (useParentsAverage ? 4 : 0) | (useTwinPrevention ? 8 : 0);
+    }
+
+    /**
+     * The best scored candidates of the current generation
+     *
+     * @param n How many, at most the population
+     * @return Copies of their chromosomes, best first
+     */
+    double[][] best(int n) {
+        Integer[] order = new Integer[population];
+        for (int i = 0; i < population; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(scores[b], scores[a]);
+            }
+        });
+
+        double[][] best = new double[Math.min(n, population)][];
+        for (int i = 0; i < best.length; i++) {
+            best[i] = chromosomes[order[i]].clone();
+        }
+        return best;
+    }
+
+    /**
+     * Replaces candidates of the current generation with chromosomes from
+     * elsewhere, e.g. migrants from another island. newGeneration() shuffles
+     * the population, so replacing the first candidates replaces random ones.
+     *
+     * @param migrants Chromosomes to take in, at most the population
+     */
+    void immigrate(double[][] migrants) {
+        for (int i = 0; i < migrants.length && i < population; i++) {
+            System.arraycopy(migrants[i], 0, chromosomes[i], 0, chromosomes[i].length);
+        }
+    }
+
+    // How many candidates are there in a generation?
+    int getPopulation() {
+        return population;
+    }
+
     // Output the weights used for this Generation
     private String printWeights(double[] a, boolean useLabels) {
         String[] labels = {"Walls: ", "Floor: ", "Height: ", "Holes: ", "Blockades: ", "Clears: "};
@@ -348,73 +688,35 @@ public class GeneticAIAlgorithm {
         return "[" + s + "]";
     }
 
-    private void saveGeneration(double[][] generation) {
-        try {
-            File file = ResourceUtils.getFile(generationFile);
-            ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file));
-            out.writeObject(generation);
-            out.flush();
-            out.close();
-        } catch (FileNotFoundException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
-    }
-
-    private double[][] loadGeneration() {
-        double[][] generation = new double[population][7];
-
-        try {
-            File file = ResourceUtils.getFile(generationFile);
-            ObjectInputStream in = new ObjectInputStream(new FileInputStream(file));
-            generation = (double[][]) in.readObject();
-			/*
-			for(int i=0; i<population; i++)
-			{
-				for(int j=0; j<7; j++)
-				{
-					out.writeObject(generation[i][j]);
-				}
-			}
-			*/
-            in.close();
-        } catch (FileNotFoundException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        } catch (ClassNotFoundException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
-
-        return generation;
-    }
-
+    // Reads the preset from the classpath, so it loads from the jar too. Takes
+    // the first population rows; candidates past the end of the preset are random.
     private double[][] loadPreset() {
         double[][] generation = new double[population][7];
-        String[] strings = new String[population];
-        int i = 0;
+        List<String> strings = new ArrayList<String>();
 
         try {
-            File file = ResourceUtils.getFile(presetFile);
-            BufferedReader in = new BufferedReader(new FileReader(file));
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    GeneticAIAlgorithm.class.getResourceAsStream(presetFile), "UTF-8"));
             String str;
             while ((str = in.readLine()) != null) {
-                strings[i] = str;
-                i++;
+                if (!str.trim().isEmpty()) {
+                    strings.add(str);
+                }
             }
             in.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
 
-        for (i = 0; i < population; i++) {
-            String[] currentString = strings[i].split(",");
+        Random random = new Random();
+        for (int i = 0; i < population; i++) {
+            if (i >= strings.size()) {
+                for (int j = 0; j < 7; j++) {
+                    generation[i][j] = random.nextDouble() * 10 - 5;
+                }
+                continue;
+            }
+            String[] currentString = strings.get(i).split(",");
             for (int j = 0; j < currentString.length; j++) {
                 generation[i][j] = Double.parseDouble(currentString[j]);
             }
@@ -0,0 +1,247 @@
+package com.fermanis.aitetris;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Coordinator of the island-model genetic algorithm.
+ *
+ * Waits for a fixed number of IslandWorkers to connect, possibly from other
+ * hosts, tells each its island number and the run settings, then relays
+ * migrants: whenever the islands reach a migration point, island i receives
+ * the best chromosomes of island i - 1 (a ring). Migration is a barrier, so
+ * fast islands wait for slow ones. The coordinator logs every island's
+ * scores at each migration and at the end, and keeps the best chromosome
+ * any island reported.
+ *
+ * Settings come from genetic_algo.islands.* (count, migration_interval,
+ * migrants); see IslandProtocol for the wire format.
+ */
+public class IslandCoordinator {
+
+    private static final Logger log = LoggerFactory.getLogger(IslandCoordinator.class);
+
+    private final ServerSocket server;
+    private final int islands;
+    private final int generations;
+    private final int interval;
+    private final int migrants;
+    private final long seed;
+
+    private final IslandReport[] reports;
+    private double[] best;
+    private int bestScore = Integer.MIN_VALUE;
+
+    /**
+     * Opens the coordinator's port with settings from genetic_algo.islands.*
+     * @param port Port to listen on, 0 for any free port
+     * @param generations Generations every island evolves
+     * @throws IOException If the port can't be opened
+     */
+    public IslandCoordinator(int port, int generations) throws IOException {
+        this(port, ConfigurationManager.getIntSetting("genetic_algo.islands.count", 4), generations,
+                ConfigurationManager.getIntSetting("genetic_algo.islands.migration_interval", 5),
+                ConfigurationManager.getIntSetting("genetic_algo.islands.migrants", 2),
+                System.nanoTime());
+    }
+
+    /**
+     * Opens the coordinator's port
+     * @param port Port to listen on, 0 for any free port
+     * @param islands Workers to wait for
+     * @param generations Generations every island evolves
+     * @param interval Generations between migrations
+     * @param migrants Chromosomes every island sends per migration
+     * @param seed Run seed, islands derive their starting populations from it
+     * @throws IOException If the port can't be opened
+     */
+    public IslandCoordinator(int port, int islands, int generations, int interval, int migrants, long seed)
+            throws IOException {
+        if (islands < 1 || generations < 1 || interval < 1 || migrants < 0) {
+            throw new IllegalArgumentException("Bad island settings: " + islands + " islands, " + generations
+                    + " generations, interval " + interval + ", " + migrants + " migrants");
+        }
+        this.server = new ServerSocket(port);
+        this.islands = islands;
+        this.generations = generations;
+        this.interval = interval;
+        this.migrants = migrants;
+        this.seed = seed;
+        this.reports = new IslandReport[islands];
+    }
+
+    /**
+     * Port the coordinator listens on
+     * @return Local port
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Accepts the workers and coordinates them until every island is done
+     * @throws IOException If a worker disconnects or breaks the protocol
+     */
+    public void run() throws IOException {
+        List<Socket> sockets = new ArrayList<Socket>();
+        try {
+            DataInputStream[] in = new DataInputStream[islands];
+            DataOutputStream[] out = new DataOutputStream[islands];
+            for (int i = 0; i < islands; i++) {
+                Socket socket = server.accept();
+                sockets.add(socket);
+                in[i] = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out[i] = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                IslandProtocol.readHello(in[i]);
+                log.info("Island " + i + " connected from " + socket.getInetAddress());
+            }
+
+            for (int i = 0; i < islands; i++) {
+                out[i].writeByte(IslandProtocol.CONFIG);
+                out[i].writeInt(i);
+                out[i].writeInt(islands);
+                out[i].writeInt(generations);
+                out[i].writeInt(interval);
+                out[i].writeInt(migrants);
+                out[i].writeLong(seed);
+                out[i].flush();
+            }
+
+            boolean done = false;
+            while (!done) {
+                double[][][] emigrants = new double[islands][][];
+                byte type = 0;
+                for (int i = 0; i < islands; i++) {
+                    byte t = in[i].readByte();
+                    if (t != IslandProtocol.MIGRATE && t != IslandProtocol.DONE || i > 0 && t != type) {
+                        throw new IOException("Island " + i + " sent message " + t + " out of step");
+                    }
+                    type = t;
+                    reports[i] = IslandProtocol.readReport(in[i], i);
+                    emigrants[i] = IslandProtocol.readChromosomes(in[i]);
+                    if (emigrants[i].length > 0 && reports[i].max > bestScore) {
+                        bestScore = reports[i].max;
+                        best = emigrants[i][0];
+                    }
+                }
+                logReports();
+
+                if (type == IslandProtocol.DONE) {
+                    done = true;
+                } else {
+                    for (int i = 0; i < islands; i++) {
+                        out[i].writeByte(IslandProtocol.IMMIGRANTS);
+                        IslandProtocol.writeChromosomes(out[i], emigrants[(i + islands - 1) % islands]);
+                        out[i].flush();
+                    }
+                }
+            }
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            server.close();
+        }
+    }
+
+    /*One line per island and one for all of them.*/
+    private void logReports() {
+        int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+        double mean = 0;
+        for (IslandReport report : reports) {
+            log.info(report.toString());
+            min = Math.min(min, report.min);
+            max = Math.max(max, report.max);
+            mean += report.mean / islands;
+        }
+        log.info(String.format("All %d islands, gen %d: min %d, mean %.1f, max %d",
+                islands, reports[0].generation, min, mean, max));
+    }
+
+    /**
+     * Latest report of every island
+     * @return Reports by island number; null entries before the first migration
+     */
+    public IslandReport[] getReports() {
+        return reports.clone();
+    }
+
+    /**
+     * Best chromosome any island reported, at a migration or at the end
+     * @return Its weights, null before the first report
+     */
+    public double[] getBest() {
+        return best == null ? null : best.clone();
+    }
+
+    /**
+     * Score of getBest() on the island that reported it
+     * @return Average candidate score
+     */
+    public int getBestScore() {
+        return bestScore;
+    }
+
+    /**
+     * Starts workers in new JVMs on this host, with this JVM's class path
+     * @param count Number of workers
+     * @param port Coordinator port
+     * @param threads Evaluation threads per worker
+     * @param options Settings for the workers, --config=&lt;file&gt; and --key=value
+     * @return The worker processes
+     * @throws IOException If a process can't be started
+     */
+    public static List<Process> forkWorkers(int count, int port, int threads, List<String> options) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<Process> processes = new ArrayList<Process>();
+        for (int i = 0; i < count; i++) {
+            List<String> command = new ArrayList<String>(Arrays.asList(java, "-cp", System.getProperty("java.class.path"),
+                    IslandWorker.class.getName(), InetAddress.getLoopbackAddress().getHostAddress(),
+                    Integer.toString(port), Integer.toString(threads)));
+            command.addAll(options);
+            processes.add(new ProcessBuilder(command).inheritIO().start());
+        }
+        return processes;
+    }
+
+    /**
+     * Runs a coordinator: {@code IslandCoordinator <port> <islands> <generations> [fork] [--config=<file>] [--key=value ...]}.
+     * Settings are loaded as by ConfigurationManager.loadStandalone(). With
+     * "fork", the workers are started as local processes, sharing the cores,
+     * and get the same settings.
+     * @param args Command line arguments
+     * @throws IOException If the configuration can't be read or the run fails
+     */
+    public static void main(String[] args) throws IOException {
+        ConfigurationManager.loadStandalone(args);
+        List<String> positional = ConfigurationManager.positionalArgs(args);
+        if (positional.size() < 3) {
+            System.err.println("Usage: IslandCoordinator <port> <islands> <generations> [fork] [--config=<file>] [--key=value ...]");
+            System.exit(2);
+        }
+        int islands = Integer.parseInt(positional.get(1));
+        IslandCoordinator coordinator = new IslandCoordinator(Integer.parseInt(positional.get(0)), islands,
+                Integer.parseInt(positional.get(2)),
+                ConfigurationManager.getIntSetting("genetic_algo.islands.migration_interval", 5),
+                ConfigurationManager.getIntSetting("genetic_algo.islands.migrants", 2), System.nanoTime());
+        if (positional.size() > 3 && positional.get(3).equals("fork")) {
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / islands);
+            forkWorkers(islands, coordinator.getPort(), threads, ConfigurationManager.optionArgs(args));
+        }
+        coordinator.run();
+        log.info("Best: " + Arrays.toString(coordinator.getBest()) + " scored " + coordinator.getBestScore());
+    }
+}
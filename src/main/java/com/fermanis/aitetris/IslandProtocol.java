@@ -0,0 +1,99 @@
+package com.fermanis.aitetris;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Wire format between an IslandCoordinator and its IslandWorkers: typed
+ * messages of big-endian primitives over a plain socket.
+ *
+ * <pre>
+ * HELLO      worker to coordinator  int magic, int version
+ * CONFIG     coordinator to worker  int island, int islands, int generations,
+ *                                   int interval, int migrants, long seed
+ * MIGRATE    worker to coordinator  report, chromosomes (the emigrants)
+ * IMMIGRANTS coordinator to worker  chromosomes
+ * DONE       worker to coordinator  report, chromosomes (the best one)
+ *
+ * report      = int generation, int min, double mean, int max
+ * chromosomes = int count, then per chromosome int length, double[length]
+ * </pre>
+ *
+ * Every message after HELLO starts with its type byte.
+ */
+final class IslandProtocol {
+
+    static final int MAGIC = 0x54455452; // "TETR"
+    static final int VERSION = 1;
+
+    static final byte CONFIG = 1, MIGRATE = 2, IMMIGRANTS = 3, DONE = 4;
+
+    private IslandProtocol() {
+    }
+
+    static void writeHello(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.flush();
+    }
+
+    static void readHello(DataInputStream in) throws IOException {
+        int magic = in.readInt();
+        int version = in.readInt();
+        if (magic != MAGIC || version != VERSION) {
+            throw new IOException("Not an island worker, or an incompatible one (version " + version + ")");
+        }
+    }
+
+    static void expect(DataInputStream in, byte type) throws IOException {
+        byte got = in.readByte();
+        if (got != type) {
+            throw new IOException("Expected island message " + type + ", got " + got);
+        }
+    }
+
+    static void writeReport(DataOutputStream out, IslandReport report) throws IOException {
+        out.writeInt(report.generation);
+        out.writeInt(report.min);
+        out.writeDouble(report.mean);
+        out.writeInt(report.max);
+    }
+
+    static IslandReport readReport(DataInputStream in, int island) throws IOException {
+        int generation = in.readInt();
+        int min = in.readInt();
+        double mean = in.readDouble();
+        int max = in.readInt();
+        return new IslandReport(island, generation, min, mean, max);
+    }
+
+    static void writeChromosomes(DataOutputStream out, double[][] chromosomes) throws IOException {
+        out.writeInt(chromosomes.length);
+        for (double[] chromosome : chromosomes) {
+            out.writeInt(chromosome.length);
+            for (double gene : chromosome) {
+                out.writeDouble(gene);
+            }
+        }
+    }
+
+    static double[][] readChromosomes(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > 1 << 16) {
+            throw new IOException("Bad chromosome count " + count);
+        }
+        double[][] chromosomes = new double[count][];
+        for (int i = 0; i < count; i++) {
+            int length = in.readInt();
+            if (length < 0 || length > 1 << 10) {
+                throw new IOException("Bad chromosome length " + length);
+            }
+            chromosomes[i] = new double[length];
+            for (int j = 0; j < length; j++) {
+                chromosomes[i][j] = in.readDouble();
+            }
+        }
+        return chromosomes;
+    }
+}
@@ -0,0 +1,47 @@
+package com.fermanis.aitetris;
+
+/**
+ * Scores of one island's latest scored generation, as an IslandWorker sends
+ * them to its coordinator. Immutable.
+ */
+public final class IslandReport {
+
+    public final int island;
+    public final int generation;
+
+    /*Lowest, mean and highest candidate score.*/
+    public final int min;
+    public final double mean;
+    public final int max;
+
+    public IslandReport(int island, int generation, int min, double mean, int max) {
+        this.island = island;
+        this.generation = generation;
+        this.min = min;
+        this.mean = mean;
+        this.max = max;
+    }
+
+    /**
+     * Summarizes the candidate scores of a generation
+     * @param island Island number
+     * @param generation Generation the scores belong to
+     * @param scores Average score of every candidate
+     * @return The report
+     */
+    static IslandReport of(int island, int generation, int[] scores) {
+        int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+        long sum = 0;
+        for (int score : scores) {
+            min = Math.min(min, score);
+            max = Math.max(max, score);
+            sum += score;
+        }
+        return new IslandReport(island, generation, min, (double) sum / scores.length, max);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("island %d gen %d: min %d, mean %.1f, max %d", island, generation, min, mean, max);
+    }
+}
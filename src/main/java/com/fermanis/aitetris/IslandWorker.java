@@ -0,0 +1,155 @@
+package com.fermanis.aitetris;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * One island of the island-model genetic algorithm: evolves its own
+ * population with a GenerationEvaluator and trades its best chromosomes
+ * with the other islands through an IslandCoordinator.
+ *
+ * The coordinator assigns the island number and the run settings. Island 0
+ * starts from the usual starting population, every other island from a
+ * random one seeded from the run seed, so the islands explore different
+ * regions. Every migration interval the island sends its best candidates
+ * and gets the best of its neighbour in return, which replace random
+ * candidates of its next generation.
+ *
+ * Run one per JVM with main(), or several in one JVM on threads.
+ */
+public class IslandWorker {
+
+    private static final Logger log = LoggerFactory.getLogger(IslandWorker.class);
+
+    private final String host;
+    private final int port;
+    private final int threads;
+
+    private int island = -1;
+    private IslandReport lastReport;
+
+    /**
+     * @param host Coordinator host
+     * @param port Coordinator port
+     * @param threads Evaluation threads; 0 or less means one per core
+     */
+    public IslandWorker(String host, int port, int threads) {
+        this.host = host;
+        this.port = port;
+        this.threads = threads;
+    }
+
+    /**
+     * Connects to the coordinator and evolves until the run is over
+     * @throws IOException If the connection fails or the coordinator misbehaves
+     */
+    public void run() throws IOException {
+        Socket socket = new Socket(host, port);
+        GenerationEvaluator evaluator = null;
+        GeneticAIAlgorithm genetic = null;
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            IslandProtocol.writeHello(out);
+
+            IslandProtocol.expect(in, IslandProtocol.CONFIG);
+            island = in.readInt();
+            int islands = in.readInt();
+            int generations = in.readInt();
+            int interval = in.readInt();
+            int migrants = in.readInt();
+            long seed = in.readLong();
+            log.info("Island " + island + " of " + islands + ": " + generations + " generations, "
+                    + migrants + " migrants every " + interval);
+
+            genetic = new GeneticAIAlgorithm(true);
+            genetic.serializeGeneration = false;
+            if (!genetic.statsDir.isEmpty()) {
+                // Islands in one JVM must not share files.
+                genetic.statsDir = new File(genetic.statsDir, "island-" + island).getPath();
+            }
+            if (island > 0) {
+                genetic.randomize(new Random(seed + island));
+            }
+            evaluator = new GenerationEvaluator(genetic, threads,
+                    ConfigurationManager.getIntSetting("genetic_algo.cache_entries", 1 << 16));
+
+            for (int g = 1; g <= generations; g++) {
+                genetic.recordScores(evaluator.playGeneration());
+                lastReport = IslandReport.of(island, genetic.generation, genetic.scores);
+                log.info(lastReport.toString());
+
+                if (g == generations) {
+                    out.writeByte(IslandProtocol.DONE);
+                    IslandProtocol.writeReport(out, lastReport);
+                    IslandProtocol.writeChromosomes(out, genetic.best(1));
+                    out.flush();
+                } else if (g % interval == 0) {
+                    out.writeByte(IslandProtocol.MIGRATE);
+                    IslandProtocol.writeReport(out, lastReport);
+                    IslandProtocol.writeChromosomes(out, genetic.best(migrants));
+                    out.flush();
+
+                    IslandProtocol.expect(in, IslandProtocol.IMMIGRANTS);
+                    double[][] immigrants = IslandProtocol.readChromosomes(in);
+                    genetic.newGeneration();
+                    genetic.immigrate(immigrants);
+                } else {
+                    genetic.newGeneration();
+                }
+            }
+        } finally {
+            if (evaluator != null) {
+                evaluator.shutdown();
+            }
+            if (genetic != null) {
+                genetic.closeStats();
+            }
+            socket.close();
+        }
+    }
+
+    /**
+     * Island number assigned by the coordinator
+     * @return Island number, -1 before the coordinator has sent it
+     */
+    public int getIsland() {
+        return island;
+    }
+
+    /**
+     * Scores of the last generation this island scored
+     * @return Latest report, null before the first generation
+     */
+    public IslandReport getLastReport() {
+        return lastReport;
+    }
+
+    /**
+     * Runs a worker: {@code IslandWorker <host> <port> [threads] [--config=<file>] [--key=value ...]}.
+     * Settings are loaded as by ConfigurationManager.loadStandalone().
+     * @param args Command line arguments
+     * @throws IOException If the configuration can't be read or the run fails
+     */
+    public static void main(String[] args) throws IOException {
+        ConfigurationManager.loadStandalone(args);
+        List<String> positional = ConfigurationManager.positionalArgs(args);
+        if (positional.size() < 2) {
+            System.err.println("Usage: IslandWorker <host> <port> [threads] [--config=<file>] [--key=value ...]");
+            System.exit(2);
+        }
+        int threads = positional.size() > 2 ? Integer.parseInt(positional.get(2)) : 0;
+        Metrics.startConfiguredDump();
+        new IslandWorker(positional.get(0), Integer.parseInt(positional.get(1)), threads).run();
+    }
+}
@@ -0,0 +1,207 @@
+package com.fermanis.aitetris;
+
+import java.util.Arrays;
+
+/**
+ * Depth-first search over several pieces, pruned to a beam.
+ *
+ * Every level of the search places one piece. The first two levels use the
+ * known pieces (active and next); deeper levels are expected-value plies:
+ * the piece is unknown, so every block type is tried and the best result
+ * for each is averaged, all types being equally likely. The last level is
+ * scored with the AI's heuristic, counting every block placed on the way
+ * down, just like the two-piece search scores both pieces.
+ *
+ * With a beam width, only the best children of a level (by the heuristic
+ * score of the board right after that piece) are searched any deeper. A
+ * beam width of 0 or less searches every child.
+ *
+ * All boards are allocated up front, one set per level, so a search never
+ * allocates. Like TetrisAI, an instance must only be used by one thread.
+ */
+final class LookaheadSearch {
+
+    private final TetrisAI ai;
+    private final int depth, beam;
+
+    /*Scratch per level: candidate boards with their placed blocks, lines
+     * cleared so far (-1 for game over), heuristic score and search order.*/
+    private final Level[] levels;
+    private int[] fits;
+    private FeatureBatch batch;
+    private int width = -1, height = -1;
+
+    /**
+     * @param ai AI whose weights score the positions
+     * @param depth Pieces to search, at least 1; pieces past the second are unknown
+     * @param beam Children searched deeper per level, 0 or less for all
+     */
+    LookaheadSearch(TetrisAI ai, int depth, int beam) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("Search depth must be at least 1, was " + depth);
+        }
+        this.ai = ai;
+        this.depth = depth;
+        this.beam = beam;
+        this.levels = new Level[depth];
+    }
+
+    int getDepth() {
+        return depth;
+    }
+
+    int getBeam() {
+        return beam;
+    }
+
+    /**
+     * Finds the best placement for the active piece
+     * @param board Settled blocks
+     * @param firstType Active piece
+     * @param nextType Next piece
+     * @return Best placement, see TetrisAI.placement()
+     */
+    int bestPlacement(Board board, int firstType, int nextType) {
+        ensureScratch(board);
+
+        Level top = levels[0];
+        top.parent.copyFrom(board);
+        Arrays.fill(top.parentPlaced, 0);
+
+        int n = expand(0, firstType, 0);
+        double max = Double.NEGATIVE_INFINITY;
+        int best = 0;
+        int searched = searchWidth(top, n);
+        for (int k = 0; k < searched; k++) {
+            int c = top.order[k];
+            double value = depth == 1 || top.cleared[c] < 0 ? top.scores[c] : value(1, c, nextType);
+            // Ties go to the later placement, as in the two-piece search.
+            if (value > max || value == max && c > best) {
+                max = value;
+                best = c;
+            }
+        }
+        return top.moves[best];
+    }
+
+    /*Value of candidate c of level - 1, searching from the given level on.*/
+    private double value(int level, int c, int nextType) {
+        Level up = levels[level - 1];
+        Level here = levels[level];
+        here.parent.copyFrom(up.boards[c]);
+        System.arraycopy(up.placed[c], 0, here.parentPlaced, 0, height);
+        int cleared = up.cleared[c];
+
+        if (level == 1) {
+            return bestChild(level, nextType, cleared, nextType);
+        }
+
+        // Unknown piece: every type is equally likely.
+        double sum = 0;
+        int types = TetrisEngine.blockdef.length;
+        for (int type = 0; type < types; type++) {
+            sum += bestChild(level, type, cleared, nextType);
+        }
+        return sum / types;
+    }
+
+    /*Best value over every placement of a piece on the level's parent board.*/
+    private double bestChild(int level, int type, int cleared, int nextType) {
+        Level here = levels[level];
+        int n = expand(level, type, cleared);
+        boolean last = level == depth - 1;
+        int searched = last ? n : searchWidth(here, n);
+
+        double max = Double.NEGATIVE_INFINITY;
+        for (int k = 0; k < searched; k++) {
+            int c = last ? k : here.order[k];
+            double value = last || here.cleared[c] < 0 ? here.scores[c] : value(level + 1, c, nextType);
+            max = Math.max(max, value);
+        }
+        return max;
+    }
+
+    /*Drops every placement of a piece on the level's parent board and
+     * scores the results. Returns the number of candidates.*/
+    private int expand(int level, int type, int clearedBefore) {
+        Level here = levels[level];
+        int n = TetrisAI.listFits(type, width, fits);
+        for (int i = 0; i < n; i++) {
+            here.boards[i].copyFrom(here.parent);
+            System.arraycopy(here.parentPlaced, 0, here.placed[i], 0, height);
+            int cleared = TetrisAI.drop(here.boards[i], here.placed[i], type, fits[i]);
+
+            here.moves[i] = fits[i];
+            here.cleared[i] = cleared < 0 ? -1 : clearedBefore + cleared;
+            batch.set(i, here.boards[i], here.placed[i], here.cleared[i]);
+        }
+        batch.score(ai, n, here.scores);
+        Metrics.PLACEMENTS.add(n);
+        return n;
+    }
+
+    /*Puts the candidates to search deeper in order, best first, and returns
+     * how many there are. Without a beam that is all of them, in drop order.*/
+    private int searchWidth(Level here, int n) {
+        if (beam <= 0 || beam >= n) {
+            for (int i = 0; i < n; i++) {
+                here.order[i] = i;
+            }
+            return n;
+        }
+
+        // Insertion into a sorted list of the best beam candidates so far.
+        // Equal scores keep the earlier candidate first.
+        int size = 0;
+        for (int i = 0; i < n; i++) {
+            double score = here.scores[i];
+            if (size == beam && score <= here.scores[here.order[size - 1]]) continue;
+
+            int j = size < beam ? size++ : beam - 1;
+            while (j > 0 && score > here.scores[here.order[j - 1]]) {
+                here.order[j] = here.order[j - 1];
+                j--;
+            }
+            here.order[j] = i;
+        }
+        return size;
+    }
+
+    private void ensureScratch(Board board) {
+        if (width == board.width && height == board.height) {
+            return;
+        }
+        width = board.width;
+        height = board.height;
+        // At most 4 rotations, each with at most width + 3 positions.
+        int maxFits = 4 * (width + 3);
+        fits = new int[maxFits];
+        batch = new FeatureBatch(maxFits);
+        for (int i = 0; i < depth; i++) {
+            levels[i] = new Level(width, height, maxFits);
+        }
+    }
+
+    private static final class Level {
+        final Board parent;
+        final int[] parentPlaced;
+        final Board[] boards;
+        final int[][] placed;
+        final int[] cleared, moves, order;
+        final double[] scores;
+
+        Level(int width, int height, int maxFits) {
+            parent = new Board(width, height);
+            parentPlaced = new int[height];
+            boards = new Board[maxFits];
+            placed = new int[maxFits][height];
+            for (int i = 0; i < maxFits; i++) {
+                boards[i] = new Board(width, height);
+            }
+            cleared = new int[maxFits];
+            moves = new int[maxFits];
+            order = new int[maxFits];
+            scores = new double[maxFits];
+        }
+    }
+}
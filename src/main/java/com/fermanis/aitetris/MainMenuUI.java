@@ -420,7 +420,7 @@ public class MainMenuUI extends JFrame {
         
         // Clean up any running game
         if (currentGameWindow != null) {
-            currentGameWindow.dispose();
+            currentGameWindow.close();
             currentGameWindow = null;
         }
         
@@ -451,7 +451,7 @@ public class MainMenuUI extends JFrame {
         
         // Clean up current game window
         if (currentGameWindow != null) {
-            currentGameWindow.dispose();
+            currentGameWindow.close();
             currentGameWindow = null;
         }
         
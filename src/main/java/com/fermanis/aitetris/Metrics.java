@@ -0,0 +1,380 @@
+package com.fermanis.aitetris;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide registry of counters and histograms for the hot paths: the
+ * AI search, the games and the genetic algorithm.
+ *
+ * Recording is cheap enough for code that runs millions of times a second:
+ * a counter is a LongAdder, a histogram an array of atomic buckets with no
+ * lock and no allocation. Histogram buckets are log-linear like an HDR
+ * histogram: 16 per power of two, so a percentile is off by at most 1/16 of
+ * its value.
+ *
+ * Every metric is registered with the platform MBean server under
+ * com.fermanis.aitetris:type=Metrics, so JConsole or any JMX client can read
+ * it live. startDump() also writes every metric and the JVM's GC totals to a
+ * file at a fixed rate, as CSV, or as one JSON object per line when the file
+ * name ends in .json. The dump is set up by metrics.dump_file and
+ * metrics.dump_period_ms, see startConfiguredDump().
+ */
+public final class Metrics {
+
+    private static final Logger log = LoggerFactory.getLogger(Metrics.class);
+
+    private static final Map<String, Object> metrics = new ConcurrentHashMap<String, Object>();
+
+    /*Time of one TetrisAI.bestPlacement() call, i.e. one move's search.*/
+    public static final Histogram SEARCH_NANOS = histogram("ai.search_ns");
+
+    /*Placements the AI has scored with its heuristic.*/
+    public static final Counter PLACEMENTS = counter("ai.placements_evaluated");
+
+    /*Pieces spawned, in every kind of game.*/
+    public static final Counter PIECES = counter("game.pieces");
+
+    /*Lines cleared per finished game.*/
+    public static final Histogram GAME_LINES = histogram("game.lines");
+
+    /*Wall time of a generation, from its first game to its offspring.*/
+    public static final Histogram GENERATION_MILLIS = histogram("ga.generation_ms");
+
+    /*Fitness games cut short by a limit or by racing, see GenerationEvaluator.*/
+    public static final Counter GAMES_STOPPED = counter("ga.games_stopped");
+
+    /*Statistics rows GenerationStats dropped because its writer fell behind.*/
+    public static final Counter STATS_DROPPED = counter("ga.stats_dropped");
+
+    /*TetrisEngine: game loop updates, line fades started and the time
+     * callers wait for the game loop to apply their commands. The loop
+     * holds no locks, so this wait is what lock waits used to be.*/
+    public static final Counter ENGINE_UPDATES = counter("engine.updates");
+    public static final Counter FADES = counter("engine.fades");
+    public static final Histogram AWAIT_MICROS = histogram("engine.await_us");
+
+    /*AI games TetrisEngine threw away because the AI missed a block.*/
+    public static final Counter ANOMALIES = counter("engine.anomalies");
+
+    private Metrics() {
+    }
+
+    /**
+     * Counter with the given name, created on first use
+     * @param name Metric name
+     * @return The counter
+     */
+    public static Counter counter(String name) {
+        return register(name, new Counter(), CounterMBean.class);
+    }
+
+    /**
+     * Histogram with the given name, created on first use
+     * @param name Metric name
+     * @return The histogram
+     */
+    public static Histogram histogram(String name) {
+        return register(name, new Histogram(), HistogramMBean.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T register(String name, T metric, Class<? super T> view) {
+        Object existing = metrics.putIfAbsent(name, metric);
+        if (existing != null) {
+            if (!view.isInstance(existing)) {
+                throw new IllegalArgumentException("Metric " + name + " already exists as a " + existing.getClass().getSimpleName());
+            }
+            return (T) existing;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("com.fermanis.aitetris:type=Metrics,name=" + ObjectName.quote(name));
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(new StandardMBean(metric, (Class<Object>) view), objectName);
+            }
+        } catch (JMException e) {
+            log.warn("Can't publish metric " + name + " over JMX", e);
+        }
+        return metric;
+    }
+
+    /**
+     * Starts the dump set up by metrics.dump_file (empty means none) and
+     * metrics.dump_period_ms, on a daemon thread of its own
+     * @return The dump task, null if there is no dump file
+     */
+    public static ScheduledFuture<?> startConfiguredDump() {
+        String file = ConfigurationManager.getSetting("metrics.dump_file", "");
+        if (file.isEmpty()) {
+            return null;
+        }
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+                GameScheduler.daemonThreads("metrics"));
+        return startDump(scheduler, new File(file), ConfigurationManager.getIntSetting("metrics.dump_period_ms", 10000));
+    }
+
+    /**
+     * Appends every metric to a file at a fixed rate
+     * @param scheduler Runs the dump
+     * @param file CSV file, or JSON lines if its name ends in .json
+     * @param periodMillis Time between dumps
+     * @return The dump task; cancel it to stop
+     */
+    public static ScheduledFuture<?> startDump(ScheduledExecutorService scheduler, final File file, long periodMillis) {
+        final Dump dump = new Dump(file);
+        return scheduler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                try {
+                    dump.write();
+                } catch (IOException e) {
+                    log.error("Can't write metrics to " + file, e);
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * JMX view of a Counter
+     */
+    public interface CounterMBean {
+        long getCount();
+    }
+
+    /**
+     * JMX view of a Histogram
+     */
+    public interface HistogramMBean {
+        long getCount();
+
+        double getMean();
+
+        long getMax();
+
+        long getMedian();
+
+        long get90thPercentile();
+
+        long get99thPercentile();
+    }
+
+    /**
+     * A count that many threads add to
+     */
+    public static final class Counter implements CounterMBean {
+        private final LongAdder count = new LongAdder();
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long n) {
+            count.add(n);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+    }
+
+    /**
+     * Distribution of non-negative values, e.g. latencies. Values below 16
+     * are counted exactly; above that every power of two is split into 16
+     * buckets.
+     */
+    public static final class Histogram implements HistogramMBean {
+        private static final int SUB_BITS = 4, SUB = 1 << SUB_BITS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BITS + 1) * SUB);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * Records one value
+         * @param value Value, negative values count as 0
+         */
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            buckets.incrementAndGet(index(value));
+            count.increment();
+            sum.add(value);
+            long m;
+            while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+            }
+        }
+
+        static int index(long value) {
+            if (value < SUB) {
+                return (int) value;
+            }
+            int exp = 63 - Long.numberOfLeadingZeros(value);
+            return (exp - SUB_BITS + 1) * SUB + (int) (value >>> (exp - SUB_BITS) & (SUB - 1));
+        }
+
+        /*Smallest value that falls in a bucket.*/
+        static long lowest(int index) {
+            if (index < SUB) {
+                return index;
+            }
+            int exp = index / SUB + SUB_BITS - 1;
+            return (long) (SUB + index % SUB) << (exp - SUB_BITS);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public double getMean() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) sum.sum() / n;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * Value below which a fraction of the recorded values fall
+         * @param fraction Between 0 and 1
+         * @return Highest value of the bucket the percentile is in, at most getMax()
+         */
+        public long percentile(double fraction) {
+            long total = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                total += buckets.get(i);
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(fraction * total));
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(lowest(i + 1) - 1, getMax());
+                }
+            }
+            return getMax();
+        }
+
+        public long getMedian() {
+            return percentile(0.5);
+        }
+
+        public long get90thPercentile() {
+            return percentile(0.9);
+        }
+
+        public long get99thPercentile() {
+            return percentile(0.99);
+        }
+    }
+
+    /*One dump file: a row per metric per dump, with counter rates since the last dump.*/
+    private static final class Dump {
+        private final File file;
+        private final boolean json;
+        private final Map<String, Long> last = new HashMap<String, Long>();
+        private long lastTime = System.currentTimeMillis();
+
+        Dump(File file) {
+            this.file = file;
+            this.json = file.getName().endsWith(".json");
+        }
+
+        void write() throws IOException {
+            long now = System.currentTimeMillis();
+            double seconds = Math.max(1, now - lastTime) / 1000.0;
+            lastTime = now;
+
+            // Counters, including the JVM's GC totals, and histograms, by name.
+            Map<String, Object> all = new TreeMap<String, Object>(metrics);
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                String name = "gc." + gc.getName().replace(' ', '_');
+                all.put(name + ".count", gc.getCollectionCount());
+                all.put(name + ".time_ms", gc.getCollectionTime());
+            }
+
+            List<String> rows = new ArrayList<String>();
+            for (Map.Entry<String, Object> e : all.entrySet()) {
+                String name = e.getKey();
+                Object metric = e.getValue();
+                if (metric instanceof Histogram) {
+                    Histogram h = (Histogram) metric;
+                    rows.add(row(now, name, h.getCount(), rate(name, h.getCount(), seconds), h));
+                } else {
+                    long count = metric instanceof Counter ? ((Counter) metric).getCount() : (Long) metric;
+                    rows.add(row(now, name, count, rate(name, count, seconds), null));
+                }
+            }
+
+            boolean header = !json && !file.exists();
+            Writer out = new FileWriter(file, true);
+            try {
+                if (header) {
+                    out.write("time,name,count,rate,mean,p50,p90,p99,max\n");
+                }
+                if (json) {
+                    out.write("{\"time\":" + now + ",\"metrics\":[" + String.join(",", rows) + "]}\n");
+                } else {
+                    for (String row : rows) {
+                        out.write(row);
+                        out.write('\n');
+                    }
+                }
+            } finally {
+                out.close();
+            }
+        }
+
+        /*Per second since the last dump.*/
+        private double rate(String name, long count, double seconds) {
+            Long before = last.put(name, count);
+            return before == null ? 0 : (count - before) / seconds;
+        }
+
+        private String row(long now, String name, long count, double rate, Histogram h) {
+            if (json) {
+                String row = String.format(Locale.ROOT, "{\"name\":\"%s\",\"count\":%d,\"rate\":%.1f", name, count, rate);
+                if (h != null) {
+                    row += String.format(Locale.ROOT, ",\"mean\":%.1f,\"p50\":%d,\"p90\":%d,\"p99\":%d,\"max\":%d",
+                            h.getMean(), h.getMedian(), h.get90thPercentile(), h.get99thPercentile(), h.getMax());
+                }
+                return row + "}";
+            }
+            if (h == null) {
+                return String.format(Locale.ROOT, "%d,%s,%d,%.1f,,,,,", now, name, count, rate);
+            }
+            return String.format(Locale.ROOT, "%d,%s,%d,%.1f,%.1f,%d,%d,%d,%d", now, name, count, rate,
+                    h.getMean(), h.getMedian(), h.get90thPercentile(), h.get99thPercentile(), h.getMax());
+        }
+    }
+}
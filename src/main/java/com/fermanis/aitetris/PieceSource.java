@@ -0,0 +1,65 @@
+package com.fermanis.aitetris;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Where the next piece comes from.
+ *
+ * A piece is a blockdef type plus the rotation it spawns in, packed into a
+ * single int with piece(); type() and rotation() take it apart again. A
+ * source built from the same seed (or file) always hands out the same
+ * sequence, so games can be replayed and candidates compared on equal
+ * pieces.
+ */
+public interface PieceSource {
+
+    /**
+     * Hands out the next piece of the sequence
+     * @return Packed piece, see piece()
+     */
+    int next();
+
+    /**
+     * Packs a piece
+     * @param type Block type, index into TetrisEngine.blockdef
+     * @param rot Spawn rotation
+     * @return Packed piece
+     */
+    static int piece(int type, int rot) {
+        return type << 8 | rot;
+    }
+
+    static int type(int piece) {
+        return piece >>> 8;
+    }
+
+    static int rotation(int piece) {
+        return piece & 0xFF;
+    }
+
+    /**
+     * Creates a source from a configuration value
+     * @param name "uniform", "bag" or "file:" followed by a replay file path
+     * @param seed Seed for the random sources, ignored for replay files
+     * @return The source
+     * @throws IllegalArgumentException for an unknown name or an unreadable file
+     */
+    static PieceSource forName(String name, long seed) {
+        if (name == null || name.isEmpty() || name.equalsIgnoreCase("uniform")) {
+            return new UniformPieceSource(new Random(seed));
+        }
+        if (name.equalsIgnoreCase("bag")) {
+            return new BagPieceSource(new Random(seed));
+        }
+        if (name.startsWith("file:")) {
+            try {
+                return ReplayPieceSource.load(new File(name.substring("file:".length())));
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Can't read piece file " + name, e);
+            }
+        }
+        throw new IllegalArgumentException("Unknown piece source " + name);
+    }
+}
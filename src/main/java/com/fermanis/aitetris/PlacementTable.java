@@ -0,0 +1,223 @@
+package com.fermanis.aitetris;
+
+/**
+ * Placement data for every block type and rotation, built once at class
+ * load from TetrisEngine.blockdef.
+ *
+ * A Shape is the 4x4 blockdef grid boiled down to what a drop needs: one
+ * row mask per shape row, the lowest and highest filled row of every shape
+ * column and the range of X positions that keep the block on the board.
+ * With those the landing row of a straight drop follows directly from the
+ * board's column heights instead of testing every row on the way down.
+ */
+public final class PlacementTable {
+
+    /*Shapes by blockdef type and rotation.*/
+    private static final Shape[][] shapes;
+
+    static {
+        byte[][][][] def = TetrisEngine.blockdef;
+        shapes = new Shape[def.length][];
+        for (int type = 0; type < def.length; type++) {
+            shapes[type] = new Shape[def[type].length];
+            for (int rot = 0; rot < def[type].length; rot++) {
+                shapes[type][rot] = new Shape(def[type][rot]);
+            }
+        }
+    }
+
+    private PlacementTable() {
+    }
+
+    /**
+     * Get the placement data of a block
+     * @param type Block type, index into TetrisEngine.blockdef
+     * @param rot Rotation
+     * @return Shared, immutable shape
+     */
+    public static Shape get(int type, int rot) {
+        return shapes[type][rot];
+    }
+
+    /**
+     * Number of rotations of a block type
+     * @param type Block type
+     * @return Rotation count
+     */
+    public static int rotations(int type) {
+        return shapes[type].length;
+    }
+
+    /**
+     * One block type in one rotation. Offsets are relative to the top left
+     * corner of the 4x4 blockdef grid, the same corner a block's x and y
+     * refer to.
+     */
+    public static final class Shape {
+
+        /*Mask of filled columns for each of the 4 shape rows.*/
+        private final int[] rows = new int[4];
+
+        /*Lowest and highest filled row of each shape column, -1 if the
+         * column is empty.*/
+        private final int[] bottom = new int[4];
+        private final int[] top = new int[4];
+
+        /*First and last filled shape column, i.e. the empty columns on
+         * the left and 3 minus the empty columns on the right.*/
+        public final int left, right;
+
+        /*First and last filled shape row.*/
+        public final int topRow, bottomRow;
+
+        Shape(byte[][] grid) {
+            int l = 4, r = -1, t = 4, b = -1;
+            for (int i = 0; i < 4; i++) {
+                bottom[i] = -1;
+                top[i] = -1;
+                for (int j = 0; j < 4; j++) {
+                    if (grid[j][i] == 0) continue;
+
+                    rows[j] |= 1 << i;
+                    if (top[i] < 0) top[i] = j;
+                    bottom[i] = j;
+                    l = Math.min(l, i);
+                    r = Math.max(r, i);
+                    t = Math.min(t, j);
+                    b = Math.max(b, j);
+                }
+            }
+            left = l;
+            right = r;
+            topRow = t;
+            bottomRow = b;
+        }
+
+        /**
+         * Get the filled columns of one shape row
+         * @param j Shape row, 0 to 3
+         * @return Mask with bit i set for every filled shape column
+         */
+        public int row(int j) {
+            return rows[j];
+        }
+
+        /**
+         * Get the board columns one shape row covers when the block is at x
+         * @param j Shape row, 0 to 3
+         * @param x Block x, may be negative
+         * @return Mask with bit x+i set for every filled shape column i
+         */
+        public int row(int j, int x) {
+            return x < 0 ? rows[j] >>> -x : rows[j] << x;
+        }
+
+        /**
+         * Lowest filled row of a shape column
+         * @param i Shape column, 0 to 3
+         * @return Row offset, -1 if the column is empty
+         */
+        public int bottom(int i) {
+            return bottom[i];
+        }
+
+        /**
+         * Highest filled row of a shape column
+         * @param i Shape column, 0 to 3
+         * @return Row offset, -1 if the column is empty
+         */
+        public int top(int i) {
+            return top[i];
+        }
+
+        /**
+         * Leftmost X position that keeps the block on the board
+         * @return Smallest valid x, may be negative
+         */
+        public int minX() {
+            return -left;
+        }
+
+        /**
+         * Rightmost X position that keeps the block on the board
+         * @param width Board width
+         * @return Largest valid x
+         */
+        public int maxX(int width) {
+            return width - 1 - right;
+        }
+
+        /**
+         * Collision check with explicit bounds: does the block fit at this
+         * position, inside the board and without overlapping a settled block?
+         * @param board Settled blocks
+         * @param x Block x, any value
+         * @param y Block y, any value
+         * @return true if every filled cell is on an empty board cell
+         */
+        public boolean canPlace(Board board, int x, int y) {
+            if (x + left < 0 || x + right >= board.width || y + topRow < 0 || y + bottomRow >= board.height) {
+                return false;
+            }
+            for (int j = topRow; j <= bottomRow; j++) {
+                if ((board.getRow(y + j) & row(j, x)) != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Row a block at (x, y) comes to rest on when it falls straight down,
+         * i.e. a hard drop. A block above all settled blocks in its columns
+         * lands where dropRow() says; one that was slid under an overhang
+         * is moved down row by row.
+         * @param board Settled blocks
+         * @param x Block x
+         * @param y Block y, where the block fits
+         * @return Lowest y the block reaches, y itself if it can't move down
+         */
+        public int landingRow(Board board, int x, int y) {
+            int drop = dropRow(board, x);
+            if (drop >= y) {
+                return drop;
+            }
+            while (canPlace(board, x, y + 1)) {
+                y++;
+            }
+            return y;
+        }
+
+        /**
+         * Row a block lands on when dropped straight down from above the
+         * board at a valid X position. Every shape column is contiguous, so
+         * it is the highest row at which no shape column reaches its board
+         * column's top block.
+         * @param board Settled blocks
+         * @param x Block x, between minX() and maxX()
+         * @return Landing y of the 4x4 grid; the block doesn't fit (game
+         *         over) when y + topRow is negative
+         */
+        public int dropRow(Board board, int x) {
+            int y = Integer.MAX_VALUE;
+            for (int i = left; i <= right; i++) {
+                y = Math.min(y, board.height - 1 - board.getColumnHeight(x + i) - bottom[i]);
+            }
+            return y;
+        }
+
+        /**
+         * Writes the block into a board
+         * @param board Board to fill
+         * @param x Block x
+         * @param y Block y, with every filled row inside the board
+         */
+        public void fill(Board board, int x, int y) {
+            for (int j = topRow; j < 4; j++) {
+                for (int mask = rows[j]; mask != 0; mask &= mask - 1) {
+                    board.fill(x + Integer.numberOfTrailingZeros(mask), y + j);
+                }
+            }
+        }
+    }
+}
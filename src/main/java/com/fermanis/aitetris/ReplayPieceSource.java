@@ -0,0 +1,149 @@
+package com.fermanis.aitetris;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Plays back a fixed piece sequence, e.g. one loaded from a file. When the
+ * sequence runs out it starts over from the beginning.
+ *
+ * The file format is plain text with one piece per line: the block type and
+ * the spawn rotation, separated by whitespace. Blank lines and lines starting
+ * with # are skipped.
+ */
+public class ReplayPieceSource implements PieceSource {
+
+    private final int[] pieces;
+    private int position = 0;
+
+    /**
+     * @param pieces Packed pieces, see PieceSource.piece()
+     * @throws IllegalArgumentException if the sequence is empty or holds an unknown piece
+     */
+    public ReplayPieceSource(int[] pieces) {
+        if (pieces.length == 0) {
+            throw new IllegalArgumentException("Empty piece sequence");
+        }
+        for (int piece : pieces) {
+            int type = PieceSource.type(piece);
+            if (type >= TetrisEngine.blockdef.length
+                    || PieceSource.rotation(piece) >= TetrisEngine.blockdef[type].length) {
+                throw new IllegalArgumentException("Unknown piece " + type + " " + PieceSource.rotation(piece));
+            }
+        }
+        this.pieces = pieces.clone();
+    }
+
+    /*Shares the pieces of another replay, which never change.*/
+    private ReplayPieceSource(ReplayPieceSource other) {
+        this.pieces = other.pieces;
+    }
+
+    @Override
+    public int next() {
+        int piece = pieces[position];
+        position = (position + 1) % pieces.length;
+        return piece;
+    }
+
+    /**
+     * Length of the sequence before it repeats
+     * @return Number of pieces
+     */
+    public int length() {
+        return pieces.length;
+    }
+
+    /**
+     * Starts the sequence over
+     */
+    public void rewind() {
+        position = 0;
+    }
+
+    /**
+     * A replay of the same sequence from its start, e.g. one per game of a
+     * file loaded once. Shares the pieces, so it costs no copy.
+     * @return A new source
+     */
+    public ReplayPieceSource copy() {
+        return new ReplayPieceSource(this);
+    }
+
+    /**
+     * Takes the next pieces of another source, e.g. to save a seeded sequence
+     * @param source Source to draw from
+     * @param count Number of pieces
+     * @return A replay of those pieces
+     */
+    public static ReplayPieceSource record(PieceSource source, int count) {
+        int[] pieces = new int[count];
+        for (int i = 0; i < count; i++) {
+            pieces[i] = source.next();
+        }
+        return new ReplayPieceSource(pieces);
+    }
+
+    /**
+     * Reads a sequence file
+     * @param file File to read
+     * @return A replay of the file's pieces
+     * @throws IOException if the file can't be read or a line isn't a piece
+     */
+    public static ReplayPieceSource load(File file) throws IOException {
+        int[] pieces = new int[64];
+        int n = 0;
+        try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+
+                String[] fields = line.split("\\s+");
+                if (fields.length != 2) {
+                    throw new IOException("Not a piece: " + line);
+                }
+                if (n == pieces.length) {
+                    pieces = Arrays.copyOf(pieces, n * 2);
+                }
+                int type, rot;
+                try {
+                    type = Integer.parseInt(fields[0]);
+                    rot = Integer.parseInt(fields[1]);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Not a piece: " + line, e);
+                }
+                // Checked before packing, so an out-of-range rotation can't spill into the type.
+                if (type < 0 || type >= TetrisEngine.blockdef.length
+                        || rot < 0 || rot >= TetrisEngine.blockdef[type].length) {
+                    throw new IOException(file + ": Unknown piece " + line);
+                }
+                pieces[n++] = PieceSource.piece(type, rot);
+            }
+        }
+        try {
+            return new ReplayPieceSource(Arrays.copyOf(pieces, n));
+        } catch (IllegalArgumentException e) {
+            throw new IOException(file + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Writes the sequence in the file format load() reads
+     * @param out Where to write; not closed
+     */
+    public void save(Writer out) {
+        PrintWriter writer = new PrintWriter(out);
+        writer.println("# type rotation");
+        for (int piece : pieces) {
+            writer.println(PieceSource.type(piece) + " " + PieceSource.rotation(piece));
+        }
+        writer.flush();
+    }
+}
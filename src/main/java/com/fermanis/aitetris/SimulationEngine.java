@@ -0,0 +1,297 @@
+package com.fermanis.aitetris;
+
+import java.util.Random;
+
+/**
+ * Headless, clockless Tetris game for fitness evaluation.
+ * Unlike TetrisEngine there is no Swing, no game thread and no sleeping:
+ * every piece is dropped straight to the position TetrisAI.bestPlacement()
+ * picks, and a game runs to completion as fast as the CPU allows.
+ *
+ * Scoring follows TetrisEngine: one point for every piece that spawns
+ * (including the one that ends the game) plus TetrisEngine.clearScore()
+ * for each clear.
+ *
+ * A game can be given a budget, see setLimits(): a piece cap, a line cap
+ * and a wall time cap. A game that hits one ends there with the score it
+ * has, like a game over, and stopped tells the two apart. A StopCondition
+ * can end games early for any other reason, e.g. racing in
+ * GenerationEvaluator.
+ */
+public class SimulationEngine {
+
+    /*Standard board size.*/
+    static final int WIDTH = 10, HEIGHT = 10;
+
+    /*Settled blocks.*/
+    public final Board board;
+
+    /*Where new blocks come from.*/
+    private final PieceSource pieces;
+
+    /*Score, lines cleared and pieces spawned in the current game.*/
+    public int score = 0;
+    public int lines = 0;
+    public int blocksdropped = 0;
+
+    /*Active and next block, as blockdef type and rotation. -1 means none.*/
+    int activeType = -1, activeRot;
+    int nextType = -1, nextRot;
+
+    /*True if the last game was cut short by a limit or the stop condition
+     * instead of ending in a game over.*/
+    public boolean stopped = false;
+
+    /*Records every placement when set, see setRecorder().*/
+    private GameRecorder recorder;
+
+    /*Budget of one game, 0 for no limit. See setLimits().*/
+    private int maxPieces = 0, maxLines = 0;
+    private long maxNanos = 0;
+
+    /*Asked after every piece whether to end the game, see setStopCondition().*/
+    private StopCondition stopCondition;
+
+    /**
+     * Decides whether a game should end before its game over
+     */
+    public interface StopCondition {
+        /**
+         * @param game The game, after a piece has been placed
+         * @return true to end the game with the score it has
+         */
+        boolean shouldStop(SimulationEngine game);
+    }
+
+    /**
+     * Creates a simulation on a standard sized board with an unseeded generator
+     */
+    public SimulationEngine() {
+        this(new Random());
+    }
+
+    /**
+     * Creates a simulation on a standard sized board
+     * @param rdm Piece generator; pass a seeded Random for reproducible games
+     */
+    public SimulationEngine(Random rdm) {
+        this(WIDTH, HEIGHT, rdm);
+    }
+
+    /**
+     * Creates a simulation on a standard sized board
+     * @param pieces Piece sequence
+     */
+    public SimulationEngine(PieceSource pieces) {
+        this(WIDTH, HEIGHT, pieces);
+    }
+
+    /**
+     * Creates a simulation
+     * @param width Board width, in blocks
+     * @param height Board height, in blocks
+     * @param rdm Piece generator
+     */
+    public SimulationEngine(int width, int height, Random rdm) {
+        this(width, height, new UniformPieceSource(rdm));
+    }
+
+    /**
+     * Creates a simulation
+     * @param width Board width, in blocks
+     * @param height Board height, in blocks
+     * @param pieces Piece sequence
+     */
+    public SimulationEngine(int width, int height, PieceSource pieces) {
+        this.board = new Board(width, height);
+        this.pieces = pieces;
+    }
+
+    /**
+     * Plays one whole game on an empty board
+     * @param ai The AI that picks every placement
+     * @return Final score
+     */
+    public int play(TetrisAI ai) {
+        reset();
+        long deadline = System.nanoTime() + maxNanos;
+        while (step(ai)) {
+            if (overBudget(deadline)) {
+                stopped = true;
+                endGame();
+                break;
+            }
+        }
+        return score;
+    }
+
+    /**
+     * Sets the budget of every game play() runs from now on. A game that
+     * reaches a limit ends with the score it has.
+     * @param maxPieces Pieces per game, 0 for no limit
+     * @param maxLines Lines per game, 0 for no limit; the last piece may clear a few more
+     * @param maxMillis Wall time per game, 0 for no limit. Scores then depend on the machine's speed.
+     */
+    public void setLimits(int maxPieces, int maxLines, long maxMillis) {
+        this.maxPieces = maxPieces;
+        this.maxLines = maxLines;
+        this.maxNanos = maxMillis * 1000000;
+    }
+
+    /**
+     * Ends games early when a condition says so, checked after every piece
+     * @param stopCondition Condition, null for none
+     */
+    public void setStopCondition(StopCondition stopCondition) {
+        this.stopCondition = stopCondition;
+    }
+
+    /**
+     * Highest score a game can reach within a piece and a line limit: every
+     * piece scores its point, and its 4 cells complete lines that all clear
+     * as tetrises
+     * @param width Board width
+     * @param maxPieces Piece limit, 0 for none
+     * @param maxLines Line limit, 0 for none
+     * @return Score bound, Long.MAX_VALUE without a piece limit
+     */
+    static long maxScore(int width, int maxPieces, int maxLines) {
+        if (maxPieces <= 0) {
+            return Long.MAX_VALUE;
+        }
+        long lines = 4L * maxPieces / width;
+        if (maxLines > 0) {
+            // The piece that reaches the limit can clear up to 3 more.
+            lines = Math.min(lines, maxLines + 3);
+        }
+        return maxPieces + lines * TetrisEngine.clearScore(4) / 4;
+    }
+
+    /**
+     * Plays a single piece of the current game: the next block comes in
+     * and is dropped where the AI says. Call reset() before a new game.
+     * @param ai The AI that picks the placement
+     * @return false once the game is over
+     */
+    public boolean step(TetrisAI ai) {
+        boolean playing = newblock();
+        if (playing) {
+            int fit = ai.bestPlacement(board, activeType, nextType);
+            playing = place(TetrisAI.placementRotation(fit), TetrisAI.placementX(fit));
+        }
+        if (!playing) {
+            endGame();
+        }
+        return playing;
+    }
+
+    private void endGame() {
+        Metrics.GAME_LINES.record(lines);
+        if (recorder != null) {
+            recorder.gameOver(blocksdropped);
+        }
+    }
+
+    private boolean overBudget(long deadline) {
+        return (maxPieces > 0 && blocksdropped >= maxPieces)
+                || (maxLines > 0 && lines >= maxLines)
+                || (maxNanos > 0 && System.nanoTime() - deadline >= 0)
+                || (stopCondition != null && stopCondition.shouldStop(this));
+    }
+
+    /**
+     * Records every placement and game over from now on, with the piece
+     * number as the tick. Attach between games.
+     * @param recorder Recorder of this board's size, null to stop recording
+     */
+    public void setRecorder(GameRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Plays games for a genetic algorithm, one per sendScore(), until it has
+     * produced the requested number of new generations
+     * @param genetic The genetic algorithm to drive
+     * @param generations How many generations to evaluate
+     */
+    public void train(GeneticAIAlgorithm genetic, int generations) {
+        int target = genetic.generation + generations;
+        while (genetic.generation < target) {
+            TetrisAI ai = new TetrisAI();
+            genetic.setAIValues(ai);
+            genetic.sendScore(play(ai));
+        }
+    }
+
+    /**
+     * Clears the board and score for a new game
+     */
+    public void reset() {
+        board.clear();
+        score = 0;
+        lines = 0;
+        blocksdropped = 0;
+        stopped = false;
+        activeType = -1;
+        nextType = -1;
+    }
+
+    /*Next block becomes the active block and a new next block is
+     * generated. Returns false if the new block doesn't fit (game over).*/
+    boolean newblock() {
+        if (nextType < 0) {
+            randBlock();
+        }
+        activeType = nextType;
+        activeRot = nextRot;
+        randBlock();
+
+        boolean fits = fits(activeType, activeRot, spawnX(), 0);
+
+        //Same bonus as TetrisEngine, even for the game over block.
+        score += 1;
+        blocksdropped += 1;
+        Metrics.PIECES.increment();
+        return fits;
+    }
+
+    /*Drops the active block straight down at the given rotation and
+     * X position, then clears lines. Returns false if it doesn't
+     * even fit at the top (game over).*/
+    boolean place(int rot, int x) {
+        if (!fits(activeType, rot, x, 0)) {
+            return false;
+        }
+
+        PlacementTable.Shape shape = PlacementTable.get(activeType, rot);
+        int y = shape.landingRow(board, x, 0);
+        shape.fill(board, x, y);
+        if (recorder != null) {
+            recorder.record(activeType, rot, x, y, blocksdropped);
+        }
+
+        int cleared = board.clearLines();
+        if (cleared > 0) {
+            score += TetrisEngine.clearScore(cleared);
+            lines += cleared;
+        }
+        return true;
+    }
+
+    /*Does the block fit on the board at this position?*/
+    boolean fits(int type, int rot, int x, int y) {
+        return PlacementTable.get(type, rot).canPlace(board, x, y);
+    }
+
+    /*Blocks spawn at the same column as in TetrisEngine.*/
+    int spawnX() {
+        return board.width / 2 - 2;
+    }
+
+    /*Takes the next block from the piece source, like TetrisEngine.getRandBlock().*/
+    private void randBlock() {
+        int piece = pieces.next();
+        nextType = PieceSource.type(piece);
+        nextRot = PieceSource.rotation(piece);
+    }
+}
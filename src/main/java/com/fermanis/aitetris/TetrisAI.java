@@ -3,8 +3,7 @@ package com.fermanis.aitetris;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 import static com.fermanis.aitetris.ProjectConstants.sleep_;
 
@@ -38,59 +37,111 @@ public class TetrisAI {
     private TetrisPanel panel;
     private TetrisEngine engine;
 
+    // Score of a position where a block doesn't fit anymore.
+    static final double GAME_OVER = -99999999;
+    static final int PLACEMENT_X_OFFSET = 16;
+
+    // Tags of the piece terms of the cache keys. Bit 63 keeps them apart from
+    // Board.rowKey() and Board.cellKey(), whose inputs never set it.
+    private static final long ROOT_PIECES = Long.MIN_VALUE, SECOND_PIECES = Long.MIN_VALUE | 1L << 32;
+
+    // Scratch buffers for the search, see ensureScratch().
+    private Board root, first, second;
+    private int[] placedFirst, placedSecond;
+    private int[] fits, fits2;
+    private FeatureBatch batch;
+    private double[] scores2;
+    private final FeatureBatch single = new FeatureBatch(1);
+    private final double[] singleScore = new double[1];
+
+    // Optional cache of search results, see setCache().
+    private TranspositionCache cache;
+
+    // Deeper or pruned search, see setSearch(). Null for the exhaustive two-piece search.
+    private LookaheadSearch lookahead;
+
     public TetrisAI(TetrisPanel inputPanel) {
+        this();
         panel = inputPanel;
         engine = panel.engine;
         thread = new AIThread();
     }
 
-    // Takes a int array and calculates how many blocks of free spaces are there
-    // on the left and right. The return value is a 2 digit integer.
-    static int freeSpaces(byte[][] in) {
-
-        // It's free if all of them are zero, and their sum is zero.
-        boolean c1free = in[0][0] + in[1][0] + in[2][0] + in[3][0] == 0;
-        boolean c2free = in[0][1] + in[1][1] + in[2][1] + in[3][1] == 0;
-        boolean c3free = in[0][2] + in[1][2] + in[2][2] + in[3][2] == 0;
-        boolean c4free = in[0][3] + in[1][3] + in[2][3] + in[3][3] == 0;
-
-        int lfree = 0;
-
-        if (c1free) {
-            lfree++;
-            if (c2free) {
-                lfree++;
-                if (c3free) {
-                    lfree++;
-                    if (c4free) {
-                        lfree++;
-                    }
-                }
-            }
-        }
+    /**
+     * Headless constructor: no panel, no engine and no AIThread.
+     * Only computeBestFit() is usable, e.g. from a SimulationEngine.
+     * The search is set up from ai.search_depth and ai.beam_width.
+     */
+    public TetrisAI() {
+        setSearch(ConfigurationManager.getIntSetting("ai.search_depth", 2),
+                ConfigurationManager.getIntSetting("ai.beam_width", 0));
+    }
 
-        int rfree = 0;
-        if (c4free) {
-            rfree++;
-            if (c3free) {
-                rfree++;
-                if (c2free) {
-                    rfree++;
-                    if (c1free) {
-                        rfree++;
-                    }
-                }
-            }
+    /**
+     * Sets how far ahead the AI looks. The default, two pieces without a beam,
+     * scores every pair of placements for the active and the next piece.
+     * Pieces past the second are unknown and scored by their expected value
+     * over all block types; see LookaheadSearch.
+     *
+     * @param depth Pieces to search, at least 1
+     * @param beam  Placements per piece searched any deeper, 0 or less for all
+     */
+    public void setSearch(int depth, int beam) {
+        lookahead = usesCache(depth, beam) ? null : new LookaheadSearch(this, depth, beam);
+    }
+
+    /**
+     * Does a search with these settings use the cache? Only the exhaustive
+     * two-piece search does; a LookaheadSearch searches without it.
+     *
+     * @param depth Pieces to search, see setSearch()
+     * @param beam  Beam width, see setSearch()
+     * @return true if setCache() makes a difference
+     */
+    static boolean usesCache(int depth, int beam) {
+        return depth == 2 && beam <= 0;
+    }
+
+    /**
+     * Cache size for headless AIs set up from the configuration: the given
+     * size, or 0 if ai.search_depth and ai.beam_width pick a search that
+     * doesn't use the cache, so callers don't allocate caches nobody reads.
+     * Logs when that is the case.
+     *
+     * @param entries Cache size wanted, usually genetic_algo.cache_entries
+     * @return Cache size to allocate, 0 for none
+     */
+    static int configuredCacheEntries(int entries) {
+        int depth = ConfigurationManager.getIntSetting("ai.search_depth", 2);
+        int beam = ConfigurationManager.getIntSetting("ai.beam_width", 0);
+        if (entries > 0 && !usesCache(depth, beam)) {
+            log.info("Search depth " + depth + " with beam " + beam + " doesn't use the search cache; not allocating one");
+            return 0;
         }
+        return entries;
+    }
+
+    /**
+     * Lets the search reuse results through a cache. Results are keyed on the
+     * board, both pieces and the current weights, so one cache can be shared
+     * by AIs with different weights, as long as they run on the same thread.
+     * Only the exhaustive two-piece search uses it: with a deeper or beamed
+     * search (see setSearch()) the cache is ignored.
+     *
+     * @param cache The cache, or null to search without one
+     */
+    public void setCache(TranspositionCache cache) {
+        this.cache = cache;
+    }
 
-        return lfree * 10 + rfree;
+    public TranspositionCache getCache() {
+        return cache;
     }
 
     public void sendReady() {
         if (!flag) {
             thread.start();
             flag = true;
-            engine.lastnewblock = System.currentTimeMillis();
         }
     }
 
@@ -98,289 +149,304 @@ public class TetrisAI {
      * Greedy Algorithm to Determine Best Fit for Piece
      **/
     BlockPosition computeBestFit(TetrisEngine ge) {
+        EngineSnapshot s = ge.snapshot();
+        return computeBestFit(s.board, s.activeType, s.nextType);
+    }
 
-        byte[][][] allblockRotations = TetrisEngine.blockdef[ge.activeblock.type];
-        int numBlockRotations = allblockRotations.length;
+    /**
+     * Greedy Algorithm to Determine Best Fit for a piece on any board
+     *
+     * @param board     Settled blocks, without the active piece
+     * @param firstType Type of the piece to place
+     * @param nextType  Type of the piece after it
+     * @return Best rotation and X position for the first piece
+     **/
+    BlockPosition computeBestFit(Board board, int firstType, int nextType) {
+        int best = bestPlacement(board, firstType, nextType);
 
-        // List of all the possible fits.
-        List<BlockPosition> possibleFits = new ArrayList<BlockPosition>();
+        BlockPosition put = new BlockPosition();
+        put.blockX = placementX(best);
+        put.blockRotation = placementRotation(best);
+        return put;
+    }
 
-        // Loop through the Rotations.
-        // Here we generate all of the unique valid fits, and evaluate
-        // them later.
-        for (int i = 0; i < numBlockRotations; i++) {
-            byte[][] tempBlockRotation = allblockRotations[i];
-            int free = freeSpaces(tempBlockRotation);
-            int freeL = free / 10;
-            int freeR = free % 10;
-            int minX = 0 - freeL;
-            int maxX = (ge.width - 4) + freeR;
-            // Loop through each position for a blockRotation.
-            for (int j = minX; j <= maxX; j++) {
-                BlockPosition put = new BlockPosition();
-                put.blockX = j;
-                put.blockRotation = i;
-                possibleFits.add(put);
-            }
+    /**
+     * Allocation-free core of computeBestFit(). Every (first, second) placement
+     * pair is scored on the scratch boards, keeping a running arg-max. Ties go
+     * to the later pair, as they always have. Other search settings hand the
+     * work to the LookaheadSearch.
+     *
+     * @return The best placement for the first piece, see placement()
+     */
+    int bestPlacement(Board board, int firstType, int nextType) {
+        long start = System.nanoTime();
+        int best = lookahead != null ? lookahead.bestPlacement(board, firstType, nextType)
+                : searchPairs(board, firstType, nextType);
+        Metrics.SEARCH_NANOS.record(System.nanoTime() - start);
+        return best;
+    }
+
+    // The two-piece search of bestPlacement().
+    private int searchPairs(Board board, int firstType, int nextType) {
+        ensureScratch(board);
+
+        // Work from a private copy; the engine may change its board meanwhile.
+        root.copyFrom(board);
+        int numFits = listFits(firstType, board.width, fits);
+        int numFits2 = listFits(nextType, board.width, fits2);
+
+        // The same position with the same pieces and weights always has the same answer.
+        long rootKey = 0, weights = 0;
+        int hit = -1;
+        if (cache != null) {
+            weights = weightsKey();
+            rootKey = weights ^ Board.mix64(ROOT_PIECES | firstType << 8 | nextType) ^ root.zobristHash();
+            hit = cache.find(rootKey);
+        }
+        if (hit >= 0) {
+            int move = cache.move(hit);
+            return finish(board, firstType, nextType, move >>> 16, move & 0xFFFF);
         }
 
-        // Do everything again for the next block
-        byte[][][] allblockRotations2 = TetrisEngine.blockdef[ge.nextblock.type];
-        int numBlockRotations2 = allblockRotations2.length;
-        List<BlockPosition> possibleFits2 = new ArrayList<BlockPosition>();
-        for (int i = 0; i < numBlockRotations2; i++) {
-            byte[][] tempBlockRotation = allblockRotations2[i];
-            int free = freeSpaces(tempBlockRotation);
-            int freeL = free / 10;
-            int freeR = free % 10;
-            int minX = 0 - freeL;
-            int maxX = (ge.width - 4) + freeR;
-            for (int j = minX; j <= maxX; j++) {
-                BlockPosition put = new BlockPosition();
-                put.blockX = j;
-                put.blockRotation = i;
-                possibleFits2.add(put);
+        // Evaluate each possible fit: for each pair, calculate a score, and pick
+        // the best. The first drop is shared by all pairs that start with it.
+        double max = Double.NEGATIVE_INFINITY;
+        int best = fits[0];
+        int bestSecond = fits2[0];
+        int evaluated = 0;
+
+        for (int i = 0; i < numFits; i++) {
+            first.copyFrom(root);
+            Arrays.fill(placedFirst, 0);
+            int cleared = drop(first, placedFirst, firstType, fits[i]);
+
+            // Game over with the first piece; every pair scores the same.
+            if (cleared < 0) {
+                if (GAME_OVER >= max) {
+                    max = GAME_OVER;
+                    best = fits[i];
+                    bestSecond = fits2[numFits2 - 1];
+                }
+                continue;
             }
-        }
 
-        // Evaluate each possible fits:
-        // For each element in the list we have, calculate a score, and pick
-        // the best.
-        ScoreGrid[] scores = new ScoreGrid[possibleFits.size() * possibleFits2.size()];
+            // Best pair starting with this drop. Ties go to the later pair, so
+            // taking it over the running max with >= picks the same pair as
+            // comparing every pair on its own.
+            long key = 0;
+            int slot = -1;
+            if (cache != null) {
+                key = weights ^ Board.mix64(SECOND_PIECES | cleared << 8 | nextType)
+                        ^ first.zobristHash() ^ placedKey(placedFirst);
+                slot = cache.find(key);
+            }
 
+            double innerMax;
+            int innerBest;
+            if (slot >= 0) {
+                innerMax = cache.score(slot);
+                innerBest = cache.move(slot);
+            } else {
+                innerMax = Double.NEGATIVE_INFINITY;
+                innerBest = fits2[0];
+                evaluated += numFits2;
+                // Every second drop goes into the batch, then all are scored at once.
+                for (int j = 0; j < numFits2; j++) {
+                    second.copyFrom(first);
+                    System.arraycopy(placedFirst, 0, placedSecond, 0, placedFirst.length);
+                    int cleared2 = drop(second, placedSecond, nextType, fits2[j]);
+                    batch.set(j, second, placedSecond, cleared2 < 0 ? -1 : cleared + cleared2);
+
+                    if (displayScore) {
+                        printMockGrid(second, placedSecond);
+                        log.info(String.valueOf(cleared2 < 0 ? GAME_OVER : evaluate(second, placedSecond, cleared + cleared2)));
+                    }
+                }
+                batch.score(this, numFits2, scores2);
+                for (int j = 0; j < numFits2; j++) {
+                    if (scores2[j] >= innerMax) {
+                        innerMax = scores2[j];
+                        innerBest = fits2[j];
+                    }
+                }
+                if (cache != null) {
+                    cache.put(key, innerMax, innerBest);
+                }
+            }
 
-        for (int i = 0; i < possibleFits.size(); i++) {
-            for (int j = 0; j < possibleFits2.size(); j++) {
-                int index = i * possibleFits2.size() + j;
-                ScoreGrid currentScoreGrid = evalPosition(ge, possibleFits.get(i), possibleFits2.get(j));
-                scores[index] = new ScoreGrid();
-                scores[index].score = currentScoreGrid.score;
-                scores[index].mockgrid = currentScoreGrid.mockgrid;
+            if (innerMax >= max) {
+                max = innerMax;
+                best = fits[i];
+                bestSecond = innerBest;
             }
         }
 
-        // Retrieve max.
-        double max = Double.NEGATIVE_INFINITY;
-        BlockPosition max_b = null;
-        int scoreIndex = 0;
-        for (int i = 0; i < scores.length; i++) {
-            if (scores[i].score >= max) {
-                max_b = possibleFits.get(i / possibleFits2.size());
-                max = scores[i].score;
-                scoreIndex = i;
-            }
+        if (cache != null) {
+            cache.put(rootKey, max, best << 16 | bestSecond);
         }
+        Metrics.PLACEMENTS.add(evaluated);
+        return finish(board, firstType, nextType, best, bestSecond);
+    }
 
-        byte[][] chosenGrid = scores[scoreIndex].mockgrid;
+    // Shows the chosen pair if asked to, and returns the first placement.
+    private int finish(Board board, int firstType, int nextType, int best, int bestSecond) {
         if (displayGrid) {
-            printMockGrid(chosenGrid);
+            ScoreGrid chosen = evalPosition(board, firstType, nextType, best, bestSecond);
+            printMockGrid(chosen.mockgrid, chosen.placed);
         }
 
         // Return final position.
-        return max_b;
+        return best;
     }
 
-    // Evaluate position not with one, but with two blocks.
-    ScoreGrid evalPosition(TetrisEngine engine, BlockPosition firstBlock, BlockPosition secondBlock) {
+    // Key of the current weights, mixed into every cache key.
+    private long weightsKey() {
+        long key = Board.mix64(Double.doubleToLongBits(_TOUCHING_EDGES));
+        key = Board.mix64(key ^ Double.doubleToLongBits(_TOUCHING_WALLS));
+        key = Board.mix64(key ^ Double.doubleToLongBits(_TOUCHING_FLOOR));
+        key = Board.mix64(key ^ Double.doubleToLongBits(_HEIGHT));
+        key = Board.mix64(key ^ Double.doubleToLongBits(_HOLES));
+        key = Board.mix64(key ^ Double.doubleToLongBits(_BLOCKADE));
+        return Board.mix64(key ^ Double.doubleToLongBits(_CLEAR));
+    }
 
-        // First step: Simulate the drop. Do this on a mock grid.
-        // This copies the grid into the mock grid.
-        byte[][] mockgrid = new byte[engine.width][engine.height];
-        for (int i = 0; i < engine.width; i++) {
-            for (int j = 0; j < engine.height; j++) {
-                byte s = (byte) engine.blocks[i][j].getState();
-                if (s == 2) s = 0;
-                mockgrid[i][j] = s;
+    // Key of the blocks placed by the search. Different cell keys than the board
+    // hash, so a placed block and a settled block don't cancel each other out.
+    private static long placedKey(int[] placed) {
+        long key = 0;
+        for (int y = 0; y < placed.length; y++) {
+            for (int row = placed[y]; row != 0; row &= row - 1) {
+                key ^= Board.mix64(Board.cellKey(Integer.numberOfTrailingZeros(row), y));
             }
         }
+        return key;
+    }
 
-        int cleared = 0;
-        for (int blockNumber = 1; blockNumber <= 2; blockNumber++) {
-            byte[][] block;
-            BlockPosition currentBlock;
-
-            if (blockNumber == 1) {
-                currentBlock = firstBlock;
-            } else {
-                currentBlock = secondBlock;
-            }
-
-            try {
-                if (blockNumber == 1) {
-                    block = TetrisEngine.blockdef[engine.activeblock.type][currentBlock.blockRotation];
-                } else {
-                    block = TetrisEngine.blockdef[engine.nextblock.type][currentBlock.blockRotation];
-                }
-
-
-                // Find the fitting height by starting from the bottom and
-                // working upwards. The bottom of the grid is height-1, so start there
-                int h;
-                for (h = engine.height - 1; ; h--) {
-                    // Indicator to determine if fit is valid. 1: fits. 0: doesn't fit. -1: game over.
-                    int fit_state = 1;
-
-                    for (int i = 0; i < 4; i++)
-                        for (int j = 0; j < 4; j++) {
-                            // Check for bounds.
-                            boolean block_p = block[j][i] >= 1;
-
-                            if (block_p) {
-                                // Still have to check for overflow. X-overflow can't
-                                // Happen at this stage but Y-overflow can.
-
-                                if (h + j >= engine.height) {
-                                    fit_state = 0;
-                                } else if (h + j < 0) {
-                                    fit_state = -1;
-                                } else {
-                                    boolean board_p = mockgrid[i + currentBlock.blockX][h + j] >= 1;
-
-                                    // Already filled, doesn't fit.
-                                    if (board_p) {
-                                        fit_state = 0;
-                                    }
-
-                                    // Still the possibility that another block
-                                    // might still be over it.
-                                    if (fit_state == 1) {
-                                        for (int h1 = h + j - 1; h1 >= 0; h1--) {
-                                            if (mockgrid[i + currentBlock.blockX][h1] >= 1) {
-                                                fit_state = 0;
-                                                break;
-                                            }
-                                        }
-                                    }
-                                }
-                            }
-                        }
-
-                    // Game over occurred, so return a horrible score
-                    if (fit_state == -1) {
-                        return new ScoreGrid(-99999999, mockgrid);
-                    }
-
-                    // 1 = found!
-                    if (fit_state == 1) {
-                        break;
-                    }
-
-                }
+    // Evaluate position not with one, but with two blocks.
+    ScoreGrid evalPosition(TetrisEngine engine, BlockPosition firstBlock, BlockPosition secondBlock) {
+        EngineSnapshot s = engine.snapshot();
+        return evalPosition(s.board, s.activeType, s.nextType,
+                placement(firstBlock.blockRotation, firstBlock.blockX),
+                placement(secondBlock.blockRotation, secondBlock.blockX));
+    }
 
-                // copy over block position
-                for (int i = 0; i < 4; i++)
-                    for (int j = 0; j < 4; j++)
-                        if (block[j][i] == 1)
-                            mockgrid[currentBlock.blockX + i][h + j] = 2;
-
-            } catch (Exception e) {
-                if (blockNumber == 1) {
-                    log.error("Exception Found. engine.blockdef[" + engine.activeblock.type + "][" + currentBlock.blockRotation + "]");
-                } else {
-                    log.error("Exception Found. engine.blockdef[" + engine.nextblock.type + "][" + currentBlock.blockRotation + "]");
-                }
-                log.error(e.toString());
-            }
+    // Scores a single placement pair and returns a copy of the resulting board.
+    // Allocates; the search itself goes through bestPlacement().
+    ScoreGrid evalPosition(Board board, int firstType, int nextType, int firstBlock, int secondBlock) {
+        Board mockgrid = new Board(board);
+        int[] placed = new int[board.height];
 
+        int cleared = drop(mockgrid, placed, firstType, firstBlock);
+        if (cleared >= 0) {
+            int cleared2 = drop(mockgrid, placed, nextType, secondBlock);
+            cleared = cleared2 < 0 ? -1 : cleared + cleared2;
+        }
 
-            try {
-                // Check for clears
-                boolean foundline;
-                do {
-                    foundline = false;
-                    MultiLine:
-                    for (int i = mockgrid[0].length - 1; i >= 0; i--) {
-                        for (int y = 0; y < mockgrid.length; y++) {
-                            if (!(mockgrid[y][i] > 0))
-                                continue MultiLine;
-                        }
+        double score = cleared < 0 ? GAME_OVER : evaluate(mockgrid, placed, cleared);
+        return new ScoreGrid(score, mockgrid, placed);
+    }
 
-                        // Line i is full, clear it and copy
-                        cleared++;
-                        foundline = true;
-                        for (int a = i; a > 0; a--) {
-                            for (int y = 0; y < mockgrid.length; y++) {
-                                mockgrid[y][a] = mockgrid[y][a - 1];
-                            }
-                        }
-                        break MultiLine;
-                    }
-                } while (foundline);
+    // Lists every rotation and X position of a block type that stays inside the
+    // board, in rotation-then-X order. Returns how many were written to out.
+    static int listFits(int type, int width, int[] out) {
+        int n = 0;
 
-            } catch (Exception e) {
-                log.error(e.toString());
+        // Loop through the Rotations.
+        for (int i = 0; i < PlacementTable.rotations(type); i++) {
+            PlacementTable.Shape shape = PlacementTable.get(type, i);
+            // Loop through each position for a blockRotation.
+            for (int j = shape.minX(); j <= shape.maxX(width); j++) {
+                out[n++] = placement(i, j);
             }
         }
+        return n;
+    }
 
-        // Now we evaluate the resulting position.
-
-        // Part of the evaluation algorithm is to count the number of touching sides.
-        // First, Generating all pairs and see how many them are touching.
-        // If they add up to 3, it means one of them is from the active block and the
-        // other is a normal block (ie. they're touching).
-
-        double score = 0.0;
-
-        // Horizontal pairs
-        for (int i = 0; i < engine.height; i++)
-            for (int j = 0; j < engine.width - 1; j++) {
-                if (j == 0 && mockgrid[j][i] == 2) score += _TOUCHING_WALLS;
-                if (j + 1 == engine.width - 1 && mockgrid[j + 1][i] == 2) score += _TOUCHING_WALLS;
-                if (mockgrid[j][i] + mockgrid[j + 1][i] >= 3) score += _TOUCHING_EDGES;
-            }
+    // Simulates the drop of one block on a mock board and clears lines. Blocks
+    // placed here are also marked in placed. Returns the number of lines
+    // cleared, or -1 if the block doesn't fit (game over).
+    static int drop(Board mockgrid, int[] placed, int type, int placement) {
+        PlacementTable.Shape shape = PlacementTable.get(type, placementRotation(placement));
+        int blockX = placementX(placement);
+        int height = mockgrid.height;
+
+        // The landing row follows from the column heights.
+        int h = shape.dropRow(mockgrid, blockX);
+        if (h + shape.topRow < 0) {
+            return -1;
+        }
 
-        // Vertical pairs
-        for (int i = 0; i < engine.width; i++)
-            for (int j = 0; j < engine.height - 1; j++) {
-                if (j + 1 == engine.height - 1 && mockgrid[i][j + 1] == 2) score += _TOUCHING_FLOOR;
-                if (mockgrid[i][j] + mockgrid[i][j + 1] >= 3) score += _TOUCHING_EDGES;
-            }
+        // copy over block position
+        shape.fill(mockgrid, blockX, h);
+        for (int j = shape.topRow; j < 4 && shape.row(j) != 0; j++) {
+            placed[h + j] |= shape.row(j, blockX);
+        }
 
-        // Penalize height.
-        for (int i = 0; i < engine.width; i++)
-            for (int j = 0; j < engine.height; j++) {
-                int curheight = engine.height - j;
-                if (mockgrid[i][j] > 0) score += curheight * _HEIGHT;
+        // Check for clears, bottom up. A cleared line pulls the rest
+        // down, so the same row is checked again.
+        int cleared = 0;
+        for (int i = height - 1; i >= 0; ) {
+            if (mockgrid.rows[i] == mockgrid.fullRow) {
+                mockgrid.removeRow(i);
+                Board.removeRow(placed, i);
+                cleared++;
+            } else {
+                i--;
             }
+        }
+        return cleared;
+    }
 
-        // Penalize holes. Also penalize blocks above holes.
-        for (int i = 0; i < engine.width; i++) {
-
-            // Part 1: Count how many holes (space beneath blocks)
-            boolean f = false;
-            int holes = 0;
-            for (int j = 0; j < engine.height; j++) {
-                if (mockgrid[i][j] > 0) f = true;
-                if (f && mockgrid[i][j] == 0) holes++;
-            }
+    // Now we evaluate the resulting position. The search scores whole batches
+    // of positions at once, see FeatureBatch; this scores a single one.
+    double evaluate(Board mockgrid, int[] placed, int cleared) {
+        single.set(0, mockgrid, placed, cleared);
+        single.score(this, 1, singleScore);
+        return singleScore[0];
+    }
 
-            // Part 2: Count how many blockades (block above space)
-            f = false;
-            int blockades = 0;
-            for (int j = engine.height - 1; j >= 0; j--) {
-                if (mockgrid[i][j] == 0) f = true;
-                if (f && mockgrid[i][j] > 0) blockades++;
-            }
+    // Placements are packed into one int: rotation in the high bits and
+    // X in the low byte, offset so that negative positions stay positive.
+    static int placement(int rotation, int x) {
+        return rotation << 8 | (x + PLACEMENT_X_OFFSET);
+    }
 
-            score += _HOLES * holes;
-            score += _BLOCKADE * blockades;
-        }
+    static int placementX(int placement) {
+        return (placement & 0xFF) - PLACEMENT_X_OFFSET;
+    }
 
-        score += cleared * _CLEAR;
+    static int placementRotation(int placement) {
+        return placement >>> 8;
+    }
 
-        if (displayScore) {
-            printMockGrid(mockgrid);
-            log.info(String.valueOf(score));
+    // Sizes the scratch buffers for a board. They are reused by every call,
+    // so a TetrisAI must only be used by one thread at a time.
+    private void ensureScratch(Board board) {
+        if (root != null && root.width == board.width && root.height == board.height) {
+            return;
         }
-
-        return new ScoreGrid(score, mockgrid);
+        root = new Board(board.width, board.height);
+        first = new Board(board.width, board.height);
+        second = new Board(board.width, board.height);
+        placedFirst = new int[board.height];
+        placedSecond = new int[board.height];
+
+        // At most 4 rotations, each with at most width + 3 positions.
+        fits = new int[4 * (board.width + 3)];
+        fits2 = new int[4 * (board.width + 3)];
+        batch = new FeatureBatch(fits2.length);
+        scores2 = new double[fits2.length];
     }
 
-    public void printMockGrid(byte[][] mockgrid) {
-        for (int yMock = 0; yMock < mockgrid[0].length; yMock++) {
-            for (int xMock = 0; xMock < mockgrid.length; xMock++) {
-                log.debug(mockgrid[xMock][yMock] + " ");
+    // Prints the mock board: 0 for empty, 1 for filled and 2 for blocks placed by the AI.
+    public void printMockGrid(Board mockgrid, int[] placed) {
+        for (int yMock = 0; yMock < mockgrid.height; yMock++) {
+            StringBuilder sb = new StringBuilder();
+            for (int xMock = 0; xMock < mockgrid.width; xMock++) {
+                int cell = (placed[yMock] >>> xMock & 1) != 0 ? 2 : mockgrid.isFilled(xMock, yMock) ? 1 : 0;
+                sb.append(cell).append(' ');
             }
+            log.debug(sb.toString());
         }
     }
 
@@ -392,16 +458,17 @@ public class TetrisAI {
                 try {
                     // If it's merely paused, do nothing; if it's actually game over
                     // then break loop entirely.
-                    if (engine.state.equals(ProjectConstants.GameState.PLAYING)) {
-                        if (engine.activeblock == null) continue;
+                    EngineSnapshot s = engine.snapshot();
+                    if (s.state == ProjectConstants.GameState.PLAYING) {
+                        if (!s.hasActive()) continue;
 
-                        BlockPosition temp = computeBestFit(engine);
+                        BlockPosition temp = computeBestFit(s.board, s.activeType, s.nextType);
 
                         if (displayScore) {
                             log.info("*********** BEST FIT: (" + temp.blockX + ", " + temp.blockRotation + ")");
                         }
 
-                        if (engine.state.equals(ProjectConstants.GameState.PLAYING)) {
+                        if (engine.snapshot().state == ProjectConstants.GameState.PLAYING) {
 
                             int bestFitX = temp.blockX;
                             int bestFitRotation = temp.blockRotation;
@@ -419,55 +486,53 @@ public class TetrisAI {
 
         }
 
-        // Keypresses to move block to calculated position.
+        // Keypresses to move block to calculated position. Every key is a
+        // command for the engine's game loop, so wait for it to be applied
+        // before looking at the block again. Stops once the block has dropped.
         private void movehere(int finalX, int finalBlockRotation) {
-            int st_blocksdropped = engine.blocksdropped;
+            EngineSnapshot s = engine.snapshot();
+            int st_blocksdropped = s.blocksdropped;
 
             // Failsafe here: if at any time we Rotate it
             // or move it and it doesn't move then it's stuck and we give up.
 
-            int init_state = engine.activeblock.rot;
+            int init_state = s.activeRot;
             int prev_state = init_state;
-            while (flag && engine.activeblock.rot != finalBlockRotation) {
+            while (flag && s.blocksdropped == st_blocksdropped && s.activeRot != finalBlockRotation) {
                 // Rotate first so we don't get stuck in the edges.
-                engine.keyrotate();
+                long ticket = engine.keyrotate();
 
                 //Now wait.
                 sleep_(waitTime);
+                s = engine.awaitSnapshot(ticket);
 
-                if (prev_state == engine.activeblock.rot || init_state == engine.activeblock.rot) {
-                    engine.keyslam();
+                if (prev_state == s.activeRot || init_state == s.activeRot) {
+                    s = engine.awaitSnapshot(engine.keyslam());
                     sleep_(3);
                 }
-                prev_state = engine.activeblock.rot;
+                prev_state = s.activeRot;
             }
 
-            prev_state = engine.activeblock.x;
-            while (flag && engine.activeblock.x != finalX) {
+            prev_state = s.activeX;
+            while (flag && s.blocksdropped == st_blocksdropped && s.activeX != finalX) {
                 // Move the block left/right
-                if (engine.activeblock.x < finalX) {
-                    engine.keyright();
-                } else if (engine.activeblock.x > finalX) {
-                    engine.keyleft();
-                }
+                long ticket = s.activeX < finalX ? engine.keyright() : engine.keyleft();
 
                 sleep_(waitTime);
-                
-                try {
-                    if (prev_state == engine.activeblock.x) {
-                        engine.keyslam();
-                        sleep_(3);
-                    }
-                } catch (Error error) {
-                    log.error(error.getMessage());
+                s = engine.awaitSnapshot(ticket);
+
+                if (prev_state == s.activeX) {
+                    s = engine.awaitSnapshot(engine.keyslam());
+                    sleep_(3);
                 }
-                prev_state = engine.activeblock.x;
+                prev_state = s.activeX;
             }
 
-            while (flag && engine.blocksdropped == st_blocksdropped) {
+            while (flag && s.blocksdropped == st_blocksdropped) {
                 // Move it down until it drops a new block.
-                engine.keydown();
+                long ticket = engine.keydown();
                 sleep_(waitTime);
+                s = engine.awaitSnapshot(ticket);
             }
         }
     }
@@ -481,15 +546,12 @@ class BlockPosition {
 
 class ScoreGrid {
     double score;
-    byte[][] mockgrid;
+    Board mockgrid;
+    int[] placed;
 
-    public ScoreGrid(double scr, byte[][] grid) {
+    public ScoreGrid(double scr, Board grid, int[] placed) {
         this.score = scr;
         this.mockgrid = grid;
+        this.placed = placed;
     }
-
-    public ScoreGrid() {
-        this.score = 0.0;
-        this.mockgrid = new byte[0][0];
-    }
-}
\ No newline at end of file
+}
@@ -1,22 +1,46 @@
 package com.fermanis.aitetris;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.awt.*;
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import static com.fermanis.aitetris.ProjectConstants.addLeadingZeroes;
-import static com.fermanis.aitetris.ProjectConstants.sleep_;
 
 
 /*This class calculates most of the block positions,
  * rotations, etc, although the TetrisPanel object
  * still keeps track of the concrete block coordinates.
- * This class will change variables in the TetrisPanel class.*/
+ * This class will change variables in the TetrisPanel class.
+ *
+ * Only the game loop changes the game. Key presses are queued as
+ * commands and applied by the game loop in order; after every update
+ * it publishes an immutable EngineSnapshot that the renderer and the AI
+ * read without locking. The game loop has no thread of its own: every
+ * update is a task on a ScheduledExecutorService, woken up by commands
+ * or by a timer for the next step, fade or reset, and never more than
+ * one update of an engine runs at a time.*/
 public class TetrisEngine
 {
 
 
 	//---------------VARIABLES--------------//
 
+	private static final Logger log = LoggerFactory.getLogger(TetrisEngine.class);
+
+	/*Failed updates in a row after which the game loop gives up.*/
+	static final int MAX_FAILED_UPDATES = 10;
+
 	/*Bunch of hardcoded blocks and their rotations.
 	 * Code them high up in the array so that when you
 	 * get a new one it appears in the highest spot
@@ -165,8 +189,8 @@ public class TetrisEngine
 	TetrisPanel tetris;
 
 
-	/*Random object used to generate new blocks.*/
-	Random rdm;
+	/*Where new blocks come from, see app.piece_source.*/
+	PieceSource pieces;
 
 
 	/*Primitive representation of active block.*/
@@ -185,8 +209,57 @@ public class TetrisEngine
 	int stepcount = 0;
 
 
-	/*Thread to run for the game.*/
-	Thread gamethread;
+	/*Runs the game loop, see wake().*/
+	final ScheduledExecutorService scheduler;
+
+
+	/*Was the scheduler created for this engine alone? See shutdown().*/
+	private final boolean ownsScheduler;
+
+
+	/*Wake ups not yet handled by an update. An update is queued or
+	 * running whenever this isn't 0.*/
+	private final AtomicInteger wakeups = new AtomicInteger();
+
+
+	/*Timed wake up for the next step, fade or reset. Only touched by updates.*/
+	private ScheduledFuture<?> timer;
+
+
+	/*Updates that threw, in a row. Only changed by updates.*/
+	volatile int failedupdates = 0;
+
+
+	/*Has startengine() been called?*/
+	private volatile boolean started = false;
+
+
+	/*Input commands, see the key functions.*/
+	enum Command { LEFT, RIGHT, DOWN, ROTATE, SLAM, PAUSE }
+
+
+	/*Commands waiting for the game loop, oldest first.*/
+	private final Queue<Command> commands = new ConcurrentLinkedQueue<Command>();
+
+
+	/*Commands submitted so far, and applied so far by the game loop.*/
+	private final AtomicLong submitted = new AtomicLong();
+	private long applied = 0;
+
+
+	/*Latest published state, see snapshot().*/
+	private volatile EngineSnapshot snapshot;
+
+
+	/*Rows being faded out before they are removed, and the fade timing.*/
+	private ArrayList<Integer> fadelines;
+	private long fadestart, lastfade;
+
+
+	/*When a game over clears the board and when the AI restarts,
+	 * -1 when not pending.*/
+	long resetat = -1, restartat = -1;
+	private int lastscore = 0;
 
 
 	/*Size of Tetris window, in pixels.*/
@@ -205,10 +278,15 @@ public class TetrisEngine
 	 * See squaredim.*/
 	public int nextblockdim = 18;
 
-	/*DBlock array representation of the gamefield. Blocks are
-	 * counted X first starting from the top left: blocks[5][3]
-	 * would be a block 5 left and 3 down from (0,0).*/
-	public volatile Block[][] blocks;
+	/*Bitboard representation of the gamefield. Only settled blocks
+	 * are stored; the active block is drawn on top of it. Rows are
+	 * counted from the top: board.isFilled(5,3) is the block
+	 * 5 left and 3 down from (0,0).*/
+	public final Board board;
+
+	/*Color layer for the gamefield, only used for drawing. Indexed
+	 * X first like the board: colors[5][3].*/
+	Color[][] colors;
 
 	/*Score*/
 	public int score = 0;
@@ -239,7 +317,15 @@ public class TetrisEngine
 	/* How many lines did the AI get last time? */
 	public int lastlines = 0;
 
-	long lastnewblock = System.currentTimeMillis();
+	/*Logical clock of the game: gravity steps taken so far. It
+	 * counts engine events, not wall time, so a GC pause or a busy
+	 * host can't make a game look slow.*/
+	public long ticks = 0;
+
+	/*Commands applied to the active block so far. An AI block that
+	 * lands by gravity without any is an anomaly: the AI missed it
+	 * and the game no longer measures its weights.*/
+	private int blockcommands = 0;
 	boolean anomaly_flag = false;
 
 	public boolean useSounds = false;
@@ -247,61 +333,69 @@ public class TetrisEngine
 
 	public boolean presetState = false;
 
+	/*Records every placement to app.replay_file when that is set,
+	 * with ticks as the time.*/
+	private GameRecorder recorder;
+
 
 	/*Public constructor. Remember to call startengine()
 	 * or else this won't do anything!
 	 * @param p TetrisPanel.*/
 	public TetrisEngine(TetrisPanel p)
 	{
+		this(p, GameScheduler.create(1), true);
+	}
+
+	/*Constructor for an engine that shares a scheduler with others.
+	 * shutdown() leaves the scheduler running.
+	 * @param p TetrisPanel.
+	 * @param scheduler Runs the game loop.*/
+	public TetrisEngine(TetrisPanel p, ScheduledExecutorService scheduler)
+	{
+		this(p, scheduler, false);
+	}
+
+	private TetrisEngine(TetrisPanel p, ScheduledExecutorService scheduler, boolean ownsScheduler)
+	{
+		this.scheduler = scheduler;
+		this.ownsScheduler = ownsScheduler;
+
 		//Bounds changed to be thus:
 		bounds = new Dimension(squaredim*width,squaredim*height);
 
-		//Initialize a DBlock array and set all its contents
-		// to DBlock.EMPTY.
-		blocks = new Block[width][height];
-		for(int t1 = 0;t1 < blocks.length;t1++)
+		//Initialize an empty board and its color layer.
+		board = new Board(width, height);
+		colors = new Color[width][height];
+		for(int t1 = 0;t1 < colors.length;t1++)
 		{
-			for(int t2 = 0;t2 < blocks[t1].length;t2++)
-			{
-				blocks[t1][t2] = new Block(Block.EMPTY);
-			}
+			Arrays.fill(colors[t1], Block.emptycolor);
 		}
 
 		if (presetState)
 		{
 			for (int i = 0; i < width; i++)
-				blocks[i][15] = new Block(Block.FILLED);
+				board.fill(i, 15);
 		}
 
 		//Initialize objects.
 		tetris = p;
-		rdm = new Random();
+		pieces = PieceSource.forName(ConfigurationManager.getSetting("app.piece_source", "uniform"),
+				new Random().nextLong());
 
-		//Initialize game thread.
-		gamethread = new Thread(){
-			public void run()
+		String replay = ConfigurationManager.getSetting("app.replay_file", "");
+		if(!replay.isEmpty())
+		{
+			try
 			{
-				while(true)
-				{
-
-					long timeelapsedsincelaststep =
-						System.currentTimeMillis() - laststep;
-
-					//Took too much CPU.
-					sleep_(steptime/2);
-
-					//Break loop if game isn't even playing.
-					//Best to put AFTER sleeping.
-					synchronized(TetrisEngine.this)
-					{
-						if(!(state == ProjectConstants.GameState.PLAYING))
-							continue;
-						if(timeelapsedsincelaststep > steptime)
-							step();
-					}
-				}
+				recorder = new GameRecorder(new File(replay), width, height);
+			}
+			catch(IOException e)
+			{
+				log.error("Can't record to " + replay, e);
 			}
-		};
+		}
+
+		publish();
 	}
 
 
@@ -310,9 +404,11 @@ public class TetrisEngine
 	//---------------FUNCTIONS---------------//
 
 
-	/*Draws the stuff, minus backgrounds, etc.*/
-	public synchronized void draw(Graphics g)
+	/*Draws the stuff, minus backgrounds, etc. Reads the latest
+	 * snapshot only, so it never waits for the game loop.*/
+	public void draw(Graphics g)
 	{
+		EngineSnapshot s = snapshot;
 
 		//The coordinates of the top left corner of the game board.
 		int mainx = (tetris.getWidth() - bounds.width) / 2 + 50;
@@ -326,26 +422,47 @@ public class TetrisEngine
 		g.setColor(Color.BLACK);
 		g.setFont(new Font(Font.MONOSPACED,Font.BOLD,18));
 
-		g.drawString(addLeadingZeroes(score,6), 156, 213);//Draw score
-		g.drawString(addLeadingZeroes(lines, 3), 156, 250);//Draw lines
+		g.drawString(addLeadingZeroes(s.score,6), 156, 213);//Draw score
+		g.drawString(addLeadingZeroes(s.lines, 3), 156, 250);//Draw lines
 
 		//Loop and draw all the blocks.
-		for(int c1 = 0;c1 < blocks.length;c1++)
+		for(int c1 = 0;c1 < width;c1++)
 		{
-			for(int c2 = 0;c2 < blocks[c1].length;c2++)
+			for(int c2 = 0;c2 < height;c2++)
 			{
-				// Just in case block's null, it doesn't draw as black.
-				g.setColor(Block.emptycolor);
-				g.setColor(blocks[c1][c2].getColor());
+				//Cleared blocks keep their (fading) color until
+				//they are removed, so read the color layer.
+				g.setColor(s.color(c1, c2));
 
 				g.fillRect(mainx+c1*squaredim,
 						mainy+c2*squaredim, squaredim, squaredim);
+			}
+		}
 
-				//Draw square borders.
-				g.setColor(new Color(255,255,255,25));
+		//The active block isn't part of the board; draw it on top.
+		if(s.hasActive())
+		{
+			PlacementTable.Shape shape = PlacementTable.get(s.activeType, s.activeRot);
+			g.setColor(s.activeColor);
+			for(int i = 0;i < 4;i++)
+			{
+				for(int r = 0;r < 4;r++)
+				{
+					if((shape.row(i) >>> r & 1) != 0)
+						g.fillRect(mainx+(s.activeX+r)*squaredim,
+								mainy+(s.activeY+i)*squaredim, squaredim, squaredim);
+				}
+			}
+		}
+
+		//Draw square borders.
+		g.setColor(new Color(255,255,255,25));
+		for(int c1 = 0;c1 < width;c1++)
+		{
+			for(int c2 = 0;c2 < height;c2++)
+			{
 				g.drawRect(mainx+c1*squaredim,
 						mainy+c2*squaredim, squaredim, squaredim);
-
 			}
 		}
 
@@ -353,22 +470,17 @@ public class TetrisEngine
 		int nexty = 336;
 
 
-		//Less typing.
-		Block[][] nextb = null;
-		if(nextblock != null)
+		if(s.hasNext())
 		{
-			nextb = nextblock.array;
+			PlacementTable.Shape next = PlacementTable.get(s.nextType, s.nextRot);
 			//Loop and draw next block.
-			for(int c1 = 0;c1 < nextb.length;c1++)
+			g.setColor(new Color(0,0,0,128));
+			for(int c1 = 0;c1 < 4;c1++)
 			{
-				for(int c2 = 0;c2 < nextb[c1].length;c2++)
+				for(int c2 = 0;c2 < 4;c2++)
 				{
-					Color c = nextb[c2][c1].getColor();
-
-					if(c != null && !c.equals(Block.emptycolor))
+					if((next.row(c2) >>> c1 & 1) != 0)
 					{
-						g.setColor(new Color(0,0,0,128));
-
 						g.fillRect(nextx+c1*nextblockdim,
 							nexty+c2*nextblockdim, nextblockdim, nextblockdim);
 					}
@@ -377,21 +489,21 @@ public class TetrisEngine
 		}
 
 
-		if(state == ProjectConstants.GameState.PAUSED || state == ProjectConstants.GameState.GAMEOVER)
+		if(s.state == ProjectConstants.GameState.PAUSED || s.state == ProjectConstants.GameState.GAMEOVER)
 		{
 			g.setColor(new Color(255,255,255,160));
 			g.setFont(new Font(Font.SERIF,Font.BOLD,16));
 			String pausestring = null;
 
-			if(state == ProjectConstants.GameState.PAUSED)
+			if(s.state == ProjectConstants.GameState.PAUSED)
 				pausestring = "(SHIFT to play).";
 
-			if(state == ProjectConstants.GameState.GAMEOVER){
+			if(s.state == ProjectConstants.GameState.GAMEOVER){
 				if(tetris.isHumanControlled)
 					pausestring = "Game over (SHIFT to restart).";
 				else
-					pausestring = Integer.toString(lastlines) +
-						(lastlines==1?" Line":" Lines");
+					pausestring = Integer.toString(s.lastlines) +
+						(s.lastlines==1?" Line":" Lines");
 			}
 
 			g.drawString(pausestring,
@@ -401,59 +513,263 @@ public class TetrisEngine
 	}
 
 
-	/*Called when the RIGHT key is pressed.*/
-	public void keyright()
+	/*Latest published state of the game. Safe to call from any thread.*/
+	public EngineSnapshot snapshot()
 	{
-		if(activeblock==null || state!= ProjectConstants.GameState.PLAYING)
-			return;
+		return snapshot;
+	}
 
-		activeblock.x++;
 
-		//Failsafe: Revert XPosition.
-		if(!copy())activeblock.x--;
+	/*Waits until the game loop has applied the command with the given
+	 * ticket, for at most one step, and returns the snapshot published
+	 * after it. Exact as long as one thread submits commands (the AI).*/
+	public EngineSnapshot awaitSnapshot(long ticket)
+	{
+		long start = System.nanoTime();
+		long deadline = start + steptime * 1000000L;
+		EngineSnapshot s = snapshot;
+		while(s.applied < ticket && System.nanoTime() < deadline)
+		{
+			LockSupport.parkNanos(50000);
+			s = snapshot;
+		}
+		Metrics.AWAIT_MICROS.record((System.nanoTime() - start) / 1000);
+		return s;
+	}
 
+
+	/*Queues a command for the game loop and wakes it up.
+	 * Returns the ticket of the command, see awaitSnapshot().*/
+	private long submit(Command c)
+	{
+		long ticket = submitted.incrementAndGet();
+		commands.offer(c);
+		wake();
+		return ticket;
 	}
 
-	/*Called when the LEFT key is pressed.*/
-	public void keyleft()
+
+	/*Makes sure an update runs soon. Wake ups that come in while an
+	 * update is queued or running are handled by that same task, which
+	 * runs update() again, so updates never overlap.*/
+	private void wake()
 	{
-		if(activeblock==null || state!= ProjectConstants.GameState.PLAYING)
-			return;
+		if(started && wakeups.getAndIncrement() == 0)
+			scheduler.execute(turn);
+	}
 
-		activeblock.x--;
+	private final Runnable turn = new Runnable(){
+		public void run()
+		{
+			int n;
+			do
+			{
+				n = wakeups.get();
+				if(!started)
+				{//Shut down, see shutdown().
+					if(timer != null)timer.cancel(false);
+					closerecorder();
+					continue;
+				}
+				long wait;
+				try
+				{
+					wait = update();
+					if(failedupdates > 0)
+					{
+						log.info("Game loop recovered after " + failedupdates + " failed updates");
+						failedupdates = 0;
+					}
+				}
+				catch(RuntimeException e)
+				{
+					//Logged once; the same failure tends to repeat every update.
+					if(++failedupdates == 1)
+						log.error("Game loop update failed, retrying", e);
+					if(failedupdates >= MAX_FAILED_UPDATES)
+					{
+						log.error("Game loop failed " + failedupdates + " updates in a row, stopping the engine");
+						started = false;
+						closerecorder();
+						continue;
+					}
+					wait = steptime/2;
+				}
+
+				//Only the latest timer counts.
+				if(timer != null)timer.cancel(false);
+				timer = scheduler.schedule(wakeup, wait, TimeUnit.MILLISECONDS);
+			}
+			while(wakeups.addAndGet(-n) != 0);
+		}
+	};
 
-		//Failsafe: Revert XPosition.
-		if(!copy())activeblock.x++;
+	private final Runnable wakeup = new Runnable(){
+		public void run()
+		{
+			wake();
+		}
+	};
+
+
+	/*Called when the RIGHT key is pressed.*/
+	public long keyright()
+	{
+		return submit(Command.RIGHT);
+	}
+
+	/*Called when the LEFT key is pressed.*/
+	public long keyleft()
+	{
+		return submit(Command.LEFT);
 	}
 
 	/*Called when the DOWN key is pressed.*/
-	public void keydown()
+	public long keydown()
+	{
+		return submit(Command.DOWN);
+	}
+
+	/*Called when rotate key is called (Z or UP)*/
+	public long keyrotate()
+	{
+		return submit(Command.ROTATE);
+	}
+
+	/*Called when slam key (SPACE) is pressed.*/
+	public long keyslam()
 	{
+		return submit(Command.SLAM);
+	}
+
+	/*Called when the pause key (SHIFT) is pressed.*/
+	public long keypause()
+	{
+		return submit(Command.PAUSE);
+	}
+
+
+	/*One turn of the game loop: applies the queued commands,
+	 * steps the block, runs the fade and game over timers and
+	 * publishes a new snapshot. Returns the time in milliseconds
+	 * until the next timed event.*/
+	long update()
+	{
+		Metrics.ENGINE_UPDATES.increment();
+		Command c;
+		while((c = commands.poll()) != null)
+		{
+			apply(c);
+			applied++;
+		}
+
+		long now = System.currentTimeMillis();
+		long wait = steptime/2;
+
+		if(state == ProjectConstants.GameState.PLAYING)
+		{
+			if(now - laststep > steptime)
+			{
+				//However long the wait was, it is one step.
+				ticks++;
+				Tetromino falling = activeblock;
+				//Read first: landing can bring in the next block, which resets the count.
+				int commandsapplied = blockcommands;
+				step();
+				if(falling != null && activeblock != falling)
+					landedbygravity(commandsapplied);
+			}
+			wait = Math.max(1, laststep + steptime + 1 - System.currentTimeMillis());
+		}
+
+		if(fadelines != null)
+		{
+			fade(now);
+			wait = Math.min(wait, 20);
+		}
+
+		if(resetat >= 0 && now >= resetat)
+		{
+			resetat = -1;
+			reset();
+		}
+		if(restartat >= 0 && now >= restartat)
+		{
+			restartat = -1;
+			restart();
+		}
+		if(resetat >= 0)wait = Math.min(wait, Math.max(1, resetat - now));
+		if(restartat >= 0)wait = Math.min(wait, Math.max(1, restartat - now));
+
+		publish();
+		return wait;
+	}
+
+	/*Publishes the current state for the other threads.*/
+	private void publish()
+	{
+		snapshot = new EngineSnapshot(this, applied);
+	}
+
+	/*Applies one input command.*/
+	private void apply(Command c)
+	{
+		if(c == Command.PAUSE)
+		{
+			if(state == ProjectConstants.GameState.PAUSED)
+				state = ProjectConstants.GameState.PLAYING;
+			else
+				state = ProjectConstants.GameState.PAUSED;
+			return;
+		}
+
 		if(activeblock==null || state!= ProjectConstants.GameState.PLAYING)
 			return;
 
-		step();
+		blockcommands++;
+		switch(c)
+		{
+		case LEFT:
+			activeblock.x--;
+
+			//Failsafe: Revert XPosition.
+			if(!copy())activeblock.x++;
+			break;
+		case RIGHT:
+			activeblock.x++;
+
+			//Failsafe: Revert XPosition.
+			if(!copy())activeblock.x--;
+			break;
+		case DOWN:
+			step();
+			break;
+		case ROTATE:
+			rotate();
+			break;
+		case SLAM:
+			slam();
+			break;
+		default:
+			break;
+		}
 	}
 
-	/*Called when rotate key is called (Z or UP)*/
-	public void keyrotate()
+	/*Rotates the active block, unless it doesn't fit.*/
+	private void rotate()
 	{
-		if(activeblock==null || activeblock.array == null || state!= ProjectConstants.GameState.PLAYING)
+		if(activeblock.shape == null)
 			return;
 
-
-		Block[][] lastblock = copy2D(activeblock.array);
 		int lastrot = activeblock.rot;
 
 		//Next rotation in array.
 		if(activeblock.rot == blockdef[activeblock.type].length-1)
 		{
-			activeblock.rot = 0;
+			activeblock.setRotation(0);
 		}
-		else activeblock.rot++;
+		else activeblock.setRotation(activeblock.rot+1);
 
-		activeblock.array = toBlock2D(
-				blockdef[activeblock.type][activeblock.rot]);
 		if (useSounds)
 		{
 			tetris.sound.sfx(SoundManager.Sounds.ROTATE);
@@ -461,208 +777,181 @@ public class TetrisEngine
 
 		//Failsafe revert.
 		if(!copy()){
-			activeblock.array = lastblock;
-			activeblock.rot = lastrot;
+			activeblock.setRotation(lastrot);
 		}
 	}
 
-	/*Called when slam key (SPACE) is pressed.*/
-	public void keyslam()
+	/*Drops the active block all the way down.*/
+	private void slam()
 	{
-		if(activeblock==null || state!= ProjectConstants.GameState.PLAYING)
-			return;
-
 		laststep = System.currentTimeMillis();
 
 		//This will game over pretty damn fast!
-		if(activeblock.array == null)newblock();
+		if(activeblock.shape == null)newblock();
 
-		while(true)
-		{
-			activeblock.y++;
-
-			if(!copy())
-			{
-				donecurrent();
-				return;
-			}
-		}
+		//Straight to the landing row, in one step.
+		activeblock.y = activeblock.shape.landingRow(board, activeblock.x, activeblock.y);
+		donecurrent();
 	}
 
 	/*Should be called AFTER swing initialization. This is so
 	 * the first block doesn't appear halfway down the screen.*/
-	public synchronized void startengine()
+	public void startengine()
 	{
-		if(!gamethread.isAlive())gamethread.start();
+		if(started)
+			return;
+		started = true;
+		wake();
+	}
+
+	/*Stops the engine for good: no update runs after the current one,
+	 * the recording is closed, and the scheduler is shut down if the
+	 * engine created it.*/
+	public void shutdown()
+	{
+		started = false;
+		//Counts as a wake up: if no update is running, run the game loop
+		//here to close up; otherwise the running one does it next.
+		if(wakeups.getAndIncrement() == 0)
+			turn.run();
+		if(ownsScheduler)
+			scheduler.shutdown();
+	}
+
+	/*Writes the recording to disk and closes it. Only called by the game loop.*/
+	private void closerecorder()
+	{
+		if(recorder == null)
+			return;
+		try
+		{
+			recorder.close();
+		}
+		catch(IOException e)
+		{
+			log.error("Can't close recording", e);
+		}
+		recorder = null;
 	}
 
 	/*Resets the blocks but keeps everything else.*/
-	public synchronized void clear()
+	public void clear()
 	{
-		for(int i = 0;i < blocks.length;i++)
+		if(recorder != null)
+			recorder.gameOver((int)ticks);
+		board.clear();
+		for(int i = 0;i < colors.length;i++)
 		{
-			for(int j = 0;j < blocks[i].length;j++)
-			{
-				blocks[i][j] = new Block(Block.EMPTY);
-			}
+			Arrays.fill(colors[i], Block.emptycolor);
 		}
 	}
 
 	/*Fully resets everything.*/
-	public synchronized void reset()
+	public void reset()
 	{
 		score=0;
 		lines=0;
 		clear();
-		activeblock.array = null;
+		if(activeblock != null)
+			activeblock.shape = null;
 	}
 
 
-	/*Done the current block; plays the FALL sound and changes
-	 * all active blocks to filled.*/
-	private synchronized void donecurrent()
+	/*Done the current block; plays the FALL sound and writes
+	 * the active block into the board as filled blocks.*/
+	private void donecurrent()
 	{
 		if (useSounds)
 		{
 			tetris.sound.sfx(SoundManager.Sounds.FALL);
 		}
-		for(int i = 0;i < blocks.length;i++)
+		if(activeblock != null && activeblock.shape != null)
 		{
-			for(int r = 0;r < blocks[i].length;r++)
+			if(recorder != null)
+				recorder.record(activeblock.type, activeblock.rot,
+						activeblock.x, activeblock.y, (int)ticks);
+			for(int i = 0;i < 4;i++)
 			{
-				if(blocks[i][r].getState() == Block.ACTIVE)
-					blocks[i][r].setState(Block.FILLED);
+				for(int mask = activeblock.shape.row(i);mask != 0;mask &= mask-1)
+				{
+					int bx = activeblock.x+Integer.numberOfTrailingZeros(mask), by = activeblock.y+i;
+					board.fill(bx, by);
+					colors[bx][by] = activeblock.color;
+				}
 			}
 		}
 
 		checkforclears();//Moving this here.
 	}
 
-	/*Called when Game Over (Blocks stacked so high that copy() fails)*/
-	private synchronized void gameover()
+	/*Called when Game Over (Blocks stacked so high that copy() fails).
+	 * The board is cleared a while later by the game loop, see update().*/
+	private void gameover()
 	{
 		//Check first.
 		if(state == ProjectConstants.GameState.GAMEOVER)
 			return;
 
-		//Return immediately.
-		new Thread(){public void run(){
-			//pause the game first.
-			state = ProjectConstants.GameState.GAMEOVER;
-			if(!tetris.isHumanControlled)
-				tetris.controller.flag=false;
-
-			//die sound.
-			if (useSounds)
-			{
-				tetris.sound.sfx(SoundManager.Sounds.DIE);
-			}
-
-			if(!tetris.isHumanControlled){
-				lastlines = lines;
-			}
-
-			int lastscore = score;
-
-			sleep_(1200);
-			try
-			{
-				reset();
-			}
-			catch (Exception e)
-			{
-
-			}
-			sleep_(100);
-
-			if(!tetris.isHumanControlled){
-				if(!anomaly_flag)
-					tetris.genetic.sendScore(lastscore);
-				tetris.controller = new TetrisAI(tetris);
-				tetris.genetic.setAIValues(tetris.controller);
-				state = ProjectConstants.GameState.PLAYING;
-				tetris.controller.sendReady();
-				anomaly_flag = false;
-				lastnewblock = System.currentTimeMillis();
-			}
-
-		}}.start();
+		//pause the game first.
+		state = ProjectConstants.GameState.GAMEOVER;
+		if(tetris != null && !tetris.isHumanControlled)
+			tetris.controller.flag=false;
 
-	}
-
-	/*Copies the position of the active block into
-	 * the abstract block grid. Returns false if a block
-	 * already exists under it, true otherwise.
-	 *
-	 * This method isn't very efficient. Thus, it must be
-	 * synchronized.*/
-	private synchronized boolean copy()
-	{
-		try{
-
-		if(activeblock==null || activeblock.array==null)
-			return false;//Early NullPointerException failsafe
-
-		int x = activeblock.x;
-		int y = activeblock.y;
-		Block[][] buffer = copy2D(blocks);
-
-		//Check if any blocks already have a block under them.
-		//If yes, immediately return.
-		for(int i = 0;i < 4;i++)
+		//die sound.
+		if (useSounds)
 		{
-			for(int r = 0;r < 4;r++)
-			{
-				if(activeblock.array[r][i].getState() == Block.ACTIVE
-					&&buffer[x+i][y+r].getState() == Block.FILLED)
-				{
-					return false;
-				}
-			}
+			tetris.sound.sfx(SoundManager.Sounds.DIE);
 		}
 
-		//First remove all active blocks.
-		for(int i = 0;i < buffer.length;i++)
-		{
-			for(int r = 0;r < buffer[i].length;r++)
-			{
-				if(buffer[i][r].getState() == Block.ACTIVE)
-				{
-					buffer[i][r].setState(Block.EMPTY);
-					buffer[i][r].setColor(Block.emptycolor);
-				}
-			}
+		if(aiplaying()){
+			lastlines = lines;
 		}
 
-		//Then fill in blocks from the new position.
-		for(int i = 0;i < 4;i++)
-		{
-			for(int r = 0;r < 4;r++)
-			{
-				if(activeblock.array[i][r].getState() == Block.ACTIVE)
-				{
-					buffer[x+r][y+i].setState(Block.ACTIVE);
+		lastscore = score;
+		Metrics.GAME_LINES.record(lines);
 
-					//facepalm.
-					buffer[x+r][y+i].setColor(activeblock.color);
-				}
-			}
+		long now = System.currentTimeMillis();
+		resetat = now + 1200;
+		restartat = now + 1300;
+	}
+
+	/*Second half of a game over: reports the score and lets a new AI play.
+	 * Without a panel there is no AI to hand over to; like a human game it
+	 * waits for a restart.*/
+	private void restart()
+	{
+		if(tetris != null && !tetris.isHumanControlled){
+			if(!anomaly_flag)
+				tetris.genetic.sendScore(lastscore);
+			tetris.controller = new TetrisAI(tetris);
+			tetris.genetic.setAIValues(tetris.controller);
+			state = ProjectConstants.GameState.PLAYING;
+			tetris.controller.sendReady();
+			anomaly_flag = false;
 		}
+	}
 
-		//Nothing threw an exception; now copy the buffer.
-		blocks = copy2D(buffer);
+	/*Checks the position of the active block against the
+	 * board. Returns false if it is out of bounds or a block
+	 * already exists under it, true otherwise. The active block
+	 * itself is never written into the board until donecurrent().*/
+	boolean copy()
+	{
+		if(activeblock==null || activeblock.shape==null)
+			return false;
 
-		}catch(ArrayIndexOutOfBoundsException e)
-		{return false;}//Noob bounds detection.
-					//Exceptions are supposedly slow but
-					//performance isn't really an issue
-					//here.
+		return activeblock.shape.canPlace(board, activeblock.x, activeblock.y);
+	}
 
-		return true;
+	/*Collision check with explicit bounds: true if a block of
+	 * this type and rotation fits on the board at (x, y).*/
+	public boolean canPlace(int type, int rot, int x, int y)
+	{
+		return PlacementTable.get(type, rot).canPlace(board, x, y);
 	}
 
 	/*Steps into the next phase if possible.*/
-	private synchronized void step()
+	private void step()
 	{
 		if(activeblock == null)
 		{//step() gives you a random block if none is available.
@@ -677,154 +966,125 @@ public class TetrisEngine
 		activeblock.y++;
 
 		if(!copy())
+		{
+			activeblock.y--;
 			donecurrent();
+		}
 
 	}
 
 
-	/*Runs the checkforclears() on a seperate thread. Also performs
-	 * the fade out effect.*/
-	private synchronized void checkforclears()
+	/*Starts clearing full rows: they fade out first (see fade())
+	 * and are removed when the fade is done.*/
+	private void checkforclears()
 	{
 		//Threading fix?
 		activeblock = null;
 
-		Thread th = new Thread(){
-			public void run()
-			{
-				//Some copy/pasting here! =)
-				ArrayList<Block> fadeblocks = new ArrayList<Block>();
-
-				loop:
-				for(int i = blocks[0].length-1;i>=0;i--)
-				{
-					//check for unfilled blocks.
-					for(int y = 0;y < blocks.length;y++)
-					{
-						if(!(blocks[y][i].getState() == Block.FILLED))
-						continue loop;
-					}
+		//Rows that are about to be cleared.
+		fadelines = new ArrayList<Integer>();
 
-					//passed; now add blocks.
-					for(int u = 0;u < blocks.length;u++)
-					{
-						fadeblocks.add(blocks[u][i]);
-					}
-				}
+		for(int i = height-1;i>=0;i--)
+		{
+			if(board.isRowFull(i))
+				fadelines.add(i);
+		}
 
-				long before = System.currentTimeMillis();
-				int approxloops = fadetime/20;
+		if(fadelines.size() > 0)
+			Metrics.FADES.increment();
 
-				state = ProjectConstants.GameState.BUSY;
+		fadestart = lastfade = System.currentTimeMillis();
+		state = ProjectConstants.GameState.BUSY;
+		fade(fadestart);
+	}
 
-				//Fade loop: works by object referencing
-				while(System.currentTimeMillis() - before
-						< fadetime)
-				{
-					if(fadeblocks.size()==0)break;//Lol yea.
+	/*Fade step, every 20 milliseconds: works on the color layer only.
+	 * Removes the rows and brings in the next block when the fade is over.*/
+	private void fade(long now)
+	{
+		if(fadelines.size() > 0 && now - fadestart < fadetime)
+		{
+			if(now - lastfade < 20)
+				return;
+			lastfade = now;
 
-					//This is a linear fade algorithm.
-					for(Block b : fadeblocks)
-					{
-						//Not the best color algorithm, but works most of
-						//the time.
+			int approxloops = Math.max(1, fadetime/20);
 
-						//New fading algorithm. Only changes the ALPHA value
-						//and leaves the rgb.
-						Color bcol = b.getColor();
-						int R = bcol.getRed();
-						int G = bcol.getGreen();
-						int B = bcol.getBlue();
-						int AL = bcol.getAlpha();
+			//This is a linear fade algorithm.
+			for(int line : fadelines)
+			{
+				for(int u = 0;u < width;u++)
+				{
+					//Not the best color algorithm, but works most of
+					//the time.
 
-						int fade = (AL-Block.emptycolor.getAlpha()) /approxloops;
+					//New fading algorithm. Only changes the ALPHA value
+					//and leaves the rgb.
+					Color bcol = colors[u][line];
+					int R = bcol.getRed();
+					int G = bcol.getGreen();
+					int B = bcol.getBlue();
+					int AL = bcol.getAlpha();
 
-						if(AL>0)
-							AL-=fade;
+					int fade = (AL-Block.emptycolor.getAlpha()) /approxloops;
 
-						if(AL < 0) //Occasionally crashes without this.
-							AL = 0;
+					if(AL>0)
+						AL-=fade;
 
-						Color newc = new Color(R,G,B,AL);
-						b.setColor(newc);
-					}
+					if(AL < 0) //Occasionally crashes without this.
+						AL = 0;
 
-					sleep_(20);
+					colors[u][line] = new Color(R,G,B,AL);
 				}
-
-				state = ProjectConstants.GameState.PLAYING;
-
-				//Now actually remove the blocks.
-				checkforclears(0,null);
-				newblock();
 			}
-		};
+			return;
+		}
+
+		fadelines = null;
+		state = ProjectConstants.GameState.PLAYING;
 
-		th.start();
+		//Now actually remove the blocks.
+		checkforclears(0);
+		newblock();
 	}
 
 
 	/*As expected this function checks whether there are any clears.
 	 * Uses recursion if more than one line can be cleared.
-	 * Don't run this on the EDT!*/
-	private synchronized void
-		checkforclears(int alreadycleared, Block[][] b)
+	 * Only called by the game loop.*/
+	void checkforclears(int alreadycleared)
 	{
-		if(b==null)
-			b = blocks;
 		int whichline = -1;
 		int old = alreadycleared;
 
 		//Loops to find any row that has every block filled.
-		// If one block is not filled, the loop breaks.
-		ML:
-		for(int i = b[0].length-1;i>=0;i--)
+		for(int i = height-1;i>=0;i--)
 		{
-			for(int y = 0;y < b.length;y++)
+			if(board.isRowFull(i))
 			{
-				if(!(b[y][i].getState() == Block.FILLED))
-					continue ML;
+				alreadycleared++;
+				whichline = i;
+				break;
 			}
-
-			alreadycleared++;
-			whichline = i;
-			break ML;
 		}
 
 		//If this recursive step produced more clears:
 		if(alreadycleared>old)
 		{
-			for(int i = whichline;i>0;i--)
-			{//Iterate and copy the state of the block on top of itself
-				//to its location.
-				for(int y = 0;y < b.length;y++)
-				{
-					b[y][i] = b[y][i-1];
-				}
+			board.removeRow(whichline);
+			for(int y = 0;y < width;y++)
+			{//Move the colors above the line down along with the board.
+				System.arraycopy(colors[y], 0, colors[y], 1, whichline);
+				colors[y][0] = Block.emptycolor;
 			}
 
 			//Recursion step! Necessary if you want to clear more than
 			//1 line at a time!
-			checkforclears(alreadycleared,b);
+			checkforclears(alreadycleared);
 		}
 		else if(alreadycleared>0)
 		{
-			// Use Nintendo's original scoring system.
-			switch(alreadycleared)
-			{
-			case 1:
-				score += 40;
-				break;
-			case 2:
-				score += 100;
-				break;
-			case 3:
-				score += 300;
-				break;
-			case 4:
-				score += 1200;
-				break;
-			}
+			score += clearScore(alreadycleared);
 
 			//No new lines were cleared.
 			if(useSounds)
@@ -835,13 +1095,11 @@ public class TetrisEngine
 
 			lines += alreadycleared;
 		}
-
-		blocks = b;
 	}
 
 
 	/*Generates a random block , in a random rotation.*/
-	private synchronized void newblock()
+	private void newblock()
 	{
 		// Check:
 		if(activeblock != null)
@@ -864,102 +1122,67 @@ public class TetrisEngine
 
 		//Successfully dropped 1 block, here.
 		blocksdropped+=1;
+		Metrics.PIECES.increment();
+
+		blockcommands = 0;
+	}
+
+	/*Is the AI playing this game, rather than a human or nobody?*/
+	boolean aiplaying()
+	{
+		return tetris != null && !tetris.isHumanControlled;
+	}
 
-		if (useAnomaly)
+	/*A block was just settled by a gravity step, after the given number
+	 * of commands. If the AI never moved it, the AI isn't keeping up: the
+	 * game is thrown away and played again.*/
+	private void landedbygravity(int commandsapplied)
+	{
+		if(useAnomaly && commandsapplied == 0 && aiplaying()
+				&& state != ProjectConstants.GameState.GAMEOVER)
 		{
-			long lastnewTime = System.currentTimeMillis()-lastnewblock;
-			long wait = 100+50*tetris.controller.waitTime;
-			if(!tetris.isHumanControlled &&
-				lastnewTime > wait){
-				System.out.println("Anomaly detected, retrying...");
-				anomaly_flag = true;
-				gameover();
-			}
+			log.warn("Anomaly detected: block " + blocksdropped + " landed without the AI, retrying");
+			Metrics.ANOMALIES.increment();
+			anomaly_flag = true;
+			gameover();
 		}
-
-		lastnewblock = System.currentTimeMillis();
 	}
 
-	/*Create and return a random block.*/
-	private synchronized Tetromino getRandBlock()
+	/*Create and return the next block of the piece source.*/
+	private Tetromino getRandBlock()
 	{
 		Tetromino ret = new Tetromino();
-		int x = blockdef.length;
-		int rnd1 = rdm.nextInt(x);
-
-		int y = blockdef[rnd1].length;
-		int rnd2 = rdm.nextInt(y);
+		int piece = pieces.next();
+		int rnd1 = PieceSource.type(piece);
+		int rnd2 = PieceSource.rotation(piece);
 
 		ret.type=rnd1;
-		ret.rot=rnd2;
-
-		ret.array = toBlock2D(blockdef[rnd1][rnd2]);
+		ret.setRotation(rnd2);
 
 		ret.x = width/2 -2;
 		ret.y = 0;
 
-		Color bcolor = Block.colors[rnd1];
-		ret.color = bcolor;
-
-		//Fill the block with their colors first.
-		for(int i = 0;i < ret.array.length;i++)
-		{
-			for(int k = 0;k < ret.array[i].length;k++)
-			{
-				if(ret.array[i][k].getState()==Block.ACTIVE)
-					ret.array[i][k].setColor(ret.color);
-			}
-		}
+		ret.color = Block.colors[rnd1];
 		return ret;
 	}
 
-	/*Copies an array, but runs in n^2 time.*/
-	static Block[][] copy2D(Block[][] in)
+	/*Points for clearing a number of lines at once.
+	 * Use Nintendo's original scoring system.*/
+	static int clearScore(int cleared)
 	{
-		//if(in == null) return null;
-		Block[][] ret;
-		ret = new Block[in.length][in[0].length];
-		for(int i = 0;i < in.length;i++) {
-			for(int j = 0;j < in[0].length;j++) {
-				ret[i][j] = in[i][j].clone();
-			}
-		}
-		return ret;
-	}
-
-	/*Function to convert byte[][] to Block[][]*/
-	static Block[][] toBlock2D(byte[][] b)
-	{
-		if(b == null)return null;
-		Block[][] ret = new Block[b.length][b[0].length];
-		for(int i = 0;i < b.length;i++) {
-			for(int j = 0;j < b[0].length;j++) {
-				switch(b[i][j])
-				{
-				case 1:
-					ret[i][j] = new Block(Block.ACTIVE);
-					break;
-				default:
-					ret[i][j] = new Block(Block.EMPTY);
-				}
-			}
-		}
-		return ret;
-	}
-
-
-	/*Function to convert Block[][] to byte[][]*/
-	static byte[][] toByte2D(Block[][] b)
-	{
-		if(b == null)return null;
-		byte[][] ret = new byte[b.length][b[0].length];
-		for(int i = 0;i < b.length;i++) {
-			for(int j = 0;j < b[0].length;j++) {
-				ret[i][j] = b[i][j].toByte();
-			}
+		switch(cleared)
+		{
+		case 1:
+			return 40;
+		case 2:
+			return 100;
+		case 3:
+			return 300;
+		case 4:
+			return 1200;
+		default:
+			return 0;
 		}
-
-		return ret;
 	}
 
 }
\ No newline at end of file
@@ -17,8 +17,8 @@ import java.awt.event.MouseEvent;
 import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
-
-import static com.fermanis.aitetris.ProjectConstants.sleep_;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /* TetrisPanel is the panel that contains the (main)
  * panels AKA. core. This also holds most of the objects
@@ -78,14 +78,11 @@ public class TetrisPanel extends JPanel {
         }
 
         //Animation loop. Updates every 40 milliseconds (25 fps).
-        new Thread() {
+        engine.scheduler.scheduleAtFixedRate(new Runnable() {
             public void run() {
-                while (true) {
-                    sleep_(40);
-                    repaint();
-                }
+                repaint();
             }
-        }.start();
+        }, 40, 40, TimeUnit.MILLISECONDS);
 
         //Add all these key functions.
         KeyPressManager kpm = new KeyPressManager();
@@ -123,12 +120,8 @@ public class TetrisPanel extends JPanel {
             public void run() {
                 if (engine.state != ProjectConstants.GameState.GAMEOVER && controller != null && !controller.thread.isAlive())
                     controller.sendReady();
-                if (engine.state == ProjectConstants.GameState.PAUSED)
-                    engine.state = ProjectConstants.GameState.PLAYING;
-                else {
-                    engine.state = ProjectConstants.GameState.PAUSED;
-                    //System.out.println(controller.thread.isAlive());
-                }
+                //Toggles between PAUSED and PLAYING in the game loop.
+                engine.keypause();
             }
         });
 
@@ -180,43 +173,9 @@ public class TetrisPanel extends JPanel {
 
         static final int delay = 40;
 
-        class KeyHandlingThread extends Thread {
-            volatile boolean flag = true;
-
-            public void run() {
-                // The key handling loop.
-                // Each iteration, call the functions whose keys are currently
-                // being held down.
-
-                while (flag) {
-                    sleep_(delay);
-
-                    //if(keys[0]) keymap.get(KeyEvent.VK_LEFT).run();
-                    //if(keys[1]) keymap.get(KeyEvent.VK_RIGHT).run();
-                    if (keys[2]) keymap.get(KeyEvent.VK_DOWN).run();
-                }
-            }
-        }
-
-        KeyHandlingThread keythread;
-
-        // After some testing: I think that it's best to only have the down button
-        // have special handling.
-        // Lol now I think it's a bit of a waste to have an entire thread running
-        // for one button that's barely used.
-
-        // Only keys that require special handling:
-        // keys[0]: left
-        // keys[1]: right
-        // keys[2]: down
-        volatile boolean[] keys = {false, false, false};
-
-        KeyPressManager() {
-            keythread = new KeyHandlingThread();
-
-            if (TetrisPanel.this.isHumanControlled)
-                keythread.start();
-        }
+        // Only the down button repeats while it is held: every delay
+        // milliseconds on the engine's scheduler, until it is released.
+        ScheduledFuture<?> downrepeat;
 
         void putKey(int i, Runnable r) {
             keymap.put(i, r);
@@ -234,10 +193,11 @@ public class TetrisPanel extends JPanel {
 
             int ck = ke.getKeyCode();
             if (keymap.containsKey(ck)) {
-                if (ck == KeyEvent.VK_DOWN)
-                    keys[2] = true;
-
-                else keymap.get(ck).run();
+                if (ck == KeyEvent.VK_DOWN) {
+                    if (downrepeat == null)
+                        downrepeat = engine.scheduler.scheduleAtFixedRate(keymap.get(ck),
+                                delay, delay, TimeUnit.MILLISECONDS);
+                } else keymap.get(ck).run();
             }
         }
 
@@ -248,8 +208,10 @@ public class TetrisPanel extends JPanel {
             if (!TetrisPanel.this.isHumanControlled) return;
 
             int ck = ke.getKeyCode();
-            if (ck == KeyEvent.VK_DOWN)
-                keys[2] = false;
+            if (ck == KeyEvent.VK_DOWN && downrepeat != null) {
+                downrepeat.cancel(false);
+                downrepeat = null;
+            }
         }
     }
 
@@ -8,8 +8,9 @@ public class Tetromino implements Cloneable {
     public Tetromino() {
     }
 
-    /*Contents (Block array)*/
-    public Block[][] array;
+    /*Shape of the block in its current rotation, shared by every block
+     * of this type and rotation. null when the block is gone.*/
+    public PlacementTable.Shape shape;
 
     /*Position, rotation, type, etc*/
     public volatile int x, y, rot, type;
@@ -20,7 +21,7 @@ public class Tetromino implements Cloneable {
     /*Copy.*/
     public Tetromino clone() {
         Tetromino ret = new Tetromino();
-        ret.array = array.clone();
+        ret.shape = shape;
         ret.x = x;
         ret.y = y;
         ret.rot = rot;
@@ -30,6 +31,13 @@ public class Tetromino implements Cloneable {
     }
 
 
+    /*Turns the block to a rotation of its type; the shape is looked up, not built.*/
+    public void setRotation(int rot) {
+        this.rot = rot;
+        this.shape = PlacementTable.get(type, rot);
+    }
+
+
     /*String representation.*/
     public String toString() {
         switch (type) {
@@ -0,0 +1,137 @@
+package com.fermanis.aitetris;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.logging.LogLevel;
+import org.springframework.boot.logging.LoggingSystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Trains the genetic algorithm from the command line, with no window and no
+ * Spring application context, so it starts in a fraction of a second and
+ * runs on servers without a display:
+ *
+ * <pre>
+ * java -cp &lt;classpath&gt; com.fermanis.aitetris.Trainer [--config=&lt;file&gt;] [--genetic_algo.&lt;key&gt;=&lt;value&gt; ...]
+ * java -jar ai-tetris.jar train [same options]
+ * </pre>
+ *
+ * Settings come from the arguments, then the YAML file, then the bundled
+ * application.yml, see ConfigurationManager.loadStandalone(). Generations are
+ * played by a GenerationEvaluator. After each one the scored population,
+ * best first, is written to genetic_algo.results_file in the format of the
+ * preset population, and with serialize_generation on every game also goes
+ * to the checkpoint log, so a run can be stopped at any time and resumed.
+ * genetic_algo.stats_dir collects statistics of every generation and
+ * candidate for charting, see GenerationStats.
+ */
+public class Trainer {
+
+    private static final Logger log = LoggerFactory.getLogger(Trainer.class);
+
+    private final GeneticAIAlgorithm genetic;
+    private final GenerationEvaluator evaluator;
+    private final File results;
+
+    /**
+     * @param genetic The genetic algorithm to train
+     * @param evaluator Plays its generations
+     * @param results Written with the scored population after every generation; null for none
+     */
+    public Trainer(GeneticAIAlgorithm genetic, GenerationEvaluator evaluator, File results) {
+        this.genetic = genetic;
+        this.evaluator = evaluator;
+        this.results = results;
+    }
+
+    /**
+     * Plays generations and breeds the next one after each
+     * @param generations How many; 0 or less means until the process is stopped
+     * @throws IOException If the results can't be written
+     */
+    public void run(int generations) throws IOException {
+        for (int g = 1; generations <= 0 || g <= generations; g++) {
+            long start = System.currentTimeMillis();
+            genetic.recordScores(evaluator.playGeneration());
+            log.info("Generation " + genetic.generation + " scored on " + evaluator.getThreads()
+                    + " threads in " + (System.currentTimeMillis() - start) + " ms");
+            if (results != null) {
+                writeResults(results, genetic.best(genetic.getPopulation()));
+            }
+            genetic.newGeneration();
+        }
+    }
+
+    /**
+     * Replaces the results file with a population, one chromosome per line.
+     * Written to a temporary file and renamed, so readers never see half of it.
+     * @param file Results file; missing parent directories are created
+     * @param chromosomes Chromosomes, best first
+     * @throws IOException If the file can't be written
+     */
+    static void writeResults(File file, double[][] chromosomes) throws IOException {
+        Path path = file.getAbsoluteFile().toPath();
+        Files.createDirectories(path.getParent());
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        PrintWriter out = new PrintWriter(Files.newBufferedWriter(temp));
+        try {
+            for (double[] chromosome : chromosomes) {
+                StringBuilder line = new StringBuilder();
+                for (int i = 0; i < chromosome.length; i++) {
+                    if (i > 0) {
+                        line.append(',');
+                    }
+                    line.append(chromosome[i]);
+                }
+                out.println(line);
+            }
+        } finally {
+            out.close();
+        }
+        if (out.checkError()) {
+            throw new IOException("Can't write " + temp);
+        }
+        try {
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Trains until genetic_algo.generations generations are done (0 means forever)
+     * @param args Settings as --key=value, and --config=&lt;file&gt; for a YAML file
+     * @throws IOException If the configuration can't be read or the results can't be written
+     */
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        ConfigurationManager.loadStandalone(args);
+        // Spring Boot would set this up; without it the default level is DEBUG.
+        LoggingSystem.get(Trainer.class.getClassLoader()).setLogLevel(LoggingSystem.ROOT_LOGGER_NAME,
+                LogLevel.valueOf(ConfigurationManager.getSetting("logging.level.root", "INFO").toUpperCase()));
+        if (!ConfigurationManager.validateConfiguration()) {
+            System.err.println("Invalid genetic_algo settings, see the log");
+            System.exit(2);
+        }
+        Metrics.startConfiguredDump();
+
+        String resultsFile = ConfigurationManager.getSetting("genetic_algo.results_file", "generations/results.csv");
+        GeneticAIAlgorithm genetic = new GeneticAIAlgorithm(true);
+        GenerationEvaluator evaluator = new GenerationEvaluator(genetic);
+        try {
+            new Trainer(genetic, evaluator, resultsFile.isEmpty() ? null : new File(resultsFile))
+                    .run(ConfigurationManager.getIntSetting("genetic_algo.generations", 0));
+        } finally {
+            evaluator.shutdown();
+            genetic.closeCheckpoint();
+            genetic.closeStats();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.fermanis.aitetris;
+
+import java.util.Arrays;
+
+/**
+ * Bounded cache of search results, keyed on 64 bit Zobrist-style hashes.
+ *
+ * TetrisAI stores two kinds of results here: the best placement for a
+ * whole position (board, both pieces and weights), and the best score the
+ * next piece can reach from an intermediate board left by the first piece.
+ * The caller builds the keys; the cache only maps a key to a score and a
+ * move.
+ *
+ * The table is 4-way set associative. A key can only live in the four
+ * slots of its set, and a full set evicts with CLOCK (second chance): every
+ * hit marks its slot as referenced, and the set's hand skips referenced
+ * slots once, clearing the mark, before it evicts. All storage is allocated
+ * up front, so lookups and inserts never allocate.
+ *
+ * Keys are trusted: two positions with the same 64 bit key are treated as
+ * the same. Not thread safe; give every thread its own cache.
+ */
+public class TranspositionCache {
+
+    private static final int WAYS = 4;
+
+    /*Slot states.*/
+    private static final byte EMPTY = 0, PRESENT = 1, REFERENCED = 2;
+
+    private final long[] keys;
+    private final double[] scores;
+    private final int[] moves;
+    private final byte[] state;
+    private final byte[] hands;
+    private final int setMask;
+
+    private long hits, misses, evictions;
+    private int size;
+
+    /**
+     * Creates a cache
+     * @param entries Minimum capacity, rounded up to a power of two (at least 4)
+     */
+    public TranspositionCache(int entries) {
+        int wanted = Math.max(1, (entries + WAYS - 1) / WAYS);
+        int sets = Integer.highestOneBit(wanted);
+        if (sets < wanted) sets <<= 1;
+        int capacity = sets * WAYS;
+        keys = new long[capacity];
+        scores = new double[capacity];
+        moves = new int[capacity];
+        state = new byte[capacity];
+        hands = new byte[sets];
+        setMask = sets - 1;
+    }
+
+    /**
+     * Looks up a key and counts the hit or miss
+     * @param key Position key
+     * @return Slot of the entry for score() and move(), or -1 if absent
+     */
+    public int find(long key) {
+        int base = set(key) * WAYS;
+        for (int i = base; i < base + WAYS; i++) {
+            if (state[i] != EMPTY && keys[i] == key) {
+                state[i] = REFERENCED;
+                hits++;
+                return i;
+            }
+        }
+        misses++;
+        return -1;
+    }
+
+    /**
+     * Score stored in a slot
+     * @param slot Slot returned by find()
+     * @return Stored score
+     */
+    public double score(int slot) {
+        return scores[slot];
+    }
+
+    /**
+     * Move stored in a slot
+     * @param slot Slot returned by find()
+     * @return Stored move
+     */
+    public int move(int slot) {
+        return moves[slot];
+    }
+
+    /**
+     * Stores a result, replacing the entry for the same key if there is one
+     * @param key Position key
+     * @param score Score to store
+     * @param move Move to store
+     */
+    public void put(long key, double score, int move) {
+        int set = set(key);
+        int base = set * WAYS;
+        int slot = -1;
+        for (int i = base; i < base + WAYS; i++) {
+            if (state[i] == EMPTY) {
+                if (slot < 0) slot = i;
+            } else if (keys[i] == key) {
+                slot = i;
+                break;
+            }
+        }
+
+        if (slot < 0) {
+            // Set is full: CLOCK over its four slots.
+            int hand = hands[set];
+            while (state[base + hand] == REFERENCED) {
+                state[base + hand] = PRESENT;
+                hand = (hand + 1) % WAYS;
+            }
+            slot = base + hand;
+            hands[set] = (byte) ((hand + 1) % WAYS);
+            evictions++;
+        }
+
+        if (state[slot] == EMPTY) {
+            size++;
+        }
+        keys[slot] = key;
+        scores[slot] = score;
+        moves[slot] = move;
+        state[slot] = PRESENT;
+    }
+
+    /**
+     * Drops every entry and resets the counters
+     */
+    public void clear() {
+        Arrays.fill(state, EMPTY);
+        Arrays.fill(hands, (byte) 0);
+        size = 0;
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+
+    /**
+     * Number of entries the cache can hold
+     * @return Capacity
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * Number of entries currently held
+     * @return Entry count
+     */
+    public int size() {
+        return size;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Fraction of lookups that were hits
+     * @return Hit rate between 0 and 1, 0 before the first lookup
+     */
+    public double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    private int set(long key) {
+        return (int) (key ^ key >>> 32) & setMask;
+    }
+}
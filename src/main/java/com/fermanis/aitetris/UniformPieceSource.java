@@ -0,0 +1,28 @@
+package com.fermanis.aitetris;
+
+import java.util.Random;
+
+/**
+ * Every piece is drawn independently: a uniformly random type in a
+ * uniformly random rotation. This is how TetrisEngine has always picked
+ * its blocks, and it uses the generator the same way, so a seeded source
+ * plays exactly the games a seeded Random used to.
+ */
+public class UniformPieceSource implements PieceSource {
+
+    private final Random rdm;
+
+    /**
+     * @param rdm Generator; pass a seeded Random for a reproducible sequence
+     */
+    public UniformPieceSource(Random rdm) {
+        this.rdm = rdm;
+    }
+
+    @Override
+    public int next() {
+        int type = rdm.nextInt(TetrisEngine.blockdef.length);
+        int rot = rdm.nextInt(TetrisEngine.blockdef[type].length);
+        return PieceSource.piece(type, rot);
+    }
+}
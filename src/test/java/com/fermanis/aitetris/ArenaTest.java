@@ -0,0 +1,113 @@
+package com.fermanis.aitetris;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.env.Environment;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class ArenaTest {
+
+    private static final double[] WEIGHTS = {-5, -5, -5, -5, -5, -5, -5};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Environment previous;
+
+    @Before
+    public void saveEnvironment() {
+        previous = ConfigurationManager.getEnvironment();
+    }
+
+    @After
+    public void restoreEnvironment() {
+        new ConfigurationManager().setEnvironment(previous);
+    }
+
+    @Test
+    public void gamesAreIndependentAndReproducible() {
+        Arena arena = new Arena(3);
+        try {
+            ArenaGame a = arena.add(WEIGHTS, 42);
+            ArenaGame b = arena.add(WEIGHTS, 42);
+            ArenaGame c = arena.add(new double[]{5, 5, 5, -5, -5, -5, 5}, 7);
+            arena.run(2);
+
+            assertFalse(arena.isRunning());
+            for (ArenaGame game : arena.getGames()) {
+                assertEquals(2, game.getGames());
+            }
+            assertEquals(a.getBestScore(), b.getBestScore());
+            assertEquals(a.getTotalPieces(), b.getTotalPieces());
+            assertEquals(a.getMeanScore(), b.getMeanScore(), 0);
+
+            // The first game of a board is the one a lone simulation plays with the same seed.
+            arena.stop();
+            Arena single = new Arena(1);
+            try {
+                ArenaGame again = single.add(WEIGHTS, 42);
+                single.run(1);
+                TetrisAI ai = new TetrisAI();
+                GeneticAIAlgorithm.applyWeights(ai, WEIGHTS);
+                int score = new SimulationEngine(PieceSource.forName("uniform", new Random(42).nextLong())).play(ai);
+                assertEquals(score, again.getLastScore());
+            } finally {
+                single.shutdown();
+            }
+            assertEquals(2, c.getGames());
+        } finally {
+            arena.shutdown();
+        }
+    }
+
+    @Test
+    public void everyGamePlaysThePieceFile() throws Exception {
+        ReplayPieceSource recorded = ReplayPieceSource.record(new UniformPieceSource(new Random(5)), 500);
+        StringWriter text = new StringWriter();
+        recorded.save(text);
+        File file = folder.newFile("pieces.txt");
+        Files.write(file.toPath(), text.toString().getBytes(StandardCharsets.UTF_8));
+        ConfigurationManager.loadStandalone(new String[]{"--genetic_algo.piece_source=file:" + file});
+
+        Arena arena = new Arena(2);
+        try {
+            // Different seeds, same pieces.
+            ArenaGame a = arena.add(WEIGHTS, 1);
+            ArenaGame b = arena.add(WEIGHTS, 2);
+            arena.run(2);
+
+            TetrisAI ai = new TetrisAI();
+            GeneticAIAlgorithm.applyWeights(ai, WEIGHTS);
+            recorded.rewind();
+            int score = new SimulationEngine(recorded).play(ai);
+            assertEquals(score, a.getBestScore());
+            assertEquals(score, a.getLastScore());
+            assertEquals(score, b.getLastScore());
+        } finally {
+            arena.shutdown();
+        }
+    }
+
+    @Test
+    public void unreadablePieceFileFailsTheArena() throws Exception {
+        ConfigurationManager.loadStandalone(new String[]{"--genetic_algo.piece_source=file:"
+                + new File(folder.getRoot(), "missing.txt")});
+        try {
+            new Arena(1).shutdown();
+            fail("Arena built without its piece file");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
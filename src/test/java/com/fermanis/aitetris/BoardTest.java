@@ -0,0 +1,116 @@
+package com.fermanis.aitetris;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BoardTest {
+
+    @Test
+    public void fillAndCopy() {
+        Board board = new Board(10, 10);
+        board.fill(0, 9);
+        board.fill(9, 0);
+
+        Board copy = new Board(board);
+        assertTrue(copy.isFilled(0, 9));
+        assertTrue(copy.isFilled(9, 0));
+        assertFalse(copy.isFilled(1, 9));
+        assertEquals(board, copy);
+
+        copy.fill(1, 9);
+        assertFalse(board.isFilled(1, 9));
+    }
+
+    @Test(expected = ArrayIndexOutOfBoundsException.class)
+    public void outOfBoundsColumnThrows() {
+        new Board(10, 10).isFilled(10, 0);
+    }
+
+    @Test
+    public void clearLinesShiftsRowsDownAndEmptiesTop() {
+        Board board = new Board(4, 4);
+        board.fill(1, 0);
+        board.fill(2, 1);
+        for (int x = 0; x < 4; x++) {
+            board.fill(x, 2);
+            board.fill(x, 3);
+        }
+
+        assertEquals(2, board.clearLines());
+        assertEquals(0, board.getRow(0));
+        assertEquals(0, board.getRow(1));
+        assertTrue(board.isFilled(1, 2));
+        assertTrue(board.isFilled(2, 3));
+        assertEquals(2, board.count());
+    }
+
+    @Test
+    public void columnFeaturesMatchRecount() {
+        Board board = new Board(10, 12);
+        Random rnd = new Random(42);
+        for (int step = 0; step < 2000; step++) {
+            int x = rnd.nextInt(board.width);
+            int y = rnd.nextInt(board.height);
+            // Favour the lower rows so lines actually get cleared.
+            if (y < board.height / 2 && rnd.nextBoolean()) continue;
+            board.fill(x, y);
+            board.clearLines();
+
+            int holes = 0, blockades = 0, heightSum = 0;
+            for (int c = 0; c < board.width; c++) {
+                int top = -1;
+                for (int r = 0; r < board.height; r++) {
+                    if (board.isFilled(c, r)) {
+                        if (top < 0) top = r;
+                        heightSum += board.height - r;
+                    } else if (top >= 0) {
+                        holes++;
+                    }
+                }
+                assertEquals(top < 0 ? 0 : board.height - top, board.getColumnHeight(c));
+
+                boolean gap = false;
+                for (int r = board.height - 1; r >= 0; r--) {
+                    if (!board.isFilled(c, r)) gap = true;
+                    else if (gap) blockades++;
+                }
+            }
+            assertEquals(heightSum, board.getHeightSum());
+            assertEquals(holes, board.getHoles());
+            assertEquals(blockades, board.getBlockades());
+        }
+    }
+
+    @Test
+    public void hashFollowsFillsAndClears() {
+        Board board = new Board(10, 12);
+        board.zobristHash();
+        Random rnd = new Random(7);
+        int clears = 0;
+        for (int step = 0; step < 2000; step++) {
+            int x = rnd.nextInt(board.width);
+            int y = rnd.nextInt(board.height);
+            if (y < board.height / 2 && rnd.nextBoolean()) continue;
+            board.fill(x, y);
+            clears += board.clearLines();
+
+            // Hashed from scratch, from the same rows.
+            Board fresh = new Board(board.width, board.height);
+            fresh.setRows(board.rows);
+            assertEquals(fresh.zobristHash(), board.zobristHash());
+        }
+        assertTrue(clears > 0);
+
+        Board moved = new Board(10, 12);
+        moved.fill(3, 5);
+        Board other = new Board(10, 12);
+        other.fill(3, 6);
+        assertTrue(moved.zobristHash() != other.zobristHash());
+        assertEquals(0, new Board(10, 12).zobristHash());
+    }
+}
@@ -0,0 +1,170 @@
+package com.fermanis.aitetris;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CheckpointLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final double[][] CHROMOSOMES = {{1, 2, 3, 4, 5, 6, 7}, {-1, -2, -3, -4, -5, -6, -7}};
+
+    @Test
+    public void reopensWithTheLastGenerationAndItsRuns() throws IOException {
+        File file = new File(folder.getRoot(), "log/checkpoint.bin");
+        CheckpointLog log = new CheckpointLog(file);
+        assertNull(log.getState());
+        log.appendGeneration(1, 11, 2, 0.05, 3, CHROMOSOMES);
+        log.appendRun(0, 0, 100, 500);
+        log.appendGeneration(2, 22, 2, 0.05, 3, CHROMOSOMES);
+        log.appendRun(1, 1, 200, 700);
+        log.close();
+
+        log = new CheckpointLog(file);
+        CheckpointLog.State state = log.getState();
+        assertEquals(2, state.generation);
+        assertEquals(22, state.seed);
+        assertEquals(2, state.population);
+        assertArrayEquals(CHROMOSOMES[1], state.chromosomes[1], 0);
+        assertFalse(state.isRecorded(0, 0));
+        assertTrue(state.isRecorded(1, 1));
+        assertEquals(700, state.score(1, 1));
+        assertEquals(200, state.gameSeed(1, 1));
+        log.close();
+    }
+
+    @Test
+    public void cutsOffATornRecord() throws IOException {
+        File file = folder.newFile("checkpoint.bin");
+        file.delete();
+        CheckpointLog log = new CheckpointLog(file);
+        log.appendGeneration(1, 11, 2, 0.05, 3, CHROMOSOMES);
+        log.appendRun(0, 0, 100, 500);
+        log.appendRun(0, 1, 101, 600);
+        log.close();
+
+        // A crash in the middle of the last write.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        log = new CheckpointLog(file);
+        assertTrue(log.getState().isRecorded(0, 0));
+        assertFalse(log.getState().isRecorded(0, 1));
+        log.appendRun(0, 1, 101, 600);
+        log.close();
+
+        log = new CheckpointLog(file);
+        assertEquals(600, log.getState().score(0, 1));
+        log.close();
+    }
+
+    @Test
+    public void cutsOffARunRecordOutOfPlace() throws IOException {
+        File file = new File(folder.getRoot(), "checkpoint.bin");
+        CheckpointLog log = new CheckpointLog(file);
+        log.appendGeneration(1, 11, 2, 0.05, 3, CHROMOSOMES);
+        log.appendRun(0, 0, 100, 500);
+        log.close();
+        long intact = file.length();
+
+        // An intact record for a run the generation doesn't have, then a good one.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(intact);
+        raf.write(runRecord(1, 0, 5, 102, 900));
+        raf.write(runRecord(1, 1, 0, 103, 700));
+        raf.close();
+
+        log = new CheckpointLog(file);
+        assertEquals(intact, file.length());
+        assertTrue(log.getState().isRecorded(0, 0));
+        assertFalse(log.getState().isRecorded(1, 0));
+        log.appendRun(1, 0, 103, 700);
+        log.close();
+
+        log = new CheckpointLog(file);
+        assertEquals(700, log.getState().score(1, 0));
+        log.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesToAppendARunOutOfPlace() throws IOException {
+        CheckpointLog log = new CheckpointLog(new File(folder.getRoot(), "checkpoint.bin"));
+        try {
+            log.appendGeneration(1, 11, 2, 0.05, 3, CHROMOSOMES);
+            log.appendRun(0, 2, 100, 500);
+        } finally {
+            log.close();
+        }
+    }
+
+    /*A framed RUN record, as CheckpointLog writes it.*/
+    private static byte[] runRecord(int generation, int candidate, int run, long gameSeed, int score) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeByte(CheckpointLog.RUN);
+        out.writeInt(generation);
+        out.writeInt(candidate);
+        out.writeInt(run);
+        out.writeLong(gameSeed);
+        out.writeInt(score);
+        CRC32 crc = new CRC32();
+        crc.update(payload.toByteArray());
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream framed = new DataOutputStream(record);
+        framed.writeInt(payload.size());
+        framed.writeInt((int) crc.getValue());
+        framed.write(payload.toByteArray());
+        return record.toByteArray();
+    }
+
+    @Test
+    public void resumedRunBreedsTheSameGeneration() {
+        String file = new File(folder.getRoot(), "checkpoint.bin").getPath();
+        GeneticAIAlgorithm genetic = new GeneticAIAlgorithm(true);
+        genetic.checkpointFile = file;
+        int population = genetic.getPopulation();
+        for (int i = 0; i < population * genetic.currentRunTotal - 1; i++) {
+            genetic.sendScore(i * 10);
+        }
+        genetic.closeCheckpoint();
+
+        // Crashed before the last game: the resumed run carries on with it.
+        GeneticAIAlgorithm resumed = new GeneticAIAlgorithm(true);
+        resumed.checkpointFile = file;
+        assertTrue(resumed.resume());
+        assertEquals(genetic.generation, resumed.generation);
+        assertEquals(genetic.seed, resumed.seed);
+        assertEquals(population - 1, resumed.current);
+        assertEquals(genetic.currentRunTotal - 1, resumed.currentRun);
+        for (int i = 0; i < population; i++) {
+            assertArrayEquals(genetic.chromosomes[i], resumed.chromosomes[i], 0);
+        }
+
+        int last = (population * genetic.currentRunTotal - 1) * 10;
+        genetic.sendScore(last);
+        resumed.sendScore(last);
+        assertEquals(2, resumed.generation);
+        for (int i = 0; i < population; i++) {
+            assertArrayEquals(genetic.chromosomes[i], resumed.chromosomes[i], 0);
+        }
+        genetic.closeCheckpoint();
+        resumed.closeCheckpoint();
+    }
+}
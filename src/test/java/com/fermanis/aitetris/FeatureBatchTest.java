@@ -0,0 +1,209 @@
+package com.fermanis.aitetris;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class FeatureBatchTest {
+
+    /*
+     * 4x4 board, # settled, P placed by the search:
+     *
+     *   ....
+     *   ...P
+     *   #.PP
+     *   ##..
+     */
+    @Test
+    public void featuresOfAKnownBoard() {
+        Board board = new Board(4, 4);
+        board.setRows(new int[]{0, 0b1000, 0b1101, 0b0011});
+        int[] placed = {0, 0b1000, 0b1100, 0};
+
+        FeatureBatch batch = new FeatureBatch(1);
+        batch.set(0, board, placed, 1);
+
+        // The two placed cells in row 2, and the placed cells in column 3.
+        assertEquals(2, batch.edges[0]);
+        // Both placed cells of column 3 touch the right wall.
+        assertEquals(2, batch.walls[0]);
+        assertEquals(0, batch.floor[0]);
+        // 1 cell at height 3, 3 at height 2, 2 at height 1
+        assertEquals(3 + 6 + 2, batch.heightSum[0]);
+        // Under the placed cells in columns 2 and 3
+        assertEquals(2, batch.holes[0]);
+        // One placed cell in column 2, two in column 3
+        assertEquals(3, batch.blockades[0]);
+        assertEquals(1, batch.cleared[0]);
+    }
+
+    /*
+     * Settled cells never count as touching, only pairs with a placed cell:
+     *
+     *   P...
+     *   PP##
+     *   PP##
+     */
+    @Test
+    public void onlyPlacedCellsTouch() {
+        Board board = new Board(4, 3);
+        board.setRows(new int[]{0b0001, 0b1111, 0b1111});
+        int[] placed = {0b0001, 0b0011, 0b0011};
+
+        FeatureBatch batch = new FeatureBatch(1);
+        batch.set(0, board, placed, 0);
+
+        // Horizontal: (0,1) twice, (1,2) twice. Vertical: column 0 twice, column 1 once.
+        assertEquals(4 + 3, batch.edges[0]);
+        assertEquals(3, batch.walls[0]);
+        assertEquals(2, batch.floor[0]);
+        assertEquals(3 + 4 * 2 + 4, batch.heightSum[0]);
+        assertEquals(0, batch.holes[0]);
+        assertEquals(0, batch.blockades[0]);
+    }
+
+    @Test
+    public void gameOverClearsTheSlot() {
+        Board board = new Board(4, 3);
+        board.setRows(new int[]{0b0001, 0b1111, 0b1111});
+        int[] placed = {0b0001, 0b0011, 0b0011};
+
+        FeatureBatch batch = new FeatureBatch(1);
+        batch.set(0, board, placed, 0);
+        batch.set(0, board, placed, -1);
+
+        assertEquals(0, batch.edges[0]);
+        assertEquals(0, batch.walls[0]);
+        assertEquals(0, batch.floor[0]);
+        assertEquals(0, batch.heightSum[0]);
+        assertEquals(0, batch.holes[0]);
+        assertEquals(0, batch.blockades[0]);
+        assertEquals(-1, batch.cleared[0]);
+    }
+
+    @Test
+    public void featuresMatchACellByCellCount() {
+        Random rnd = new Random(21);
+        FeatureBatch batch = new FeatureBatch(1);
+        for (int game = 0; game < 20; game++) {
+            Board board = new Board(10, 20);
+            for (int move = 0; move < 40; move++) {
+                int type = rnd.nextInt(7);
+                int[] fits = new int[64];
+                int n = TetrisAI.listFits(type, board.width, fits);
+                int[] placed = new int[board.height];
+                Board after = new Board(board);
+                int lines = TetrisAI.drop(after, placed, type, fits[rnd.nextInt(n)]);
+                if (lines < 0) {
+                    break;
+                }
+                batch.set(0, after, placed, lines);
+
+                int[] expected = countFeatures(after, placed);
+                String where = "game " + game + " move " + move + "\n" + after;
+                assertEquals(where, expected[0], batch.edges[0]);
+                assertEquals(where, expected[1], batch.walls[0]);
+                assertEquals(where, expected[2], batch.floor[0]);
+                assertEquals(where, expected[3], batch.heightSum[0]);
+                assertEquals(where, expected[4], batch.holes[0]);
+                assertEquals(where, expected[5], batch.blockades[0]);
+                assertEquals(where, lines, batch.cleared[0]);
+                board = after;
+            }
+        }
+    }
+
+    @Test
+    public void batchScoresMatchSingleScores() {
+        Random rnd = new Random(7);
+        TetrisAI ai = new TetrisAI();
+        int capacity = 32;
+        FeatureBatch batch = new FeatureBatch(capacity);
+        double[] scores = new double[capacity];
+        double[] expected = new double[capacity];
+
+        Board board = new Board(10, 20);
+        for (int y = 12; y < 20; y++) {
+            for (int x = 0; x < 10; x++) {
+                if (rnd.nextInt(3) > 0) board.fill(x, y);
+            }
+        }
+
+        int gameOvers = 0;
+        for (int i = 0; i < capacity; i++) {
+            int type = rnd.nextInt(7);
+            int[] fits = new int[64];
+            int n = TetrisAI.listFits(type, board.width, fits);
+            int[] placed = new int[board.height];
+            Board after = new Board(board);
+            // Every fourth candidate is a game over, mixed in between the others.
+            int lines = i % 4 == 3 ? -1 : TetrisAI.drop(after, placed, type, fits[rnd.nextInt(n)]);
+            if (lines < 0) {
+                gameOvers++;
+            }
+            batch.set(i, after, placed, lines);
+            expected[i] = ai.evaluate(after, placed, lines);
+            if (lines < 0) {
+                assertEquals(TetrisAI.GAME_OVER, expected[i], 0);
+            } else {
+                assertEquals(weightedSum(ai, countFeatures(after, placed), lines), expected[i], 0);
+            }
+        }
+        batch.score(ai, capacity, scores);
+
+        assertEquals(capacity / 4, gameOvers);
+        for (int i = 0; i < capacity; i++) {
+            assertEquals("candidate " + i, expected[i], scores[i], 0);
+        }
+    }
+
+    /*Edges, walls, floor, height sum, holes and blockades, one cell at a time.*/
+    private static int[] countFeatures(Board board, int[] placed) {
+        int edges = 0, walls = 0, floor = 0, heightSum = 0, holes = 0, blockades = 0;
+        for (int y = 0; y < board.height; y++) {
+            for (int x = 0; x < board.width; x++) {
+                boolean filled = board.isFilled(x, y);
+                boolean mine = (placed[y] >>> x & 1) != 0;
+                if (filled) {
+                    heightSum += board.height - y;
+                }
+                if (mine) {
+                    if (x == 0 || x == board.width - 1) walls++;
+                    if (y == board.height - 1) floor++;
+                }
+                if (x + 1 < board.width && filled && board.isFilled(x + 1, y)
+                        && (mine || (placed[y] >>> (x + 1) & 1) != 0)) {
+                    edges++;
+                }
+                if (y + 1 < board.height && filled && board.isFilled(x, y + 1)
+                        && (mine || (placed[y + 1] >>> x & 1) != 0)) {
+                    edges++;
+                }
+
+                boolean filledAbove = false, emptyBelow = false;
+                for (int i = 0; i < y; i++) {
+                    filledAbove |= board.isFilled(x, i);
+                }
+                for (int i = y + 1; i < board.height; i++) {
+                    emptyBelow |= !board.isFilled(x, i);
+                }
+                if (!filled && filledAbove) holes++;
+                if (filled && emptyBelow) blockades++;
+            }
+        }
+        return new int[]{edges, walls, floor, heightSum, holes, blockades};
+    }
+
+    /*The heuristic, in the order TetrisAI has always added it up.*/
+    private static double weightedSum(TetrisAI ai, int[] features, int cleared) {
+        return features[0] * ai._TOUCHING_EDGES
+                + features[1] * ai._TOUCHING_WALLS
+                + features[2] * ai._TOUCHING_FLOOR
+                + features[3] * ai._HEIGHT
+                + features[4] * ai._HOLES
+                + features[5] * ai._BLOCKADE
+                + cleared * ai._CLEAR;
+    }
+}
@@ -0,0 +1,48 @@
+package com.fermanis.aitetris;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FitnessStatsTest {
+
+    @Test
+    public void meanVarianceAndConfidence() {
+        int[] scores = {10, 20, 30, 0};
+
+        assertEquals(20.0, FitnessStats.mean(scores, 3), 1e-9);
+        assertEquals(100.0, FitnessStats.variance(scores, 3), 1e-9);
+        // t(2) = 4.303, standard error 10 / sqrt(3)
+        assertEquals(4.303 * 10 / Math.sqrt(3), FitnessStats.confidence(scores, 3), 1e-9);
+        assertTrue(Double.isInfinite(FitnessStats.confidence(scores, 1)));
+    }
+
+    @Test
+    public void onlyCandidatesNearTheTopHalfLineAreUndecided() {
+        int[][] scores = {
+                {1000, 1010, 990},
+                {500, 900, 100},
+                {280, 320, 300},
+                {0, 10, 5}};
+        int[] played = {3, 3, 3, 3};
+
+        // The line lies halfway between 500 and 300; only the noisy candidate 1 reaches it.
+        assertEquals(Arrays.asList(1), FitnessStats.undecided(scores, played, 2));
+    }
+
+    @Test
+    public void generationsShareTheirGameSeeds() {
+        GeneticAIAlgorithm genetic = new GeneticAIAlgorithm(true);
+        genetic.serializeGeneration = false;
+        genetic.startGeneration(42);
+        long[] seeds = genetic.gameSeeds();
+
+        assertEquals(genetic.maxRunTotal, seeds.length);
+        assertTrue(Arrays.equals(seeds, genetic.gameSeeds()));
+        genetic.startGeneration(43);
+        assertTrue(!Arrays.equals(seeds, genetic.gameSeeds()));
+    }
+}
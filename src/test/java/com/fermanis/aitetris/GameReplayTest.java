@@ -0,0 +1,62 @@
+package com.fermanis.aitetris;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GameReplayTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void rebuildsTheBoardBeforeEveryMove() throws IOException {
+        File file = new File(folder.getRoot(), "games.rec");
+        SimulationEngine sim = new SimulationEngine(new Random(17));
+        GameRecorder recorder = new GameRecorder(file, sim.board.width, sim.board.height);
+        sim.setRecorder(recorder);
+
+        // Weak weights, so there are many short games and several keyframes.
+        TetrisAI ai = new TetrisAI();
+        GeneticAIAlgorithm.applyWeights(ai, new double[]{1, 1, 1, 1, 1, 1, 1});
+        List<Board> before = new ArrayList<Board>();
+        List<Integer> ticks = new ArrayList<Integer>();
+        int lines = 0;
+        while (recorder.getMoves() < 3 * GameRecorder.KEYFRAME) {
+            sim.reset();
+            do {
+                before.add(new Board(sim.board));
+                ticks.add(sim.blocksdropped + 1);
+            } while (sim.step(ai));
+            lines += sim.lines;
+        }
+        recorder.close();
+
+        GameReplay replay = new GameReplay(file);
+        try {
+            assertEquals(before.size(), replay.getMoves());
+            int replayedLines = 0, games = 0;
+            for (int m = 0; m < before.size(); m++) {
+                assertEquals("board before move " + m, before.get(m), replay.boardAt(m));
+                assertEquals((int) ticks.get(m), replay.tick(m));
+                replayedLines += replay.lines(m);
+                if (replay.isGameOver(m)) games++;
+            }
+            assertEquals(lines, replayedLines);
+            assertTrue(games > 1);
+            assertTrue(replay.isGameOver(replay.getMoves() - 1));
+            assertEquals(0, replay.boardAt(replay.getMoves()).count());
+        } finally {
+            replay.close();
+        }
+    }
+}
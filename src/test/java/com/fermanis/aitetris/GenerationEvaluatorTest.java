@@ -0,0 +1,129 @@
+package com.fermanis.aitetris;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GenerationEvaluatorTest {
+
+    @Test
+    public void evaluatesWholeGenerationInParallel() {
+        GeneticAIAlgorithm genetic = new GeneticAIAlgorithm(true);
+        genetic.serializeGeneration = false;
+        GenerationEvaluator evaluator = new GenerationEvaluator(genetic, 2);
+        try {
+            assertTrue(evaluator.getThreads() <= 2);
+
+            evaluator.evaluateGeneration();
+
+            assertEquals(2, genetic.generation);
+            assertEquals(0, genetic.current);
+        } finally {
+            evaluator.shutdown();
+        }
+    }
+
+    @Test
+    public void undecidedCandidatesPlayMoreRuns() {
+        GeneticAIAlgorithm genetic = new GeneticAIAlgorithm(true);
+        genetic.serializeGeneration = false;
+        genetic.currentRunTotal = 2;
+        genetic.maxRunTotal = 5;
+        genetic.runScores = new int[genetic.getPopulation()][5];
+        genetic.scored = new boolean[genetic.getPopulation()][5];
+        GenerationEvaluator evaluator = new GenerationEvaluator(genetic, 2);
+        evaluator.setLimits(40, 0, 0);
+        try {
+            int[][] scores = evaluator.playGeneration();
+            for (int candidate = 0; candidate < scores.length; candidate++) {
+                assertTrue(scores[candidate].length >= 2 && scores[candidate].length <= 5);
+                for (int run = 0; run < scores[candidate].length; run++) {
+                    assertTrue(genetic.isScored(candidate, run));
+                }
+            }
+        } finally {
+            evaluator.shutdown();
+        }
+    }
+
+    @Test
+    public void raceDropsCandidatesThatCantMakeTheTopHalf() {
+        FitnessRace race = new FitnessRace(4, 1, 2, 50);
+        race.finish(0, 0, 90);
+        race.finish(1, 0, 95);
+
+        // Two candidates already beat anything 2 or 3 can reach.
+        assertTrue(race.isEliminated(2));
+        assertTrue(race.isEliminated(3));
+        assertFalse(race.isEliminated(0));
+
+        FitnessRace close = new FitnessRace(4, 1, 2, 100);
+        close.finish(0, 0, 90);
+        close.finish(1, 0, 95);
+        assertFalse(close.isEliminated(2));
+    }
+
+    @Test
+    public void racingWithinAPieceLimitStillMakesTheNextGeneration() {
+        GeneticAIAlgorithm genetic = new GeneticAIAlgorithm(true);
+        genetic.serializeGeneration = false;
+        GenerationEvaluator evaluator = new GenerationEvaluator(genetic, 2);
+        evaluator.setLimits(30, 0, 0);
+        evaluator.setRacing(true);
+        try {
+            int[][] scores = evaluator.playGeneration();
+            long bound = SimulationEngine.maxScore(SimulationEngine.WIDTH, 30, 0);
+            for (int[] runs : scores) {
+                for (int score : runs) {
+                    assertTrue(score <= bound);
+                }
+            }
+
+            genetic.sendScores(scores);
+            assertEquals(2, genetic.generation);
+        } finally {
+            evaluator.shutdown();
+        }
+    }
+
+    @Test
+    public void gamesARaceSkipsAreNeverScored() {
+        GeneticAIAlgorithm genetic = new GeneticAIAlgorithm(true);
+        genetic.serializeGeneration = false;
+        int population = genetic.getPopulation();
+        int keep = population / 2;
+        genetic.currentRunTotal = 3;
+        genetic.maxRunTotal = 3;
+        genetic.runScores = new int[population][3];
+        genetic.scored = new boolean[population][3];
+        int bound = (int) SimulationEngine.maxScore(SimulationEngine.WIDTH, 30, 0);
+        // The top half is already settled, and candidate keep can't catch up after a 0.
+        for (int candidate = 0; candidate < keep; candidate++) {
+            for (int run = 0; run < 3; run++) {
+                genetic.recordRun(candidate, run, 0, bound);
+            }
+        }
+        genetic.recordRun(keep, 0, 0, 0);
+
+        GenerationEvaluator evaluator = new GenerationEvaluator(genetic, 2);
+        evaluator.setLimits(30, 0, 0);
+        evaluator.setRacing(true);
+        try {
+            int[][] scores = evaluator.playGeneration();
+
+            assertEquals(1, scores[keep].length);
+            assertEquals(0, scores[keep][0]);
+            assertFalse(genetic.isScored(keep, 1));
+            assertFalse(genetic.isScored(keep, 2));
+            assertEquals(3, scores[0].length);
+
+            genetic.recordScores(scores);
+            assertEquals(0, genetic.scores[keep]);
+            assertEquals(bound, genetic.scores[0]);
+        } finally {
+            evaluator.shutdown();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.fermanis.aitetris;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class IslandTest {
+
+    @Test
+    public void islandsMigrateOverLoopback() throws Exception {
+        final IslandCoordinator coordinator = new IslandCoordinator(0, 2, 2, 1, 2, 12345);
+        final String host = InetAddress.getLoopbackAddress().getHostAddress();
+        ExecutorService workers = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<IslandWorker>> islands = new ArrayList<Future<IslandWorker>>();
+            for (int i = 0; i < 2; i++) {
+                islands.add(workers.submit(new Callable<IslandWorker>() {
+                    public IslandWorker call() throws Exception {
+                        IslandWorker worker = new IslandWorker(host, coordinator.getPort(), 1);
+                        worker.run();
+                        return worker;
+                    }
+                }));
+            }
+            coordinator.run();
+
+            for (Future<IslandWorker> island : islands) {
+                IslandWorker worker = island.get();
+                assertEquals(2, worker.getLastReport().generation);
+            }
+            IslandReport[] reports = coordinator.getReports();
+            assertEquals(2, reports[1].generation);
+            assertNotNull(coordinator.getBest());
+            assertEquals(7, coordinator.getBest().length);
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+}
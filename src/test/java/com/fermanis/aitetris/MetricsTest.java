@@ -0,0 +1,83 @@
+package com.fermanis.aitetris;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void histogramPercentilesAreWithinABucket() {
+        Metrics.Histogram h = new Metrics.Histogram();
+        for (int v = 1; v <= 100000; v++) {
+            h.record(v);
+        }
+        assertEquals(100000, h.getCount());
+        assertEquals(50000.5, h.getMean(), 1e-9);
+        assertEquals(100000, h.getMax());
+        for (double q : new double[]{0.5, 0.9, 0.99}) {
+            long exact = (long) (q * 100000);
+            long p = h.percentile(q);
+            assertTrue(q + ": " + p, p >= exact && p <= exact + exact / 16);
+        }
+        for (int v = 0; v < 5000; v++) {
+            assertTrue(Metrics.Histogram.lowest(Metrics.Histogram.index(v)) <= v);
+            assertTrue(Metrics.Histogram.lowest(Metrics.Histogram.index(v) + 1) > v);
+        }
+    }
+
+    @Test
+    public void gamesAndSearchesAreCounted() {
+        long pieces = Metrics.PIECES.getCount();
+        long searches = Metrics.SEARCH_NANOS.getCount();
+        long games = Metrics.GAME_LINES.getCount();
+
+        SimulationEngine sim = new SimulationEngine(new Random(3));
+        sim.play(new TetrisAI());
+
+        assertTrue(Metrics.PIECES.getCount() - pieces >= sim.blocksdropped);
+        assertTrue(Metrics.SEARCH_NANOS.getCount() - searches >= sim.blocksdropped - 1);
+        assertTrue(Metrics.GAME_LINES.getCount() > games);
+        assertSame(Metrics.PIECES, Metrics.counter("game.pieces"));
+    }
+
+    @Test
+    public void dumpsEveryMetricAsCsv() throws Exception {
+        File file = new File(folder.getRoot(), "metrics.csv");
+        ScheduledExecutorService scheduler = GameScheduler.create(1);
+        try {
+            ScheduledFuture<?> dump = Metrics.startDump(scheduler, file, 20);
+            Thread.sleep(200);
+            dump.cancel(false);
+        } finally {
+            // A dump still running would race with reading the file and deleting the folder.
+            scheduler.shutdown();
+            assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+        }
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals("time,name,count,rate,mean,p50,p90,p99,max", lines.get(0));
+        boolean search = false, gc = false;
+        for (String line : lines) {
+            search |= line.contains(",ai.search_ns,");
+            gc |= line.contains(",gc.");
+        }
+        assertTrue(search);
+        assertTrue(gc);
+    }
+}
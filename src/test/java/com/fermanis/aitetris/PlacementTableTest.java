@@ -0,0 +1,69 @@
+package com.fermanis.aitetris;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PlacementTableTest {
+
+    @Test
+    public void xRangeKeepsBlockOnBoard() {
+        // Vertical I block: only shape column 1 is filled.
+        PlacementTable.Shape shape = PlacementTable.get(0, 1);
+        assertEquals(-1, shape.minX());
+        assertEquals(8, shape.maxX(10));
+    }
+
+    @Test
+    public void canPlaceChecksBounds() {
+        Board board = new Board(10, 10);
+        // Horizontal I block: only shape row 0 is filled.
+        PlacementTable.Shape shape = PlacementTable.get(0, 0);
+        assertTrue(shape.canPlace(board, 0, 0));
+        assertTrue(shape.canPlace(board, 6, 9));
+        assertFalse(shape.canPlace(board, -1, 0));
+        assertFalse(shape.canPlace(board, 7, 0));
+        assertFalse(shape.canPlace(board, 0, -1));
+        assertFalse(shape.canPlace(board, 0, 10));
+
+        board.fill(3, 9);
+        assertFalse(shape.canPlace(board, 0, 9));
+        assertEquals(8, shape.landingRow(board, 0, 0));
+    }
+
+    @Test
+    public void dropRowMatchesRowByRowDrop() {
+        Random rnd = new Random(9);
+        SimulationEngine sim = new SimulationEngine(10, 10, rnd);
+        for (int trial = 0; trial < 500; trial++) {
+            sim.board.clear();
+            int from = rnd.nextInt(11);
+            for (int y = from; y < 10; y++) {
+                for (int x = 0; x < 10; x++) {
+                    if (rnd.nextInt(3) > 0) sim.board.fill(x, y);
+                }
+            }
+
+            for (int type = 0; type < TetrisEngine.blockdef.length; type++) {
+                for (int rot = 0; rot < PlacementTable.rotations(type); rot++) {
+                    PlacementTable.Shape shape = PlacementTable.get(type, rot);
+                    for (int x = shape.minX(); x <= shape.maxX(10); x++) {
+                        if (!sim.fits(type, rot, x, 0)) continue;
+
+                        int y = 0;
+                        while (sim.fits(type, rot, x, y + 1)) y++;
+                        assertEquals(y, shape.landingRow(sim.board, x, 0));
+                        // Unless it spawned under an overhang, that is where a drop from above lands.
+                        if (shape.dropRow(sim.board, x) >= 0) {
+                            assertEquals(y, shape.dropRow(sim.board, x));
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
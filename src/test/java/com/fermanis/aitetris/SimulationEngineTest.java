@@ -0,0 +1,56 @@
+package com.fermanis.aitetris;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SimulationEngineTest {
+
+    @Test
+    public void seededGamesAreReproducible() {
+        int first = new SimulationEngine(new Random(7)).play(new TetrisAI());
+        int second = new SimulationEngine(new Random(7)).play(new TetrisAI());
+        assertEquals(first, second);
+    }
+
+    @Test
+    public void gameRunsToCompletion() {
+        SimulationEngine sim = new SimulationEngine(new Random(3));
+        int score = sim.play(new TetrisAI());
+
+        assertTrue(sim.blocksdropped > 0);
+        assertTrue(score >= sim.blocksdropped);
+        assertEquals(score, sim.score);
+    }
+
+    @Test
+    public void pieceLimitEndsTheGameWithItsScore() {
+        SimulationEngine sim = new SimulationEngine(new Random(3));
+        sim.setLimits(20, 0, 0);
+        int score = sim.play(new TetrisAI());
+
+        assertTrue(sim.stopped);
+        assertEquals(20, sim.blocksdropped);
+        assertEquals(score, sim.score);
+        assertTrue(score <= SimulationEngine.maxScore(sim.board.width, 20, 0));
+
+        sim.setLimits(0, 0, 0);
+        sim.play(new TetrisAI());
+        assertFalse(sim.stopped);
+    }
+
+    @Test
+    public void trainDrivesSendScore() {
+        GeneticAIAlgorithm genetic = new GeneticAIAlgorithm(true);
+        genetic.serializeGeneration = false;
+
+        new SimulationEngine(new Random(11)).train(genetic, 1);
+
+        assertEquals(2, genetic.generation);
+        assertEquals(0, genetic.current);
+    }
+}
@@ -0,0 +1,114 @@
+package com.fermanis.aitetris;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.springframework.core.env.Environment;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TetrisAITest {
+
+    @Test
+    public void placementPacking() {
+        int p = TetrisAI.placement(3, -2);
+        assertEquals(3, TetrisAI.placementRotation(p));
+        assertEquals(-2, TetrisAI.placementX(p));
+    }
+
+    @Test
+    public void searchDoesNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        Board board = new Board(10, 10);
+        Random rnd = new Random(5);
+        for (int y = 6; y < 10; y++) {
+            for (int x = 0; x < 10; x++) {
+                if (x != y && rnd.nextBoolean()) board.fill(x, y);
+            }
+        }
+        TetrisAI ai = new TetrisAI();
+
+        // Warm up, which also sizes the scratch buffers.
+        for (int i = 0; i < 200; i++) {
+            ai.bestPlacement(board, i % 7, (i / 7) % 7);
+        }
+
+        long tid = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(tid);
+        for (int i = 0; i < 1000; i++) {
+            ai.bestPlacement(board, i % 7, (i / 7) % 7);
+        }
+        long allocated = threads.getThreadAllocatedBytes(tid) - before;
+
+        assertTrue("search allocated " + allocated + " bytes", allocated < 4096);
+    }
+
+    @Test
+    public void cachedSearchPicksSamePlacements() {
+        TranspositionCache cache = new TranspositionCache(1 << 12);
+        for (int seed = 1; seed <= 2; seed++) {
+            // Second round replays the same games from the cache.
+            for (int round = 0; round < 2; round++) {
+                SimulationEngine plain = new SimulationEngine(new Random(seed));
+                SimulationEngine cached = new SimulationEngine(new Random(seed));
+                TetrisAI ai = new TetrisAI();
+                ai.setCache(cache);
+
+                assertEquals(plain.play(new TetrisAI()), cached.play(ai));
+                assertEquals(plain.board, cached.board);
+            }
+        }
+        assertTrue(cache.getHits() > 0);
+    }
+
+    @Test
+    public void lookaheadWithoutBeamMatchesPairSearch() {
+        TetrisAI pairs = new TetrisAI();
+        TetrisAI lookahead = new TetrisAI();
+        LookaheadSearch search = new LookaheadSearch(lookahead, 2, 0);
+
+        SimulationEngine sim = new SimulationEngine(new Random(4));
+        sim.reset();
+        while (sim.newblock()) {
+            int fit = pairs.bestPlacement(sim.board, sim.activeType, sim.nextType);
+            assertEquals(fit, search.bestPlacement(sim.board, sim.activeType, sim.nextType));
+            if (!sim.place(TetrisAI.placementRotation(fit), TetrisAI.placementX(fit))) break;
+        }
+        assertTrue(sim.blocksdropped > 10);
+    }
+
+    @Test
+    public void deeperBeamSearchPlaysWholeGame() {
+        TetrisAI ai = new TetrisAI();
+        ai.setSearch(3, 4);
+        SimulationEngine sim = new SimulationEngine(new Random(8));
+        int score = sim.play(ai);
+        assertTrue(score >= sim.blocksdropped);
+    }
+
+    @Test
+    public void onlyTheTwoPieceSearchGetsACache() throws Exception {
+        assertTrue(TetrisAI.usesCache(2, 0));
+        assertFalse(TetrisAI.usesCache(3, 0));
+        assertFalse(TetrisAI.usesCache(2, 4));
+
+        Environment previous = ConfigurationManager.getEnvironment();
+        try {
+            ConfigurationManager.loadStandalone(new String[]{"--ai.search_depth=2", "--ai.beam_width=0"});
+            assertEquals(1 << 12, TetrisAI.configuredCacheEntries(1 << 12));
+            ConfigurationManager.loadStandalone(new String[]{"--ai.search_depth=3", "--ai.beam_width=4"});
+            assertEquals(0, TetrisAI.configuredCacheEntries(1 << 12));
+        } finally {
+            new ConfigurationManager().setEnvironment(previous);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.fermanis.aitetris;
+
+import org.junit.Test;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TetrisEngineTest {
+
+    @Test
+    public void slamLandsOnTopOfStack() {
+        TetrisEngine engine = new TetrisEngine(null);
+        engine.useAnomaly = false;
+        engine.state = ProjectConstants.GameState.PLAYING;
+        engine.board.fill(1, engine.height - 1);
+
+        // Vertical I block in shape column 1, right above the filled cell.
+        Tetromino block = new Tetromino();
+        block.type = 0;
+        block.setRotation(1);
+        block.color = Block.colors[0];
+        engine.activeblock = block;
+
+        assertTrue(engine.canPlace(0, 1, 0, 0));
+        assertFalse(engine.canPlace(0, 1, -2, 0));
+        engine.keyslam();
+        // Commands only take effect when the game thread updates.
+        assertFalse(engine.board.isFilled(1, engine.height - 2));
+        engine.update();
+
+        for (int y = engine.height - 5; y < engine.height - 1; y++) {
+            assertTrue(engine.board.isFilled(1, y));
+        }
+        assertFalse(engine.board.isFilled(1, engine.height - 6));
+    }
+
+    @Test
+    public void commandsArePublishedInSnapshots() {
+        TetrisEngine engine = new TetrisEngine(null);
+        engine.useAnomaly = false;
+        engine.state = ProjectConstants.GameState.PLAYING;
+        engine.laststep = 0;
+        engine.update();
+
+        EngineSnapshot before = engine.snapshot();
+        assertTrue(before.hasActive());
+        engine.keyleft();
+        long ticket = engine.keyleft();
+        engine.update();
+
+        EngineSnapshot after = engine.snapshot();
+        assertEquals(ticket, after.applied);
+        assertEquals(before.activeX - 2, after.activeX);
+        assertEquals(before.activeType, after.activeType);
+        // Published snapshots never change.
+        assertEquals(0, before.applied);
+        assertEquals(engine.width / 2 - 2, before.activeX);
+
+        engine.keypause();
+        engine.update();
+        assertEquals(ProjectConstants.GameState.PAUSED, engine.snapshot().state);
+    }
+
+    @Test
+    public void aLongPauseIsOneTick() {
+        TetrisEngine engine = new TetrisEngine(null);
+        engine.state = ProjectConstants.GameState.PLAYING;
+        engine.laststep = 0;
+        engine.update();
+        assertEquals(1, engine.ticks);
+        int y = engine.snapshot().activeY;
+
+        // As if the process had been stopped for a minute.
+        engine.laststep = System.currentTimeMillis() - 60000;
+        engine.update();
+        engine.update();
+
+        EngineSnapshot s = engine.snapshot();
+        assertEquals(2, s.ticks);
+        assertEquals(y + 1, s.activeY);
+        assertFalse(engine.anomaly_flag);
+    }
+
+    @Test
+    public void onlyBlocksTheAiNeverMovedAreAnomalies() {
+        TetrisEngine engine = new TetrisEngine(null) {
+            @Override
+            boolean aiplaying() {
+                return true;
+            }
+        };
+        engine.state = ProjectConstants.GameState.PLAYING;
+        engine.laststep = 0;
+        engine.update();
+        assertTrue(engine.snapshot().hasActive());
+
+        // Moved by the AI, then landed by gravity: the next block spawns as usual.
+        engine.keyleft();
+        dropToFloor(engine);
+        engine.update();
+        assertFalse(engine.anomaly_flag);
+        assertEquals(ProjectConstants.GameState.PLAYING, engine.state);
+        assertEquals(2, engine.blocksdropped);
+
+        // Never moved: the game is thrown away.
+        dropToFloor(engine);
+        engine.update();
+        assertTrue(engine.anomaly_flag);
+        assertEquals(ProjectConstants.GameState.GAMEOVER, engine.state);
+
+        // Past the board reset and the restart: with no panel there is no AI to restart.
+        engine.resetat = 0;
+        engine.restartat = 0;
+        engine.update();
+        assertEquals(-1, engine.restartat);
+        assertEquals(0, engine.board.count());
+        assertEquals(ProjectConstants.GameState.GAMEOVER, engine.state);
+        engine.shutdown();
+    }
+
+    /*Puts the active block right on top of the floor, due for a gravity step.*/
+    private static void dropToFloor(TetrisEngine engine) {
+        Tetromino block = engine.activeblock;
+        block.y = block.shape.landingRow(engine.board, block.x, block.y);
+        engine.laststep = 0;
+    }
+
+    @Test
+    public void scheduledLoopAppliesCommands() throws InterruptedException {
+        ScheduledExecutorService scheduler = GameScheduler.create(2);
+        try {
+            TetrisEngine engine = new TetrisEngine(null, scheduler);
+            engine.useAnomaly = false;
+            engine.state = ProjectConstants.GameState.PLAYING;
+            engine.startengine();
+
+            engine.keyrotate();
+            engine.keyleft();
+            EngineSnapshot paused = engine.awaitSnapshot(engine.keypause());
+            assertEquals(3, paused.applied);
+            assertEquals(ProjectConstants.GameState.PAUSED, paused.state);
+
+            // Commands after a shutdown are never applied.
+            engine.shutdown();
+            engine.keyleft();
+            Thread.sleep(50);
+            assertEquals(3, engine.snapshot().applied);
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void repeatedFailuresStopTheLoop() throws InterruptedException {
+        ScheduledExecutorService scheduler = GameScheduler.create(1);
+        try {
+            TetrisEngine engine = new TetrisEngine(null, scheduler);
+            engine.useAnomaly = false;
+            engine.steptime = 2;
+            engine.state = ProjectConstants.GameState.PLAYING;
+            // Every update needs a new block, and every block fails.
+            engine.pieces = new PieceSource() {
+                public int next() {
+                    throw new IllegalStateException("broken piece source");
+                }
+            };
+            engine.startengine();
+
+            for (int i = 0; i < 500 && engine.failedupdates < TetrisEngine.MAX_FAILED_UPDATES; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(TetrisEngine.MAX_FAILED_UPDATES, engine.failedupdates);
+            // No more updates once it gave up, not even for commands.
+            engine.keyleft();
+            Thread.sleep(50);
+            assertEquals(TetrisEngine.MAX_FAILED_UPDATES, engine.failedupdates);
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+}
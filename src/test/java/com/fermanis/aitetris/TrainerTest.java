@@ -0,0 +1,89 @@
+package com.fermanis.aitetris;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.env.Environment;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TrainerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Environment previous;
+
+    @Before
+    public void saveEnvironment() {
+        previous = ConfigurationManager.getEnvironment();
+    }
+
+    @After
+    public void restoreEnvironment() {
+        new ConfigurationManager().setEnvironment(previous);
+    }
+
+    @Test
+    public void argumentsOverrideTheYamlFiles() throws Exception {
+        File config = folder.newFile("server.yml");
+        Files.write(config.toPath(), "genetic_algo:\n  population: 8\n  runs_per_eval: 2\n".getBytes("UTF-8"));
+
+        ConfigurationManager.loadStandalone(new String[]{"--config=" + config, "--genetic_algo.runs_per_eval=5"});
+
+        assertEquals(8, ConfigurationManager.getIntSetting("genetic_algo.population", 0));
+        assertEquals(5, ConfigurationManager.getIntSetting("genetic_algo.runs_per_eval", 0));
+        // Still in the bundled application.yml
+        assertEquals("uniform", ConfigurationManager.getSetting("genetic_algo.piece_source"));
+    }
+
+    @Test
+    public void separatesSettingsFromPositionalArguments() {
+        String[] args = {"7171", "--config=server.yml", "4", "fork", "--genetic_algo.population=8"};
+        assertEquals(Arrays.asList("7171", "4", "fork"), ConfigurationManager.positionalArgs(args));
+        assertEquals(Arrays.asList("--config=server.yml", "--genetic_algo.population=8"),
+                ConfigurationManager.optionArgs(args));
+    }
+
+    @Test
+    public void trainsAndWritesTheScoredPopulation() throws Exception {
+        File stats = new File(folder.getRoot(), "stats");
+        ConfigurationManager.loadStandalone(new String[]{"--genetic_algo.population=4",
+                "--genetic_algo.runs_per_eval=1", "--genetic_algo.max_runs_per_eval=1", "--genetic_algo.serialize_generation=false",
+                "--genetic_algo.stats_dir=" + stats});
+        GeneticAIAlgorithm genetic = new GeneticAIAlgorithm(true);
+        GenerationEvaluator evaluator = new GenerationEvaluator(genetic, 2);
+        File results = new File(folder.getRoot(), "out/results.csv");
+        try {
+            new Trainer(genetic, evaluator, results).run(2);
+        } finally {
+            evaluator.shutdown();
+            genetic.closeStats();
+        }
+
+        assertEquals(3, genetic.generation);
+        List<String> lines = Files.readAllLines(results.toPath());
+        assertEquals(4, lines.size());
+        assertEquals(7, lines.get(0).split(",").length);
+
+        List<String> generations = Files.readAllLines(new File(stats, GenerationStats.GENERATIONS_FILE).toPath());
+        assertEquals(3, generations.size());
+        assertTrue(generations.get(0).startsWith("time,generation"));
+        assertEquals("2", generations.get(2).split(",")[1]);
+        List<String> candidates = Files.readAllLines(new File(stats, GenerationStats.CANDIDATES_FILE).toPath());
+        assertEquals(1 + 2 * 4, candidates.size());
+        // generation, candidate, score, runs, ci95, std_dev, eval_ms, 7 weights, scores
+        String[] row = candidates.get(1).split(",", -1);
+        assertEquals(15, row.length);
+        assertEquals("1", row[3]);
+        assertEquals(row[2], row[14]);
+    }
+}
@@ -0,0 +1,48 @@
+package com.fermanis.aitetris;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TranspositionCacheTest {
+
+    @Test
+    public void storesAndCounts() {
+        TranspositionCache cache = new TranspositionCache(16);
+        assertEquals(-1, cache.find(42));
+
+        cache.put(42, 1.5, 7);
+        int slot = cache.find(42);
+        assertTrue(slot >= 0);
+        assertEquals(1.5, cache.score(slot), 0);
+        assertEquals(7, cache.move(slot));
+
+        cache.put(42, 2.5, 8);
+        assertEquals(1, cache.size());
+        assertEquals(8, cache.move(cache.find(42)));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void fullSetEvictsUnreferencedEntryFirst() {
+        // A single set of four slots.
+        TranspositionCache cache = new TranspositionCache(4);
+        assertEquals(4, cache.capacity());
+        for (long key = 1; key <= 4; key++) {
+            cache.put(key, key, (int) key);
+        }
+        cache.find(1);
+        cache.find(3);
+
+        cache.put(5, 5, 5);
+
+        assertEquals(4, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertTrue(cache.find(1) >= 0);
+        assertEquals(-1, cache.find(2));
+        assertTrue(cache.find(3) >= 0);
+        assertTrue(cache.find(5) >= 0);
+    }
+}